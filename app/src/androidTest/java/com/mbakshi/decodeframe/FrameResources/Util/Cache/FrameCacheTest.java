@@ -0,0 +1,88 @@
+package com.mbakshi.decodeframe.FrameResources.Util.Cache;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+
+import junit.framework.TestCase;
+
+/**
+ * Runs on a device, the cache holds real bitmaps.
+ */
+public class FrameCacheTest extends TestCase {
+    private static final SourceFingerprint SOURCE = new SourceFingerprint("/clip.mp4", 1000, 1);
+    // 10x10 ARGB_8888
+    private static final int FRAME_BYTES = 400;
+
+    public void testGetReturnsOwnedCopy() {
+        FrameCache cache = new FrameCache(10 * FRAME_BYTES);
+        Bitmap frame = frame(Color.RED);
+        cache.put(key(1), frame);
+        assertEquals(FRAME_BYTES, cache.getCachedBytes());
+
+        Bitmap first = cache.get(key(1));
+        assertNotSame(frame, first);
+        assertEquals(Color.RED, first.getPixel(5, 5));
+        // neither the frame put nor the copy handed out is the cached one
+        frame.eraseColor(Color.BLUE);
+        first.recycle();
+        Bitmap second = cache.get(key(1));
+        assertEquals(Color.RED, second.getPixel(5, 5));
+        assertNull(cache.get(key(2)));
+    }
+
+    public void testEvictsLeastRecentlyUsed() {
+        FrameCache cache = new FrameCache(2 * FRAME_BYTES);
+        cache.put(key(1), frame(Color.RED));
+        cache.put(key(2), frame(Color.GREEN));
+        cache.get(key(1));
+        cache.put(key(3), frame(Color.BLUE));
+        assertEquals(2 * FRAME_BYTES, cache.getCachedBytes());
+        assertNull(cache.get(key(2)));
+        assertEquals(Color.RED, cache.get(key(1)).getPixel(0, 0));
+        assertEquals(Color.BLUE, cache.get(key(3)).getPixel(0, 0));
+    }
+
+    public void testReplacingKeepsOneEntry() {
+        FrameCache cache = new FrameCache(10 * FRAME_BYTES);
+        cache.put(key(1), frame(Color.RED));
+        cache.put(key(1), frame(Color.GREEN));
+        assertEquals(FRAME_BYTES, cache.getCachedBytes());
+        assertEquals(Color.GREEN, cache.get(key(1)).getPixel(0, 0));
+    }
+
+    public void testBudget() {
+        FrameCache cache = new FrameCache(FRAME_BYTES - 1);
+        cache.put(key(1), frame(Color.RED));
+        assertEquals(0, cache.getCachedBytes());
+        assertNull(cache.get(key(1)));
+
+        cache.setMaxBytes(3 * FRAME_BYTES);
+        for (int i = 0; i < 3; i++) {
+            cache.put(key(i), frame(Color.RED));
+        }
+        cache.setMaxBytes(FRAME_BYTES);
+        assertEquals(FRAME_BYTES, cache.getCachedBytes());
+        assertNotNull(cache.get(key(2)));
+        cache.clear();
+        assertEquals(0, cache.getCachedBytes());
+    }
+
+    public void testKeysDifferByFrameAndConfig() {
+        FrameCache cache = new FrameCache(10 * FRAME_BYTES);
+        cache.put(key(1), frame(Color.RED));
+        assertNull(cache.get(new FrameCache.Key(SOURCE, 1, 10, 10, true, Bitmap.Config.RGB_565, null)));
+        assertNull(cache.get(new FrameCache.Key(new SourceFingerprint("/clip.mp4", 1000, 2), 1, 10, 10, true,
+                Bitmap.Config.ARGB_8888, null)));
+        assertNotNull(cache.get(key(1)));
+    }
+
+    private static FrameCache.Key key(long frameTimeUs) {
+        return new FrameCache.Key(SOURCE, frameTimeUs, 10, 10, true, Bitmap.Config.ARGB_8888, null);
+    }
+
+    private static Bitmap frame(int color) {
+        Bitmap frame = Bitmap.createBitmap(10, 10, Bitmap.Config.ARGB_8888);
+        frame.eraseColor(color);
+        return frame;
+    }
+}
@@ -2,14 +2,24 @@ package com.mbakshi.decodeframe;
 
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.Matrix;
+import android.graphics.Rect;
 import android.media.MediaCodec;
 import android.media.MediaMetadataRetriever;
 import android.media.ThumbnailUtils;
 import android.net.Uri;
+import android.os.SystemClock;
 import android.util.Log;
 
+import com.mbakshi.decodeframe.FrameResources.Assertions;
+import com.mbakshi.decodeframe.FrameResources.Constants;
 import com.mbakshi.decodeframe.FrameResources.FrameResources.CustomFrameRetriever;
+import com.mbakshi.decodeframe.FrameResources.FrameResources.YuvFrame;
+import com.mbakshi.decodeframe.FrameResources.Tracks.TrackSampleTable;
+import com.mbakshi.decodeframe.FrameResources.Util.Allocate.FramePool;
+import com.mbakshi.decodeframe.FrameResources.Util.Cache.DiskFrameCache;
+import com.mbakshi.decodeframe.FrameResources.Util.Cache.FrameCache;
+import com.mbakshi.decodeframe.FrameResources.Util.Cache.SourceFingerprint;
+import com.mbakshi.decodeframe.FrameResources.Util.ColorUtil.Orientation;
 import com.mbakshi.decodeframe.FrameResources.Util.Media.MediaFormat;
 import com.mbakshi.decodeframe.FrameResources.Util.Media.MimeTypes;
 import com.mbakshi.decodeframe.FrameResources.Util.Utilities;
@@ -24,23 +34,66 @@ import java.nio.ByteBuffer;
  */
 public final class ClipExtractor {
     private static String TAG = "ClipExtractor";
+
+    /** Frames are decoded from the sync sample before the requested time; the first one is returned. */
+    public static final int SEEK_MODE_PREVIOUS_SYNC = 0;
+    /**
+     * Only the sync sample nearest before the requested time is read and decoded, for thumbnails that
+     * do not need exact times. The fastest mode.
+     */
+    public static final int SEEK_MODE_SYNC_ONLY = 1;
+    /**
+     * The frame displayed at the requested time is returned. Frames from the previous sync sample up to
+     * it are decoded but not converted.
+     */
+    public static final int SEEK_MODE_ACCURATE = 2;
     private Context context;
     private MediaExtractor mediaExtractor;
 
     private String filePath;
     private Uri fileUri;
+    // identifies the file content for the frame cache, null when the source is not a plain file
+    private SourceFingerprint fingerprint;
+    private FrameCache frameCache;
+    private DiskFrameCache diskCache;
+    // the default disk cache is opened on first use, not on the caller's thread
+    private boolean defaultDiskCache = true;
+    private int seekMode = SEEK_MODE_PREVIOUS_SYNC;
+    private int videoTrackIndex = -1;
 
     private class MetadataAdditional {
         public int rotation;
         public Bitmap frame;
     }
 
+    /**
+     * Receives the frames of {@link #getFramesAtTimes(long[], int, int, boolean, Bitmap.Config, FrameCallback)}
+     * as they are converted. It is called on the conversion thread of the batch, not on the caller's,
+     * while the next frames are being decoded, so it should not block for long.
+     */
+    public interface FrameCallback {
+        /**
+         * @param index The index of the frame's time in the requested times.
+         * @param timeUs The requested time.
+         * @param frame The frame, or null if it could not be decoded. It belongs to the callback.
+         */
+        void onFrame(int index, long timeUs, Bitmap frame);
+    }
+
     private MetadataAdditional metadataAdditional;
+    // decodes the frames of this extractor, requests on one extractor are serialized
+    private final CustomFrameRetriever frameRetriever;
 
+    /**
+     * Frame requests on one extractor share its read position and are serialized. Extract from several
+     * files at once with one extractor per file, see {@link FrameExtractionService}.
+     */
     public ClipExtractor(Context context) {
         this.context = context;
         mediaExtractor = new MediaExtractor(context);
         metadataAdditional = new MetadataAdditional();
+        frameRetriever = new CustomFrameRetriever();
+        frameCache = FrameCache.getDefault();
     }
 
     /***************************************************************************** Prepare and Release *****/
@@ -58,6 +111,8 @@ public final class ClipExtractor {
 
     private boolean setDataSourceInternal() throws IOException {
         boolean error = false;
+        fingerprint = SourceFingerprint.forFile(filePath);
+        videoTrackIndex = -1;
         if(tryCustomExtractor()){
             Log.i(TAG, "Custom extractor success");
         }
@@ -89,37 +144,410 @@ public final class ClipExtractor {
         return !error;
     }
 
-    public void release() {
+    public synchronized void release() {
         mediaExtractor.release();
     }
 
+    /**
+     * Aborts the frame request running on this extractor, or the next one if none is running. Can be
+     * called from any thread. Loading is stopped, the decoder and buffers go back to their pools, and
+     * the request returns no frame. Requests after it run normally.
+     */
+    public void cancel() {
+        Log.i(TAG, "Cancel");
+        frameRetriever.cancel();
+        mediaExtractor.cancelLoading();
+    }
+
+    /**
+     * Sets how {@code getFrameAtTime} and {@link #getYuvFrameAtTime(long)} pick the frame to decode.
+     *
+     * @param seekMode One of {@link #SEEK_MODE_PREVIOUS_SYNC}, {@link #SEEK_MODE_SYNC_ONLY} and
+     *     {@link #SEEK_MODE_ACCURATE}.
+     */
+    public synchronized void setSeekMode(int seekMode) {
+        Assertions.checkArgument(seekMode == SEEK_MODE_PREVIOUS_SYNC || seekMode == SEEK_MODE_SYNC_ONLY
+                || seekMode == SEEK_MODE_ACCURATE);
+        this.seekMode = seekMode;
+        frameRetriever.setSeekMode(seekMode);
+    }
+
+    /**
+     * Sets the cache {@code getFrameAtTime} looks frames up in before decoding, and stores them in
+     * after. Defaults to {@link FrameCache#getDefault()}.
+     *
+     * @param frameCache The cache, or null to always decode.
+     */
+    public synchronized void setFrameCache(FrameCache frameCache) {
+        this.frameCache = frameCache;
+    }
+
+    /**
+     * Sets the cache {@code getFrameAtTime} looks frames up in when they are not in the frame cache,
+     * and stores them in after decoding. Defaults to {@link DiskFrameCache#getDefault(Context)}.
+     *
+     * @param diskCache The cache, or null to keep frames in memory only.
+     */
+    public synchronized void setDiskCache(DiskFrameCache diskCache) {
+        this.diskCache = diskCache;
+        defaultDiskCache = false;
+    }
+
     public Bitmap getFrameAtTime(long timeUs, int maxW, int maxH, boolean scale) {
-        Log.i("ThumbLog", "GetFrameAtTime " + timeUs);
-        CustomFrameRetriever frameRetriever = CustomFrameRetriever.getInstance();
-        if(frameRetriever.prepare(timeUs, this, maxW, maxH)) {
-            metadataAdditional.frame = frameRetriever.getFrame();
-            if(scale) {
-                metadataAdditional.frame = ThumbnailUtils.extractThumbnail(metadataAdditional.frame, maxW, maxH,
-                        ThumbnailUtils.OPTIONS_RECYCLE_INPUT);
+        return getFrameAtTime(timeUs, maxW, maxH, scale, Bitmap.Config.ARGB_8888);
+    }
+
+    /**
+     * @param config The config of the returned frame: ARGB_8888, RGB_565 for half the memory, or ALPHA_8
+     *     for a luma mask, the gray level of each pixel stored as its alpha, converted without touching
+     *     the chroma planes. Luma masks are for analysis and masking, they draw as a mask tinted by the
+     *     paint rather than as a grayscale image, and are not kept in the disk cache.
+     */
+    public Bitmap getFrameAtTime(long timeUs, int maxW, int maxH, boolean scale, Bitmap.Config config) {
+        return getFrameAtTime(timeUs, null, maxW, maxH, scale, config);
+    }
+
+    /**
+     * Returns the frame at {@code timeUs}, or the best one decoded by a deadline. Opening and parsing
+     * the file are not bounded, decoding is.
+     *
+     * @param deadlineMs The {@link SystemClock#elapsedRealtime()} at which decoding gives up. The
+     *     latest frame decoded on the way to the one asked for is returned then, which in
+     *     {@link #SEEK_MODE_ACCURATE} can be an earlier one, down to the sync frame the decoding started
+     *     from.
+     * @return The frame and whether it is the one asked for. Its frame is null when nothing was decoded
+     *     in time.
+     */
+    public synchronized FrameResult getFrameAtTime(long timeUs, int maxW, int maxH, boolean scale,
+                                                   Bitmap.Config config, long deadlineMs) {
+        if(Log.isLoggable("ThumbLog", Log.VERBOSE)) {
+            Log.v("ThumbLog", "GetFrameAtTime " + timeUs + " deadline in " + (deadlineMs - SystemClock.elapsedRealtime()));
+        }
+        FrameCache.Key key = getCacheKey(timeUs, maxW, maxH, scale, config, null);
+        DiskFrameCache.Key diskKey = getDiskCacheKey(timeUs, maxW, maxH, scale, config, null);
+        Bitmap cached = getCachedFrame(key, diskKey);
+        if(cached != null) {
+            return new FrameResult(FrameResult.EXACT, cached, key != null ? key.frameTimeUs : timeUs);
+        }
+        frameRetriever.setDeadline(deadlineMs);
+        try {
+            if(!frameRetriever.prepare(timeUs, this, maxW, maxH, scale, config, null)) {
+                return FrameResult.missing();
             }
-            Log.i("ThumbTest", "thumb w " + metadataAdditional.frame.getWidth() + " h " + metadataAdditional.frame.getHeight());
-            Bitmap rot = handleRotation(metadataAdditional.frame, frameRetriever.getRotation());
-            metadataAdditional.frame.recycle();
+            Bitmap decoded = frameRetriever.takeFrame();
+            boolean approximate = frameRetriever.isApproximate();
+            long frameTimeUs = frameRetriever.getFrameTimeUs();
+            int rotation = frameRetriever.getRotation();
             frameRetriever.release();
-            return rot;
+            Bitmap frame = fitFrame(decoded, rotation, maxW, maxH, scale);
+            if(frame == null) {
+                return FrameResult.missing();
+            }
+            if(!approximate) {
+                cacheFrame(key, diskKey, frame);
+            }
+            return new FrameResult(approximate ? FrameResult.APPROXIMATE : FrameResult.EXACT, frame, frameTimeUs);
+        }
+        finally {
+            frameRetriever.setDeadline(Long.MAX_VALUE);
+        }
+    }
+
+    /**
+     * Returns a region of the frame at {@code timeUs}, at full resolution.
+     *
+     * @param crop The region, in the coordinates of the decoded frame before rotation.
+     */
+    public Bitmap getFrameAtTime(long timeUs, Rect crop) {
+        return getFrameAtTime(timeUs, crop, 0, 0, false, Bitmap.Config.ARGB_8888);
+    }
+
+    /**
+     * Returns a region of the frame at {@code timeUs}. Only the region is converted and allocated.
+     *
+     * @param crop The region, in the coordinates of the decoded frame before rotation, or null for the
+     *     whole frame. Its left and top edges are rounded down to even coordinates.
+     * @param maxW The target width when {@code scale} is set, applied to the region.
+     * @param maxH The target height when {@code scale} is set, applied to the region.
+     */
+    public synchronized Bitmap getFrameAtTime(long timeUs, Rect crop, int maxW, int maxH, boolean scale,
+                                              Bitmap.Config config) {
+        if(Log.isLoggable("ThumbLog", Log.VERBOSE)) {
+            Log.v("ThumbLog", "GetFrameAtTime " + timeUs);
+        }
+        FrameCache.Key key = getCacheKey(timeUs, maxW, maxH, scale, config, crop);
+        DiskFrameCache.Key diskKey = getDiskCacheKey(timeUs, maxW, maxH, scale, config, crop);
+        Bitmap cached = getCachedFrame(key, diskKey);
+        if(cached != null) {
+            return cached;
+        }
+        if(frameRetriever.prepare(timeUs, this, maxW, maxH, scale, config, crop)) {
+            metadataAdditional.frame = frameRetriever.takeFrame();
+            metadataAdditional.rotation = frameRetriever.getRotation();
+            frameRetriever.release();
+            Bitmap frame = fitFrame(metadataAdditional.frame, metadataAdditional.rotation, maxW, maxH, scale);
+            metadataAdditional.frame = null;
+            if(frame != null) {
+                cacheFrame(key, diskKey, frame);
+            }
+            return frame;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the cache key of the frame the seek mode picks for {@code timeUs}, so that requests for
+     * different times resolving to the same frame share an entry. Null when the frame cannot be known
+     * without decoding, or the source cannot be identified.
+     */
+    private FrameCache.Key getCacheKey(long timeUs, int maxW, int maxH, boolean scale, Bitmap.Config config,
+                                       Rect crop) {
+        if(frameCache == null || fingerprint == null) {
+            return null;
+        }
+        TrackSampleTable sampleTable = getVideoSampleTable();
+        if(sampleTable == null || sampleTable.sampleCount == 0) {
+            return null;
+        }
+        int sample;
+        if(seekMode == SEEK_MODE_ACCURATE) {
+            sample = sampleTable.getIndexOfEarlierOrEqualSample(timeUs);
+            if(sample == TrackSampleTable.NO_SAMPLE) {
+                sample = sampleTable.getIndexOfFirstPresentedSample();
+            }
+        }
+        else {
+            // the sync frame decoding starts from is the one returned
+            sample = sampleTable.getIndexOfEarlierOrEqualSynchronizationSample(timeUs);
+            if(sample == TrackSampleTable.NO_SAMPLE) {
+                sample = sampleTable.getIndexOfLaterOrEqualSynchronizationSample(timeUs);
+            }
+            if(sample == TrackSampleTable.NO_SAMPLE) {
+                return null;
+            }
+        }
+        return new FrameCache.Key(fingerprint, sampleTable.timestampsUs[sample], maxW, maxH, scale, config, crop);
+    }
+
+    private DiskFrameCache.Key getDiskCacheKey(long timeUs, int maxW, int maxH, boolean scale, Bitmap.Config config,
+                                               Rect crop) {
+        if(defaultDiskCache && diskCache == null) {
+            diskCache = DiskFrameCache.getDefault(context);
+            defaultDiskCache = false;
+        }
+        if(diskCache == null || fingerprint == null || config == Bitmap.Config.ALPHA_8) {
+            // luma masks cannot be compressed
+            return null;
+        }
+        return new DiskFrameCache.Key(fingerprint, timeUs, seekMode, maxW, maxH, scale, config, crop);
+    }
+
+    /**
+     * Looks a frame up in memory, then on disk.
+     */
+    private Bitmap getCachedFrame(FrameCache.Key key, DiskFrameCache.Key diskKey) {
+        if(key != null) {
+            Bitmap frame = frameCache.get(key);
+            if(frame != null) {
+                Log.i("ThumbLog", "Frame cache hit " + key.frameTimeUs);
+                return frame;
+            }
+        }
+        if(diskKey != null) {
+            Bitmap frame = diskCache.get(diskKey);
+            if(frame != null) {
+                // stored losslessly, the same pixels as the decoded frame
+                Log.i("ThumbLog", "Disk cache hit " + diskKey.timeUs);
+                if(key != null) {
+                    frameCache.put(key, frame);
+                }
+                return frame;
+            }
         }
         return null;
     }
 
-    private Bitmap handleRotation(Bitmap sourceBitmap, int rotation) {
-        int width = sourceBitmap.getWidth();
-        int height = sourceBitmap.getHeight();
-        Matrix matrix = new Matrix();
-        matrix.postRotate(rotation);
-        return Bitmap.createBitmap(sourceBitmap, 0, 0, width, height, matrix, true);
+    private void cacheFrame(FrameCache.Key key, DiskFrameCache.Key diskKey, Bitmap frame) {
+        if(key != null) {
+            frameCache.put(key, frame);
+        }
+        if(diskKey != null) {
+            diskCache.put(diskKey, frame);
+        }
+    }
+
+    /**
+     * Returns the sample table of the video track, or null if it is not known.
+     */
+    TrackSampleTable getVideoSampleTable() {
+        int trackIndex = getVideoTrackIndex();
+        return trackIndex == -1 ? null : mediaExtractor.getSampleTable(trackIndex);
+    }
+
+    private int getVideoTrackIndex() {
+        if(videoTrackIndex == -1) {
+            int trackCount = mediaExtractor.getTrackCount();
+            for(int i = 0; i < trackCount; i++) {
+                MediaFormat format = mediaExtractor.getTrackFormat(i);
+                if(format != null && MimeTypes.isVideo(format.mimeType)) {
+                    videoTrackIndex = i;
+                    break;
+                }
+            }
+        }
+        return videoTrackIndex;
+    }
+
+    /**
+     * Extracts {@code count} frames evenly spaced over the clip, for a timeline. Each frame is at the
+     * centre of its share of the duration, moved to the nearest sync sample so that only sync frames
+     * are decoded. Frames are handed to the callback one by one as soon as they are converted, from
+     * the start of the clip to its end, so a timeline can fill in from the left while the rest decode.
+     *
+     * @param callback Receives each frame, with its index in the filmstrip and the time it was taken at.
+     * @return Whether the frames could be extracted. The callback is not called when they could not.
+     */
+    public synchronized boolean getFilmstrip(int count, int maxW, int maxH, boolean scale, Bitmap.Config config,
+                                             FrameCallback callback) {
+        Assertions.checkArgument(count > 0);
+        Assertions.checkNotNull(callback);
+        long[] timesUs = getFilmstripTimes(count);
+        if(timesUs == null) {
+            Log.e(TAG, "Filmstrip: unknown duration");
+            return false;
+        }
+        return getFramesAtTimes(timesUs, maxW, maxH, scale, config, callback) != null;
+    }
+
+    /**
+     * Returns evenly spaced times over the video track snapped to sync samples, or null if its duration
+     * is not known.
+     */
+    private long[] getFilmstripTimes(int count) {
+        int trackIndex = getVideoTrackIndex();
+        if(trackIndex == -1) {
+            return null;
+        }
+        TrackSampleTable sampleTable = mediaExtractor.getSampleTable(trackIndex);
+        long durationUs = mediaExtractor.getTrackFormat(trackIndex).durationUs;
+        if(durationUs == Constants.UNKNOWN_TIME_US && sampleTable != null && sampleTable.sampleCount > 0) {
+            durationUs = sampleTable.timestampsUs[sampleTable.sampleCount - 1];
+        }
+        if(durationUs <= 0) {
+            return null;
+        }
+        long[] timesUs = new long[count];
+        for(int i = 0; i < count; i++) {
+            long timeUs = durationUs * (2 * i + 1) / (2 * count);
+            timesUs[i] = sampleTable == null ? timeUs : getNearestSyncTime(sampleTable, timeUs);
+        }
+        return timesUs;
+    }
+
+    private static long getNearestSyncTime(TrackSampleTable sampleTable, long timeUs) {
+        int earlier = sampleTable.getIndexOfEarlierOrEqualSynchronizationSample(timeUs);
+        int later = sampleTable.getIndexOfLaterOrEqualSynchronizationSample(timeUs);
+        if(earlier == TrackSampleTable.NO_SAMPLE && later == TrackSampleTable.NO_SAMPLE) {
+            return timeUs;
+        }
+        if(earlier == TrackSampleTable.NO_SAMPLE) {
+            return sampleTable.timestampsUs[later];
+        }
+        if(later == TrackSampleTable.NO_SAMPLE) {
+            return sampleTable.timestampsUs[earlier];
+        }
+        long earlierUs = sampleTable.timestampsUs[earlier];
+        long laterUs = sampleTable.timestampsUs[later];
+        return timeUs - earlierUs <= laterUs - timeUs ? earlierUs : laterUs;
+    }
+
+    /**
+     * Returns the frames at several times, decoding each group of pictures once. Much cheaper than
+     * one {@link #getFrameAtTime(long, int, int, boolean, Bitmap.Config)} per time for storyboards and
+     * filmstrips.
+     *
+     * @param callback Receives each frame as soon as it is decoded, in increasing order of time, or
+     *     null. Frames handed to the callback are not returned.
+     * @return The frames in the order of {@code timesUs}, entries being null where no frame could be
+     *     decoded or where it went to the callback. Null if the decoder could not be set up.
+     */
+    public synchronized Bitmap[] getFramesAtTimes(long[] timesUs, final int maxW, final int maxH,
+                                                  final boolean scale, Bitmap.Config config,
+                                                  final FrameCallback callback) {
+        Log.i("ThumbLog", "GetFramesAtTimes " + timesUs.length);
+        final Bitmap[] frames = new Bitmap[timesUs.length];
+        boolean prepared = frameRetriever.prepareBatch(timesUs, this, maxW, maxH, scale, config, null,
+                new FrameCallback() {
+                    @Override
+                    public void onFrame(int index, long timeUs, Bitmap frame) {
+                        frame = fitFrame(frame, frameRetriever.getRotation(), maxW, maxH, scale);
+                        if(callback != null) {
+                            callback.onFrame(index, timeUs, frame);
+                        }
+                        else {
+                            frames[index] = frame;
+                        }
+                    }
+                });
+        frameRetriever.release();
+        return prepared ? frames : null;
+    }
+
+    /**
+     * Scales a decoded frame to the target when the decoder could not.
+     */
+    private static Bitmap fitFrame(Bitmap frame, int rotation, int maxW, int maxH, boolean scale) {
+        // the frame comes back already rotated, and scaled when it was larger than the target
+        if(frame == null) {
+            return null;
+        }
+        int targetW = Orientation.getWidth(maxW, maxH, rotation);
+        int targetH = Orientation.getHeight(maxW, maxH, rotation);
+        if(scale && (frame.getWidth() != targetW || frame.getHeight() != targetH)) {
+            Bitmap source = frame;
+            frame = ThumbnailUtils.extractThumbnail(source, targetW, targetH);
+            if(frame != source) {
+                FramePool.getDefault().releaseBitmap(source);
+            }
+        }
+        if(Log.isLoggable("ThumbLog", Log.VERBOSE)) {
+            Log.v("ThumbLog", "thumb w " + frame.getWidth() + " h " + frame.getHeight());
+        }
+        return frame;
+    }
+
+    /**
+     * Returns the decoded planes of the frame at {@code timeUs}, without any RGB conversion or bitmap.
+     * The caller owns the frame and must {@link YuvFrame#release()} it once processed.
+     *
+     * @return The frame, or null if it could not be decoded.
+     */
+    public synchronized YuvFrame getYuvFrameAtTime(long timeUs) {
+        Log.i("ThumbLog", "GetYuvFrameAtTime " + timeUs);
+        YuvFrame frame = null;
+        if(frameRetriever.prepareYuv(timeUs, this)) {
+            frame = frameRetriever.takeYuvFrame();
+        }
+        frameRetriever.release();
+        return frame;
+    }
+
+    /**
+     * Hands a frame returned by {@link #getFrameAtTime(long, int, int, boolean)} back for reuse. The
+     * frame must not be used afterwards.
+     */
+    public void recycleFrame(Bitmap frame) {
+        FramePool.getDefault().releaseBitmap(frame);
     }
 
     /**********************************************************************  Track Information ********/
+    /**
+     * Returns the sample table of a track, or null if it is not known.
+     */
+    public TrackSampleTable getSampleTable(int index) {
+        return mediaExtractor.getSampleTable(index);
+    }
+
     public void selectTrack(int index) {
         mediaExtractor.selectTrack(index);
     }
@@ -145,6 +573,15 @@ public final class ClipExtractor {
         mediaExtractor.seekTo(positionUs, MediaExtractor.SEEK_TO_PREV_SYNC);
     }
 
+    /**
+     * Loads only the sync sample at or before {@code positionUs}.
+     *
+     * @return The timestamp of the sample, or -1 if it could not be located.
+     */
+    public long seekToSyncSample(long positionUs) {
+        return mediaExtractor.seekToSyncSample(positionUs);
+    }
+
     public int readSampleData(ByteBuffer byteBuffer, int offset) {
         return mediaExtractor.readSampleData(byteBuffer, offset);
     }
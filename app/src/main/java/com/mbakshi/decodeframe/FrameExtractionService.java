@@ -0,0 +1,138 @@
+package com.mbakshi.decodeframe;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.net.Uri;
+import android.util.Log;
+
+import com.mbakshi.decodeframe.FrameResources.Assertions;
+
+import java.io.File;
+import java.util.concurrent.Callable;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Extracts frames from many files concurrently, at most a fixed number at a time.
+ * <p>
+ * Each extraction opens its own {@link ClipExtractor}, and with it its own decoder, so extractions do
+ * not share any state. Extractions beyond the concurrency limit wait in submission order. The limit
+ * should not exceed the number of decoder instances the device can run at once.
+ */
+public final class FrameExtractionService {
+    private static final String TAG = "FrameExtractionService";
+    private static final long IDLE_KEEP_ALIVE_SECONDS = 10;
+
+    private final Context context;
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * Returns the default concurrency limit, one extraction per available core.
+     */
+    public static int getDefaultConcurrency() {
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    public FrameExtractionService(Context context) {
+        this(context, getDefaultConcurrency());
+    }
+
+    /**
+     * @param maxConcurrent The maximum number of extractions running at once.
+     */
+    public FrameExtractionService(Context context, int maxConcurrent) {
+        Assertions.checkArgument(maxConcurrent > 0);
+        this.context = context.getApplicationContext();
+        executor = new ThreadPoolExecutor(maxConcurrent, maxConcurrent, IDLE_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ExtractorThreadFactory("FrameExtractor:"));
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Queues the extraction of a frame from a file.
+     *
+     * @see ClipExtractor#getFrameAtTime(long, Rect, int, int, boolean, Bitmap.Config)
+     */
+    public FrameRequest submit(String filePath, long timeUs, int maxW, int maxH, boolean scale,
+                               Bitmap.Config config) {
+        return submit(Uri.fromFile(new File(filePath)), timeUs, maxW, maxH, scale, config);
+    }
+
+    /**
+     * Queues the extraction of a frame.
+     *
+     * @return The request, which yields the frame, or null if it could not be decoded. It fails with an
+     *     {@code IOException} if the source could not be opened. Frames can be handed back with
+     *     {@link ClipExtractor#recycleFrame(Bitmap)} once used.
+     * @see ClipExtractor#getFrameAtTime(long, Rect, int, int, boolean, Bitmap.Config)
+     */
+    public FrameRequest submit(final Uri uri, final long timeUs, final int maxW, final int maxH,
+                               final boolean scale, final Bitmap.Config config) {
+        final ClipExtractor extractor = new ClipExtractor(context);
+        final FrameRequest request = new FrameRequest(extractor, new Callable<Bitmap>() {
+            @Override
+            public Bitmap call() throws Exception {
+                try {
+                    extractor.setDataSource(uri);
+                    return extractor.getFrameAtTime(timeUs, null, maxW, maxH, scale, config);
+                }
+                finally {
+                    extractor.release();
+                }
+            }
+        });
+        executor.execute(request.getTask());
+        return request;
+    }
+
+    /**
+     * Cancels a request, and drops it from the queue if it has not started yet.
+     *
+     * @return Whether the request was cancelled, false if it had already completed.
+     */
+    public boolean cancel(FrameRequest request) {
+        boolean cancelled = request.cancel();
+        if(cancelled) {
+            executor.remove(request.getTask());
+        }
+        return cancelled;
+    }
+
+    /**
+     * Number of extractions queued and not started yet.
+     */
+    public int getPendingCount() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Stops accepting extractions. Queued ones still run.
+     */
+    public void shutdown() {
+        Log.i(TAG, "Shutting down with " + getPendingCount() + " pending");
+        executor.shutdown();
+    }
+
+    /**
+     * Creates numbered daemon threads, so that pending extractions do not keep the process alive.
+     */
+    static final class ExtractorThreadFactory implements ThreadFactory {
+        private final String namePrefix;
+        private final AtomicInteger count = new AtomicInteger();
+
+        ExtractorThreadFactory(String namePrefix) {
+            this.namePrefix = namePrefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, namePrefix + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package com.mbakshi.decodeframe;
+
+import android.graphics.Bitmap;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A frame extraction queued on a {@link FrameExtractionService}, which can be cancelled while it waits
+ * or while it runs.
+ * <p>
+ * Cancelling a running extraction stops its loading and decoding at the next step rather than
+ * interrupting the thread, so the decoder and buffers go back to their pools and the thread picks up
+ * the next queued extraction straight away.
+ */
+public final class FrameRequest implements Future<Bitmap> {
+    private final ClipExtractor extractor;
+    private final FutureTask<Bitmap> task;
+
+    FrameRequest(ClipExtractor extractor, Callable<Bitmap> extraction) {
+        this.extractor = extractor;
+        task = new FutureTask<>(extraction);
+    }
+
+    FutureTask<Bitmap> getTask() {
+        return task;
+    }
+
+    /**
+     * Cancels the extraction. Nothing happens if it has already completed.
+     *
+     * @return Whether the extraction was cancelled.
+     */
+    public boolean cancel() {
+        if(!task.cancel(false)) {
+            return false;
+        }
+        // stops the extraction if it is running, a queued one does not run at all
+        extractor.cancel();
+        return true;
+    }
+
+    /**
+     * Same as {@link #cancel()}. The thread running the extraction is never interrupted, the
+     * extraction is stopped cooperatively instead.
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return cancel();
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return task.isCancelled();
+    }
+
+    @Override
+    public boolean isDone() {
+        return task.isDone();
+    }
+
+    @Override
+    public Bitmap get() throws InterruptedException, ExecutionException {
+        return task.get();
+    }
+
+    @Override
+    public Bitmap get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        return task.get(timeout, unit);
+    }
+}
@@ -0,0 +1,245 @@
+package com.mbakshi.decodeframe.FrameResources.FrameResources;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.util.Log;
+
+import com.mbakshi.decodeframe.FrameResources.Util.Allocate.FramePool;
+import com.mbakshi.decodeframe.FrameResources.Util.ColorUtil.FormatConverter;
+import com.mbakshi.decodeframe.FrameResources.Util.ColorUtil.Orientation;
+import com.mbakshi.decodeframe.FrameResources.Util.ColorUtil.ParallelYuvConverter;
+import com.mbakshi.decodeframe.FrameResources.Util.ColorUtil.YuvLayout;
+import com.mbakshi.decodeframe.FrameResources.Util.ColorUtil.YuvScaler;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+/**
+ * Turns decoded YUV frames into bitmaps of the requested size, config and region.
+ * <p>
+ * A frame is converted in two steps, so that a codec buffer can be handed back between them:
+ * {@link #convert(ByteBuffer, YuvLayout, FormatConverter, int)} reads the planes into pooled pixels, and
+ * {@link #createBitmap()} copies those into a pooled bitmap. A converter is used by one thread at a time.
+ */
+final class BitmapConverter {
+    private final FramePool framePool;
+    private boolean scaleToTarget;
+    private Bitmap.Config outputConfig = Bitmap.Config.ARGB_8888;
+    private int targetWidth;
+    private int targetHeight;
+    // region of the decoded frame to extract, empty for the whole frame
+    private final Rect sourceCrop = new Rect();
+    private final Rect cropRect = new Rect();
+    // int[] for ARGB_8888, short[] for RGB_565 and byte[] for ALPHA_8 output
+    private Object pixels;
+    private int bitmapWidth;
+    private int bitmapHeight;
+
+    BitmapConverter(FramePool framePool) {
+        this.framePool = framePool;
+    }
+
+    /**
+     * @see CustomFrameRetriever#prepare(long, com.mbakshi.decodeframe.ClipExtractor, int, int, boolean, Bitmap.Config, Rect)
+     */
+    void setOutput(int targetWidth, int targetHeight, boolean scaleToTarget, Bitmap.Config outputConfig, Rect crop) {
+        this.targetWidth = targetWidth;
+        this.targetHeight = targetHeight;
+        this.scaleToTarget = scaleToTarget;
+        this.outputConfig = outputConfig;
+        if(crop != null) {
+            sourceCrop.set(crop);
+        }
+        else {
+            sourceCrop.setEmpty();
+        }
+    }
+
+    /**
+     * Converts a decoded frame into pixels for {@link #createBitmap()}. The frame is read in place and
+     * is not needed once this returns.
+     *
+     * @param decodedBuffer The frame, starting at the buffer's position.
+     * @param layout Describes the frame. It is restricted to the crop region on return.
+     * @param converter Reads the color format of the frame.
+     * @param rotation The clockwise rotation to apply.
+     */
+    void convert(ByteBuffer decodedBuffer, YuvLayout layout, FormatConverter converter, int rotation) {
+        if(CustomFrameRetriever.isVerbose()) {
+            Log.v("ThumbLog", "Decodedbuffer size " + decodedBuffer.remaining());
+        }
+        if(!sourceCrop.isEmpty()) {
+            cropLayout(layout);
+        }
+        // formats the kernels cannot read in place are unpacked first, only the cropped region
+        byte[] unpacked = null;
+        int unpackedSize = converter.getUnpackedSize(layout);
+        if(unpackedSize > 0) {
+            if(CustomFrameRetriever.isVerbose()) {
+                Log.v("ThumbLog", "Unpacking " + converter);
+            }
+            unpacked = framePool.acquireBytes(unpackedSize);
+            converter.unpack(decodedBuffer, layout, unpacked);
+            decodedBuffer = ByteBuffer.wrap(unpacked);
+        }
+        int inputWidth = layout.width;
+        int inputHeight = layout.height;
+        // when a smaller target was asked for, scale while converting instead of building the full frame
+        boolean downscale = scaleToTarget && targetWidth > 0 && targetHeight > 0
+                && targetWidth <= inputWidth && targetHeight <= inputHeight
+                && (targetWidth < inputWidth || targetHeight < inputHeight);
+        int frameWidth = downscale ? targetWidth : inputWidth;
+        int frameHeight = downscale ? targetHeight : inputHeight;
+        // pixels are written straight to their rotated position, the bitmap is created upright
+        bitmapWidth = Orientation.getWidth(frameWidth, frameHeight, rotation);
+        bitmapHeight = Orientation.getHeight(frameWidth, frameHeight, rotation);
+        int pixelCount = frameWidth * frameHeight;
+        acquirePixels(pixelCount);
+
+        if(downscale) {
+            if(CustomFrameRetriever.isVerbose()) {
+                Log.v("ThumbLog", "Scaling to " + frameWidth + "x" + frameHeight);
+            }
+            YuvScaler.getCenterCrop(inputWidth, inputHeight, frameWidth, frameHeight, cropRect);
+            if(pixels instanceof short[]) {
+                YuvScaler.scale(decodedBuffer, layout, cropRect, rotation, (short[]) pixels, 0, frameWidth, frameHeight);
+            }
+            else if(pixels instanceof byte[]) {
+                YuvScaler.scale(decodedBuffer, layout, cropRect, rotation, (byte[]) pixels, 0, frameWidth, frameHeight);
+            }
+            else {
+                YuvScaler.scale(decodedBuffer, layout, cropRect, rotation, (int[]) pixels, 0, frameWidth, frameHeight);
+            }
+        }
+        else {
+            // large frames are split into row bands and converted on all cores
+            ParallelYuvConverter parallelConverter = ParallelYuvConverter.getDefault();
+            if(pixels instanceof short[]) {
+                parallelConverter.convert(decodedBuffer, layout, rotation, (short[]) pixels, 0);
+            }
+            else if(pixels instanceof byte[]) {
+                parallelConverter.convert(decodedBuffer, layout, rotation, (byte[]) pixels, 0);
+            }
+            else {
+                parallelConverter.convert(decodedBuffer, layout, rotation, (int[]) pixels, 0);
+            }
+        }
+        if(unpacked != null) {
+            framePool.releaseBytes(unpacked);
+        }
+        if(CustomFrameRetriever.isVerbose()) {
+            Log.v("ThumbLog", "Converted Pixels " + pixelCount);
+        }
+    }
+
+    /**
+     * Copies the pixels of the last converted frame into a pooled bitmap, and hands the pixels back.
+     *
+     * @return The frame, or null if the bitmap could not be created.
+     */
+    Bitmap createBitmap() {
+        Bitmap bmp = framePool.acquireBitmap(bitmapWidth, bitmapHeight, outputConfig);
+        if(bmp == null) {
+            Log.e("ThumbLog", "Could not create bitmap");
+            releasePixels();
+            return null;
+        }
+        if(pixels instanceof int[]) {
+            bmp.setPixels((int[]) pixels, 0, bitmapWidth, 0, 0, bitmapWidth, bitmapHeight);
+        }
+        else {
+            copyPixels(bmp);
+        }
+        releasePixels();
+        if(CustomFrameRetriever.isVerbose()) {
+            Log.v("ThumbLog", "Created thumbnail");
+        }
+        return bmp;
+    }
+
+    /**
+     * Hands back the pixels of a frame that was converted but not turned into a bitmap.
+     */
+    void release() {
+        releasePixels();
+    }
+
+    /**
+     * Restricts {@code layout} to {@link #sourceCrop}, clipped to the frame and aligned to the chroma
+     * grid.
+     */
+    private void cropLayout(YuvLayout layout) {
+        int left = Math.max(0, sourceCrop.left) & ~1;
+        int top = Math.max(0, sourceCrop.top) & ~1;
+        int right = Math.min(layout.width, sourceCrop.right);
+        int bottom = Math.min(layout.height, sourceCrop.bottom);
+        if(right - left <= 0 || bottom - top <= 0) {
+            Log.w("ThumbLog", "Crop " + sourceCrop + " is outside the frame, converting the whole frame");
+            return;
+        }
+        if(CustomFrameRetriever.isVerbose()) {
+            Log.v("ThumbLog", "Cropping to " + left + "," + top + " " + (right - left) + "x" + (bottom - top));
+        }
+        layout.crop(left, top, right - left, bottom - top);
+    }
+
+    /**
+     * Copies 16 bit or 8 bit pixels into a bitmap of the same config. Bitmaps whose rows are padded get
+     * the pixels through a padded copy.
+     */
+    private void copyPixels(Bitmap bmp) {
+        int bytesPerPixel = pixels instanceof short[] ? 2 : 1;
+        int rowBytes = bmp.getRowBytes();
+        int count = bitmapWidth * bitmapHeight;
+        if(rowBytes == bitmapWidth * bytesPerPixel) {
+            if(bytesPerPixel == 2) {
+                bmp.copyPixelsFromBuffer(ShortBuffer.wrap((short[]) pixels, 0, count));
+            }
+            else {
+                bmp.copyPixelsFromBuffer(ByteBuffer.wrap((byte[]) pixels, 0, count));
+            }
+            return;
+        }
+        byte[] padded = framePool.acquireBytes(rowBytes * bitmapHeight);
+        ByteBuffer rows = ByteBuffer.wrap(padded).order(ByteOrder.nativeOrder());
+        for(int row = 0; row < bitmapHeight; row++) {
+            rows.position(row * rowBytes);
+            if(bytesPerPixel == 2) {
+                rows.asShortBuffer().put((short[]) pixels, row * bitmapWidth, bitmapWidth);
+            }
+            else {
+                rows.put((byte[]) pixels, row * bitmapWidth, bitmapWidth);
+            }
+        }
+        rows.position(0);
+        bmp.copyPixelsFromBuffer(rows);
+        framePool.releaseBytes(padded);
+    }
+
+    private void acquirePixels(int count) {
+        releasePixels();
+        if(outputConfig == Bitmap.Config.RGB_565) {
+            pixels = framePool.acquireShorts(count);
+        }
+        else if(outputConfig == Bitmap.Config.ALPHA_8) {
+            pixels = framePool.acquireBytes(count);
+        }
+        else {
+            pixels = framePool.acquirePixels(count);
+        }
+    }
+
+    private void releasePixels() {
+        if(pixels instanceof int[]) {
+            framePool.releasePixels((int[]) pixels);
+        }
+        else if(pixels instanceof short[]) {
+            framePool.releaseShorts((short[]) pixels);
+        }
+        else if(pixels instanceof byte[]) {
+            framePool.releaseBytes((byte[]) pixels);
+        }
+        pixels = null;
+    }
+}
@@ -2,37 +2,61 @@ package com.mbakshi.decodeframe.FrameResources.FrameResources;
 
 import android.annotation.TargetApi;
 import android.graphics.Bitmap;
-import android.graphics.Matrix;
+import android.graphics.Rect;
+import android.media.Image;
 import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.os.Build;
-import android.os.Environment;
+import android.os.SystemClock;
 import android.util.Log;
 
 
 import com.mbakshi.decodeframe.ClipExtractor;
+import com.mbakshi.decodeframe.FrameResources.Assertions;
+import com.mbakshi.decodeframe.FrameResources.Tracks.TrackSampleTable;
+import com.mbakshi.decodeframe.FrameResources.Util.Allocate.FramePool;
+import com.mbakshi.decodeframe.FrameResources.Util.CodecUtil.MediaCodecPool;
 import com.mbakshi.decodeframe.FrameResources.Util.CodecUtil.MediaCodecUtil;
+import com.mbakshi.decodeframe.FrameResources.Util.ColorUtil.FormatConverter;
+import com.mbakshi.decodeframe.FrameResources.Util.ColorUtil.FormatConverters;
+import com.mbakshi.decodeframe.FrameResources.Util.ColorUtil.Orientation;
+import com.mbakshi.decodeframe.FrameResources.Util.ColorUtil.YuvConverter;
+import com.mbakshi.decodeframe.FrameResources.Util.ColorUtil.YuvLayout;
 import com.mbakshi.decodeframe.FrameResources.Util.Media.MediaFormat;
 import com.mbakshi.decodeframe.FrameResources.Util.Media.MimeTypes;
+import com.mbakshi.decodeframe.FrameResources.extractor.MediaExtractor;
 
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
+import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.nio.IntBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created by mbakshi on 11/09/15.
  */
 public final class CustomFrameRetriever {
     private static final String TAG = "CustomFrameRetriever";
-    private static int TARGET_WIDTH;
-    private static int TARGET_HEIGHT;
-
-    private static CustomFrameRetriever instance;
+    private static final long OUTPUT_TIMEOUT_US = 10000;
+    private static final long EVENT_TIMEOUT_MS = 10;
+    private static final long STALL_TIMEOUT_MS = 5000;
+    /**
+     * Number of decoded frames a batch keeps waiting for conversion before decoding pauses. Each holds a
+     * copy of the decoded planes.
+     */
+    private static final int PIPELINE_DEPTH = 2;
+    // decoders that rejected or ignored a reduced output size, they are only asked for the stream size
+    private static final HashSet<String> fullSizeDecoders = new HashSet<>();
 
     private MediaCodec mediaCodec;
+    private MediaCodecPool.PooledCodec pooledCodec;
+    private final MediaCodecPool codecPool = MediaCodecPool.getDefault();
+    // next codec specific data buffer to queue on a reused decoder, -1 once all are queued
+    private int codecConfigIndex = -1;
     private boolean decoderInit;
     private ClipExtractor extractor;
     private boolean extractorInit;
@@ -48,39 +72,375 @@ public final class CustomFrameRetriever {
     private boolean endOfOutputStream;
 
     private Bitmap thumbnail;
+    // conversion target and output bitmaps come from the pool, repeated extraction reuses them
+    private final FramePool framePool = FramePool.getDefault();
+    // converts frames on the decoding thread, or on the conversion stage of a batch
+    private final BitmapConverter bitmapConverter = new BitmapConverter(framePool);
+    // set when the planes are handed out as they are, see prepareYuv
+    private boolean yuvOutput;
+    private YuvFrame yuvFrame;
+    private final YuvLayout layout = new YuvLayout();
+    // reads the decoder's color format into the kernels, see updateLayout
+    private FormatConverter converter;
+    // pooled frame unpacked from a format the kernels cannot read in place
+    private byte[] unpacked;
     int rotation;
 
-    private int decodeTryCount;
-    //private final int MAX_DECODE_COUNT = 1000;
+    private int targetWidth;
+    private int targetHeight;
+    // set when frames are scaled down to the target anyway, the decoder may then output them smaller
+    private boolean reduceResolution;
+    // the coded size of the stream, and the size the decoder was asked to output
+    private int streamWidth;
+    private int streamHeight;
+    private int decodeWidth;
+    private int decodeHeight;
+    // frames presented before this are dropped without conversion
+    private long targetTimeUs = Long.MIN_VALUE;
+    private int seekMode = ClipExtractor.SEEK_MODE_PREVIOUS_SYNC;
+    // set when only one sample was loaded, it is queued together with the end of stream
+    private boolean singleSample;
+    private int trackIndex = -1;
+
+    // reused for every output buffer, the decode loop allocates nothing per frame
+    private final MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+    // input buffers handed over by the decoder and not filled yet
+    private final ArrayDeque<Integer> freeInputs = new ArrayDeque<>();
+    // set when the decoder runs asynchronously, its callbacks arrive through codecEvents
+    private boolean asyncDecode;
+    private final LinkedBlockingQueue<CodecEvent> codecEvents = new LinkedBlockingQueue<>();
+    private final MediaCodecPool.CodecListener codecListener = new MediaCodecPool.CodecListener() {
+        @Override
+        public void onInputBufferAvailable(int index) {
+            codecEvents.add(CodecEvent.input(index));
+        }
 
-    public static CustomFrameRetriever getInstance() {
-        if(instance == null) {
-            instance = new CustomFrameRetriever();
+        @Override
+        public void onOutputBufferAvailable(int index, MediaCodec.BufferInfo info) {
+            codecEvents.add(CodecEvent.output(index, info));
+        }
+
+        @Override
+        public void onOutputFormatChanged(android.media.MediaFormat format) {
+            codecEvents.add(CodecEvent.format(format));
         }
-        return instance;
-    }
+
+        @Override
+        public void onError(Exception e) {
+            codecEvents.add(CodecEvent.error(e));
+        }
+    };
+    // when the decoder last output anything, see decodeStep
+    private long lastProgressMs;
+    // SystemClock.elapsedRealtime() at which decoding gives up, see setDeadline
+    private long deadlineMs = Long.MAX_VALUE;
+    private boolean deadlineExpired;
+    // the latest frame decoded on the way to the target, returned when the deadline expires first
+    private YuvFrame fallbackFrame;
+    private FormatConverter fallbackConverter;
+    // presentation time of the frame, and whether it is an earlier one than asked for
+    private long frameTimeUs = -1;
+    private boolean approximate;
+    // set from another thread to abort the request, see cancel
+    private volatile boolean cancelled;
 
     private int inputColorFormat;
 
-    private CustomFrameRetriever() {
+    /**
+     * A retriever holds the decoder and conversion state of one request at a time and is not thread
+     * safe. Use one per extractor, or per thread; separate retrievers can decode concurrently.
+     */
+    public CustomFrameRetriever() {
 
     }
 
+    /**
+     * Whether the per sample and per frame logs are on, with {@code adb shell setprop log.tag.ThumbLog VERBOSE}.
+     */
+    static boolean isVerbose() {
+        return Log.isLoggable("ThumbLog", Log.VERBOSE);
+    }
+
     public boolean prepare(long time, ClipExtractor extractor, int targetWidth, int targetHeight) {
+        return prepare(time, extractor, targetWidth, targetHeight, false);
+    }
+
+    /**
+     * @param scaleToTarget Whether the frame should be converted straight to the target size. The
+     *     frame is centre cropped to the target aspect ratio, the way ThumbnailUtils.extractThumbnail
+     *     does, but the full resolution frame is never built. Frames smaller than the target are
+     *     converted at their own size.
+     */
+    public boolean prepare(long time, ClipExtractor extractor, int targetWidth, int targetHeight, boolean scaleToTarget) {
+        return prepare(time, extractor, targetWidth, targetHeight, scaleToTarget, Bitmap.Config.ARGB_8888);
+    }
+
+    /**
+     * @param outputConfig The config of the frame bitmap, one of ARGB_8888, RGB_565 and ALPHA_8. RGB_565
+     *     halves the memory of a frame. ALPHA_8 returns a luma mask: the gray level of each pixel stored
+     *     as its alpha, converted without reading the chroma planes. It is not an image to display as it
+     *     is, it draws as a mask tinted by the paint.
+     */
+    public boolean prepare(long time, ClipExtractor extractor, int targetWidth, int targetHeight, boolean scaleToTarget,
+                           Bitmap.Config outputConfig) {
+        return prepare(time, extractor, targetWidth, targetHeight, scaleToTarget, outputConfig, null);
+    }
+
+    /**
+     * @param crop The region of the frame to extract, in the coordinates of the decoded (unrotated)
+     *     frame, or null for the whole frame. It is clipped to the frame, and its left and top edges
+     *     are rounded down to even coordinates so that chroma samples stay aligned. Nothing outside
+     *     the region is converted. Scaling to the target applies to the region.
+     */
+    public boolean prepare(long time, ClipExtractor extractor, int targetWidth, int targetHeight, boolean scaleToTarget,
+                           Bitmap.Config outputConfig, Rect crop) {
+        setOutput(extractor, targetWidth, targetHeight, scaleToTarget, outputConfig, crop);
+        return decodeFrame(time);
+    }
+
+    /**
+     * Sets how single frame requests pick the frame to decode, one of the
+     * {@code ClipExtractor.SEEK_MODE_*} constants.
+     */
+    public void setSeekMode(int seekMode) {
+        this.seekMode = seekMode;
+    }
+
+    /**
+     * Bounds the time single frame decoding may take. When the deadline expires before the frame is
+     * decoded, the latest frame decoded on the way to it is returned instead, see
+     * {@link #isApproximate()}, or none if there is none.
+     *
+     * @param deadlineMs The {@link SystemClock#elapsedRealtime()} at which decoding gives up, or
+     *     {@code Long.MAX_VALUE} for no deadline.
+     */
+    public void setDeadline(long deadlineMs) {
+        this.deadlineMs = deadlineMs;
+    }
+
+    /**
+     * Aborts the request being decoded, or the next one if none is. Can be called from any thread. The
+     * decoder goes back to its pool at the next step of the decode loop, and no frame is returned.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Whether the last frame decoded is an earlier one than asked for, returned because the deadline
+     * expired.
+     */
+    public boolean isApproximate() {
+        return approximate;
+    }
+
+    /**
+     * The presentation time of the last frame decoded, or -1 if there is none.
+     */
+    public long getFrameTimeUs() {
+        return frameTimeUs;
+    }
+
+    /**
+     * Decodes the frames at several times with one decoder, handing each to {@code callback} as soon as
+     * it is converted.
+     * <p>
+     * The times are visited in increasing order. Times in the same group of pictures are decoded in one
+     * pass from its sync sample, and the decoder is only flushed and seeked when the next time is in a
+     * later group. Each frame is the one displayed at its time, and is null when it could not be
+     * decoded. Frames belong to the callback.
+     * <p>
+     * Decoding and conversion overlap: decoded planes are copied out of the codec and converted on a
+     * separate thread, which also calls {@code callback}, while the next frame is decoded. Decoding
+     * waits when {@link #PIPELINE_DEPTH} frames are waiting for conversion. All frames have been handed
+     * to the callback when this returns.
+     *
+     * @see #prepare(long, ClipExtractor, int, int, boolean, Bitmap.Config, Rect)
+     */
+    public boolean prepareBatch(long[] timesUs, ClipExtractor extractor, int targetWidth, int targetHeight,
+                                boolean scaleToTarget, Bitmap.Config outputConfig, Rect crop,
+                                ClipExtractor.FrameCallback callback) {
+        setOutput(extractor, targetWidth, targetHeight, scaleToTarget, outputConfig, crop);
+        // frames are copied out of the codec, and converted by the conversion stage
+        yuvOutput = true;
+        singleSample = false;
+        decoderInit = false;
+        frameBuffered = false;
+        thumbnail = null;
+        releaseYuvFrame();
+
+        extractorInit = initExtractor();
+        if(!initBatchDecoder()) {
+            return false;
+        }
+        TrackSampleTable sampleTable = extractor.getSampleTable(trackIndex);
+        if(sampleTable == null) {
+            Log.w("ThumbLog", "No sample table, seeking for every frame");
+        }
+
+        ConversionStage conversion = new ConversionStage(callback);
+        try {
+            return decodeBatch(timesUs, sampleTable, conversion);
+        }
+        finally {
+            conversion.finish();
+            cancelled = false;
+            targetTimeUs = Long.MIN_VALUE;
+            yuvOutput = false;
+            releaseInternal();
+        }
+    }
+
+    private boolean decodeBatch(long[] timesUs, TrackSampleTable sampleTable, ConversionStage conversion) {
+        Integer[] order = sortedOrder(timesUs);
+        int currentSync = TrackSampleTable.NO_SAMPLE;
+        boolean seeked = false;
+        long lastTarget = Long.MIN_VALUE;
+        for(int i = 0; i < order.length; i++) {
+            if(cancelled) {
+                Log.i("ThumbLog", "Batch: cancelled after " + i + " frames");
+                return false;
+            }
+            int index = order[i];
+            long timeUs = timesUs[index];
+            long target = getDisplayedTime(sampleTable, timeUs);
+            int sync = TrackSampleTable.NO_SAMPLE;
+            if(sampleTable != null) {
+                sync = sampleTable.getIndexOfEarlierOrEqualSynchronizationSample(timeUs);
+                if(sync == TrackSampleTable.NO_SAMPLE) {
+                    sync = sampleTable.getIndexOfLaterOrEqualSynchronizationSample(timeUs);
+                }
+            }
+            if(seeked && target == lastTarget) {
+                // the same frame was asked for twice, each caller owns its own copy
+                conversion.put(new PendingFrame(index, timeUs, null, null, true));
+                continue;
+            }
+
+            boolean sameGroup = seeked && sampleTable != null && sync == currentSync && target > lastTarget;
+            if(mediaCodec == null) {
+                // the decoder is released at the end of the stream
+                if(!initBatchDecoder()) {
+                    return false;
+                }
+                sameGroup = false;
+            }
+            else if(!sameGroup && seeked) {
+                flushDecoder();
+            }
+            if(!sameGroup) {
+                Log.i("ThumbLog", "Batch: seeking to " + timeUs);
+                seekTo(timeUs);
+                currentSync = sync;
+                seeked = true;
+            }
+
+            targetTimeUs = target;
+            frameBuffered = false;
+            lastProgressMs = SystemClock.elapsedRealtime();
+            while(!frameBuffered && !endOfOutputStream) {
+                decodeStep();
+            }
+            lastTarget = target;
+            YuvFrame frame = takeYuvFrame();
+            if(frame == null) {
+                Log.w("ThumbLog", "Batch: no frame at " + timeUs);
+            }
+            // waits while the conversion stage is behind
+            conversion.put(new PendingFrame(index, timeUs, frame, converter, false));
+        }
+        return true;
+    }
+
+    /**
+     * Returns the presentation time of the frame displayed at {@code timeUs}, which is {@code timeUs}
+     * itself when the sample table is not known.
+     */
+    private static long getDisplayedTime(TrackSampleTable sampleTable, long timeUs) {
+        if(sampleTable == null || sampleTable.sampleCount == 0) {
+            return timeUs;
+        }
+        int sample = sampleTable.getIndexOfEarlierOrEqualSample(timeUs);
+        if(sample == TrackSampleTable.NO_SAMPLE) {
+            sample = sampleTable.getIndexOfFirstPresentedSample();
+        }
+        return sampleTable.timestampsUs[sample];
+    }
+
+    private boolean initBatchDecoder() {
+        decoderInit = initDecoder(true);
+        if(!decoderInit) {
+            decoderInit = initDecoder(false);
+        }
+        return decoderInit;
+    }
+
+    /**
+     * Returns the indices of {@code timesUs} in increasing order of time.
+     */
+    private static Integer[] sortedOrder(final long[] timesUs) {
+        Integer[] order = new Integer[timesUs.length];
+        for(int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                long left = timesUs[lhs];
+                long right = timesUs[rhs];
+                return left < right ? -1 : (left == right ? 0 : 1);
+            }
+        });
+        return order;
+    }
+
+    private void setOutput(ClipExtractor extractor, int targetWidth, int targetHeight, boolean scaleToTarget,
+                           Bitmap.Config outputConfig, Rect crop) {
+        Assertions.checkArgument(outputConfig == Bitmap.Config.ARGB_8888 || outputConfig == Bitmap.Config.RGB_565
+                || outputConfig == Bitmap.Config.ALPHA_8, "Unsupported output config " + outputConfig);
+        this.extractor = extractor;
+        this.targetHeight = targetHeight;
+        this.targetWidth = targetWidth;
+        bitmapConverter.setOutput(targetWidth, targetHeight, scaleToTarget, outputConfig, crop);
+        // crops are in the coordinates of the full size frame
+        reduceResolution = scaleToTarget && targetWidth > 0 && targetHeight > 0 && crop == null;
+        yuvOutput = false;
+        Log.i("ThumbLog", "CustomFrameRet:targetH " + targetHeight + " targetW " + targetWidth);
+    }
+
+    /**
+     * Decodes the frame at {@code time} without converting it. The decoded planes are copied out of
+     * the codec into a pooled buffer, and can be taken with {@link #takeYuvFrame()}.
+     */
+    public boolean prepareYuv(long time, ClipExtractor extractor) {
         this.extractor = extractor;
-        this.TARGET_HEIGHT = targetHeight;
-        this.TARGET_WIDTH = targetWidth;
+        yuvOutput = true;
+        reduceResolution = false;
+        return decodeFrame(time);
+    }
+
+    private boolean decodeFrame(long time) {
         decoderInit = false;
         frameBuffered = false;
+        deadlineExpired = false;
+        approximate = false;
+        frameTimeUs = -1;
+        // the first frame after the seek, the sync frame at or before time, unless decoding accurately
+        targetTimeUs = Long.MIN_VALUE;
         thumbnail = null;
+        releaseYuvFrame();
 
         // assume the extractor has been prepared but track has not been selected
         Log.i("ThumbLog", "CustomFrameRet:prepare " + time);
-        Log.i("ThumbLog", "CustomFrameRet:targetH " + targetHeight + " targetW " + targetWidth);
         extractorInit = initExtractor();
         if(extractorInit) {
             Log.i("ThumbLog", "Prepare:ExtactorInit done");
         }
+        if(cancelled) {
+            Log.i("ThumbLog", "Cancelled before decoding");
+            cancelled = false;
+            return false;
+        }
 
         decoderInit = initDecoder(true);
         if(!decoderInit) {
@@ -88,39 +448,77 @@ public final class CustomFrameRetriever {
         }
         if(decoderInit) {
             Log.i("ThumbLog", "DecoderInit true");
-            seekTo(time);
+            singleSample = false;
+            if(seekMode == ClipExtractor.SEEK_MODE_SYNC_ONLY) {
+                endOfOutputStream = false;
+                endOfInputStream = false;
+                // one key frame is all that is decoded, nothing else is read from the file
+                singleSample = extractor.seekToSyncSample(time) >= 0;
+            }
+            if(!singleSample) {
+                seekTo(time);
+            }
+            if(seekMode == ClipExtractor.SEEK_MODE_ACCURATE) {
+                // frames before the target are decoded, as the target depends on them, but dropped
+                // without conversion
+                targetTimeUs = getDisplayedTime(extractor.getSampleTable(trackIndex), time);
+                Log.i("ThumbLog", "Decoding up to " + targetTimeUs);
+            }
             frameBuffered = false;
-            decodeTryCount = 0;
-            while(!frameBuffered && !endOfOutputStream) { //&& (decodeTryCount < MAX_DECODE_COUNT)
-                feedInput();
-                getDecodedOutput();
+            lastProgressMs = SystemClock.elapsedRealtime();
+            while(!frameBuffered && !endOfOutputStream) {
+                decodeStep();
             }
             if(endOfOutputStream) {
                 Log.i("ThumbLog", "EOS");
-            }/*
-            if(decodeTryCount >= MAX_DECODE_COUNT) {
-                Log.i("ThumbLog", "DecodeCount exc limit");
-            }*/
+            }
+            if(!frameBuffered && deadlineExpired && fallbackFrame != null) {
+                useFallbackFrame();
+            }
+            releaseFallbackFrame();
         }
         if(decoderInit && frameBuffered) {
             Log.i("ThumbLog", "Releasing decoder");
             releaseInternal();
         }
+        if(cancelled) {
+            // whatever was decoded before the cancel is not wanted any more
+            Log.i("ThumbLog", "Cancelled");
+            cancelled = false;
+            dropFrame();
+            releaseInternal();
+            return false;
+        }
         return decoderInit;
     }
 
+    /**
+     * The rotation of the video track. It has already been applied to the frame returned by
+     * {@link #getFrame()}.
+     */
     public int getRotation() {
         return rotation;
     }
 
     public void release() {
         if(thumbnail != null) {
-            thumbnail.recycle();
+            framePool.releaseBitmap(thumbnail);
             thumbnail = null;
         }
+        bitmapConverter.release();
+        releaseUnpacked();
+        releaseYuvFrame();
+        releaseFallbackFrame();
         releaseInternal();
     }
 
+    private void releaseYuvFrame() {
+        if(yuvFrame != null) {
+            yuvFrame.release();
+            yuvFrame = null;
+        }
+    }
+
     private void releaseInternal() {
         releaseDecoder();
     }
@@ -138,9 +536,14 @@ public final class CustomFrameRetriever {
                 trackIndex = i;
                 this.format = format.getFrameworkMediaFormatV16();
                 this.customFormat = format;
+                // the framework format is shared by every request on the extractor, its size keys are
+                // only changed while a decoder is configured
+                streamWidth = format.width;
+                streamHeight = format.height;
                 break;
             }
         }
+        this.trackIndex = trackIndex;
         if(trackIndex != -1) {
             extractor.selectTrack(trackIndex);
             return true;
@@ -151,22 +554,6 @@ public final class CustomFrameRetriever {
         }
     }
 
-    private void codecConfigure(MediaCodec mediaCodec, android.media.MediaFormat format, boolean software) {
-        if(false) {
-            int height = format.getInteger(android.media.MediaFormat.KEY_HEIGHT);
-            int width = format.getInteger(android.media.MediaFormat.KEY_WIDTH);
-            Log.i("ThumbLog", "configure w " + width + " h " + height);
-            while((height >> 1) > TARGET_HEIGHT || (width >> 1) > TARGET_WIDTH) {
-                height = height >> 1;
-                width = width >> 1;
-            }
-            Log.i("ThumbLog", "configure new w " + width + " h" + height);
-            format.setInteger(android.media.MediaFormat.KEY_WIDTH, width);
-            format.setInteger(android.media.MediaFormat.KEY_HEIGHT, height);
-        }
-        mediaCodec.configure(format, null, null, 0);
-    }
-
     private boolean initDecoder(boolean software) {
         Log.i("ThumbLog", "Initializing decoder " + software);
         boolean error = false;
@@ -194,40 +581,29 @@ public final class CustomFrameRetriever {
         }
 
         Log.i("ThumbLog", "initDecoder:mimetype " + mimeType);
-        String decoderName = decoderInfo.name;
         try {
-            mediaCodec = MediaCodec.createByCodecName(decoderName);
-            /*
-            android.media.MediaFormat outputFormat = android.media.MediaFormat.createVideoFormat(format.getString(android.media.MediaFormat.KEY_MIME),
-                                                                                                        format.getInteger(android.media.MediaFormat.KEY_WIDTH),
-                                                                                                        format.getInteger(android.media.MediaFormat.KEY_HEIGHT));
-            */
-            MediaCodecInfo info = mediaCodec.getCodecInfo();
-            MediaCodecInfo.CodecCapabilities capabilities = info.getCapabilitiesForType(mimeType);
-            int[] colorFormats = capabilities.colorFormats;
-            inputColorFormat = -1;
-            for(int i = 0; i < colorFormats.length; i++) {
-                if(colorFormats[i] == 19) {
-                    Log.i("ThumbLog", "" + colorFormats[i]);
-                    inputColorFormat = 19;
-                    break;
-                }
-                else if(colorFormats[i] == 21) {
-                    Log.i("ThumbLog", "" + colorFormats[i]);
-                    inputColorFormat = 21;
-                    break;
-                }
-            }
+            // ask for the cheapest format there is a converter for, formats read in place first
+            inputColorFormat = FormatConverters.negotiate(decoderInfo.capabilities.colorFormats);
+            Log.i("ThumbLog", "Negotiated color format " + inputColorFormat);
             if(inputColorFormat != -1) {
                 format.setInteger(android.media.MediaFormat.KEY_COLOR_FORMAT, inputColorFormat);
             }
-
-            //format.setInteger(android.media.MediaFormat.KEY_COLOR_FORMAT, 21);
-
-            //outputFormat = null;
-            codecConfigure(mediaCodec, format, software);
-            mediaCodec.start();
-            //outputFormat = mediaCodec.getOutputFormat();
+            chooseDecodeSize(decoderInfo);
+
+            // decoders report through callbacks where they can, there is no polling for buffers then
+            asyncDecode = Build.VERSION.SDK_INT >= Build.VERSION_CODES.M;
+            codecEvents.clear();
+            freeInputs.clear();
+            // started decoders are pooled, creating and configuring one costs tens of milliseconds
+            pooledCodec = acquireDecoder(decoderInfo);
+            if(pooledCodec == null) {
+                Log.e("ThumbLog", "initDecoder:No decoder instance available for " + mimeType + " software " + software);
+                return false;
+            }
+            mediaCodec = pooledCodec.codec;
+            // a reused decoder still has the output format of its previous stream
+            outputFormat = null;
+            codecConfigIndex = pooledCodec.reused ? 0 : -1;
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
                 // no need to get ByteBuffer list...has direct API to get the utput buffer
             } else {
@@ -237,6 +613,11 @@ public final class CustomFrameRetriever {
         }
         catch (Exception ioexc) {
             Log.e("ThumbLog", "initDecoder:Could not create decoder (mimeType) " + mimeType + " software " + software + ioexc);
+            if(pooledCodec != null) {
+                codecPool.discard(pooledCodec);
+                pooledCodec = null;
+                mediaCodec = null;
+            }
             error = true;
         }
 
@@ -249,99 +630,348 @@ public final class CustomFrameRetriever {
         return true;
     }
 
-    private void feedInput() {
-        if(endOfInputStream) {
-            return;
+    /**
+     * Picks the size to ask the decoder for: the stream size halved for as long as the frame stays at
+     * least as large as the target and the decoder reports the size as supported. Frames are scaled to
+     * the target while converting anyway, so smaller output saves decoding and conversion work.
+     */
+    private void chooseDecodeSize(MediaCodecUtil.DecoderInfo decoderInfo) {
+        int width = streamWidth;
+        int height = streamHeight;
+        if(reduceResolution && !isFullSizeDecoder(decoderInfo.name)) {
+            int minWidth = targetWidth;
+            int minHeight = targetHeight;
+            while(true) {
+                int halfWidth = (width / 2 + 1) & ~1;
+                int halfHeight = (height / 2 + 1) & ~1;
+                if(halfWidth < minWidth || halfHeight < minHeight || halfWidth >= width
+                        || !MediaCodecUtil.isSizeSupported(decoderInfo, halfWidth, halfHeight)) {
+                    break;
+                }
+                width = halfWidth;
+                height = halfHeight;
+            }
         }
-        int inputBufferIndex = mediaCodec.dequeueInputBuffer(100);
-        if(inputBufferIndex >= 0) {
-            ByteBuffer buf;
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP){
-                buf = getInputBufferSDK21(inputBufferIndex);
-            } else {
-                buf = inputBuffers[inputBufferIndex];
+        setDecodeSize(width, height);
+        if(width != streamWidth) {
+            Log.i("ThumbLog", "Decoding " + streamWidth + "x" + streamHeight + " at " + width + "x" + height);
+        }
+    }
+
+    private void setDecodeSize(int width, int height) {
+        decodeWidth = width;
+        decodeHeight = height;
+    }
+
+    /**
+     * Acquires a decoder for {@link #format}, falling back to the stream size when the decoder rejects
+     * a reduced one.
+     */
+    private MediaCodecPool.PooledCodec acquireDecoder(MediaCodecUtil.DecoderInfo decoderInfo) throws IOException {
+        MediaCodecPool.CodecListener listener = asyncDecode ? codecListener : null;
+        if(decodeWidth != streamWidth || decodeHeight != streamHeight) {
+            try {
+                return acquireAtDecodeSize(decoderInfo, listener);
+            } catch (IOException e) {
+                Log.w("ThumbLog", decoderInfo.name + " rejected " + decodeWidth + "x" + decodeHeight
+                        + ", decoding at full size", e);
+                addFullSizeDecoder(decoderInfo.name);
+                setDecodeSize(streamWidth, streamHeight);
+                codecEvents.clear();
             }
+        }
+        return acquireAtDecodeSize(decoderInfo, listener);
+    }
+
+    private MediaCodecPool.PooledCodec acquireAtDecodeSize(MediaCodecUtil.DecoderInfo decoderInfo,
+                                                          MediaCodecPool.CodecListener listener) throws IOException {
+        format.setInteger(android.media.MediaFormat.KEY_WIDTH, decodeWidth);
+        format.setInteger(android.media.MediaFormat.KEY_HEIGHT, decodeHeight);
+        try {
+            return codecPool.acquire(decoderInfo, format, listener);
+        }
+        finally {
+            // the next request starts from the stream size again
+            format.setInteger(android.media.MediaFormat.KEY_WIDTH, streamWidth);
+            format.setInteger(android.media.MediaFormat.KEY_HEIGHT, streamHeight);
+        }
+    }
+
+    private static boolean isFullSizeDecoder(String name) {
+        synchronized (fullSizeDecoders) {
+            return fullSizeDecoders.contains(name);
+        }
+    }
+
+    private static void addFullSizeDecoder(String name) {
+        synchronized (fullSizeDecoders) {
+            fullSizeDecoders.add(name);
+        }
+    }
+
+    /**
+     * Runs the decoder until it has made progress: a frame was output or the format changed. Gives up,
+     * ending the output stream, when the request is cancelled, the deadline expires or the decoder
+     * produces nothing for {@link #STALL_TIMEOUT_MS}.
+     */
+    private void decodeStep() {
+        if(asyncDecode) {
+            awaitCodecEvent();
+        }
+        else {
+            feedInput();
+            getDecodedOutput();
+        }
+        if(endOfOutputStream || frameBuffered) {
+            return;
+        }
+        long now = SystemClock.elapsedRealtime();
+        if(cancelled) {
+            endOfOutputStream = true;
+            releaseDecoder();
+        }
+        else if(now >= deadlineMs) {
+            Log.w("ThumbLog", "Deadline expired before the frame was decoded");
+            deadlineExpired = true;
+            endOfOutputStream = true;
+            releaseDecoder();
+        }
+        else if(now - lastProgressMs > STALL_TIMEOUT_MS) {
+            Log.w("ThumbLog", "Decoder stalled, giving up");
+            endOfOutputStream = true;
+            releaseDecoder();
+        }
+    }
 
-            int sampleSize = extractor.readSampleData(buf, 0);
-            Log.i("ThumbLog", "Flag - " + (extractor.getSampleFlags() & MediaCodec.BUFFER_FLAG_SYNC_FRAME));
-            long presentationTime = 0;
-            if(sampleSize == -2) {
-                Log.i("ThumbLog", "FeedData:SampleNotFound");
-                sampleSize = 0;
+    /**
+     * Waits for a callback of the asynchronous decoder and handles it, along with any others already
+     * delivered.
+     */
+    private void awaitCodecEvent() {
+        CodecEvent event;
+        try {
+            event = codecEvents.poll(EVENT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            endOfOutputStream = true;
+            releaseDecoder();
+            return;
+        }
+        while(event != null && mediaCodec != null && !endOfOutputStream) {
+            switch (event.type) {
+                case CodecEvent.INPUT:
+                    freeInputs.add(event.index);
+                    break;
+                case CodecEvent.OUTPUT:
+                    bufferInfo.set(event.offset, event.size, event.presentationTimeUs, event.flags);
+                    handleOutput(event.index, bufferInfo);
+                    break;
+                case CodecEvent.FORMAT:
+                    Log.i("ThumbLog", "Output format changed");
+                    outputFormat = event.format;
+                    lastProgressMs = SystemClock.elapsedRealtime();
+                    break;
+                default:
+                    Log.e("ThumbLog", "Decoder error", event.error);
+                    endOfOutputStream = true;
+                    codecPool.discard(pooledCodec);
+                    pooledCodec = null;
+                    mediaCodec = null;
+                    return;
             }
-            else if(sampleSize == - 1) {
-                Log.i("ThumbLog", "FeedData:Endofstream");
-                endOfInputStream = true;
-                sampleSize = 0;
+            event = codecEvents.poll();
+        }
+        if(mediaCodec != null) {
+            // input buffers also come back while the extractor is still loading, retried on the next call
+            feedInput();
+        }
+    }
+
+    /**
+     * Fills the free input buffers with samples. In synchronous mode the decoder is asked for them
+     * without waiting.
+     */
+    private void feedInput() {
+        while(!endOfInputStream) {
+            if(freeInputs.isEmpty()) {
+                if(asyncDecode) {
+                    return;
+                }
+                int inputBufferIndex = mediaCodec.dequeueInputBuffer(0);
+                if(inputBufferIndex < 0) {
+                    return;
+                }
+                freeInputs.add(inputBufferIndex);
             }
-            else {
-                presentationTime = extractor.getSampleTime();
+            if(!queueInput(freeInputs.peek())) {
+                return;
             }
-            Log.i("ThumbLog", "Sample size " + sampleSize + " presenetationTime " + presentationTime);
+            freeInputs.poll();
+        }
+    }
 
-            mediaCodec.queueInputBuffer(inputBufferIndex, 0, sampleSize, presentationTime, endOfInputStream ? MediaCodec.BUFFER_FLAG_END_OF_STREAM : 0);
+    /**
+     * Queues the next sample, or the end of the stream, into an input buffer.
+     *
+     * @return Whether the buffer was queued. It is kept when the sample has not been loaded yet.
+     */
+    private boolean queueInput(int inputBufferIndex) {
+        ByteBuffer buf;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP){
+            buf = getInputBufferSDK21(inputBufferIndex);
+        } else {
+            buf = inputBuffers[inputBufferIndex];
+        }
+        if(codecConfigIndex >= 0 && queueCodecConfig(inputBufferIndex, buf)) {
+            return true;
+        }
 
-            if(!endOfInputStream) {
-                extractor.advance();
+        int sampleSize = extractor.readSampleData(buf, 0);
+        long presentationTime = 0;
+        if(sampleSize == MediaExtractor.SAMPLE_NOT_FOUND) {
+            if(isVerbose()) {
+                Log.v("ThumbLog", "FeedData:SampleNotFound");
             }
+            return false;
+        }
+        else if(sampleSize == MediaExtractor.END_OF_STREAM) {
+            Log.i("ThumbLog", "FeedData:Endofstream");
+            endOfInputStream = true;
+            sampleSize = 0;
+        }
+        else {
+            presentationTime = extractor.getSampleTime();
+            if(singleSample) {
+                endOfInputStream = true;
+            }
+        }
+        if(isVerbose()) {
+            Log.v("ThumbLog", "Sample size " + sampleSize + " presenetationTime " + presentationTime);
+        }
+
+        mediaCodec.queueInputBuffer(inputBufferIndex, 0, sampleSize, presentationTime, endOfInputStream ? MediaCodec.BUFFER_FLAG_END_OF_STREAM : 0);
+
+        if(!endOfInputStream) {
+            extractor.advance();
         }
+        return true;
     }
 
     private void getDecodedOutput() {
         if(endOfOutputStream || mediaCodec == null) {
             return;
         }
-        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
-        int outputIndex = mediaCodec.dequeueOutputBuffer(info, 0);
+        // waits a little rather than spinning while the decoder works
+        int outputIndex = mediaCodec.dequeueOutputBuffer(bufferInfo, OUTPUT_TIMEOUT_US);
         if (outputIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
             Log.i("ThumbLog", "Output format changed");
             outputFormat = mediaCodec.getOutputFormat();
-            outputIndex = -1;
+            lastProgressMs = SystemClock.elapsedRealtime();
         } else if (outputIndex == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
             Log.i("ThumbLog", "output buffers changed");
             outputBuffers = mediaCodec.getOutputBuffers();
-            outputIndex = -1;
-        } else if (outputIndex < 0) {
-            //Log.i("ThumbLog", "Decode: outputIndex " + outputIndex);
-            decodeTryCount++;
+        } else if (outputIndex >= 0) {
+            // the info is only filled in for an actual buffer
+            handleOutput(outputIndex, bufferInfo);
         }
+    }
 
-        if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
-            Log.i("ThumbLog", "decode:endofoutput");
-            endOfOutputStream = true;
+    /**
+     * Converts a decoded frame if it is the one asked for, and hands the buffer back.
+     */
+    private void handleOutput(int outputIndex, MediaCodec.BufferInfo info) {
+        lastProgressMs = SystemClock.elapsedRealtime();
+        if(isVerbose()) {
+            Log.v("ThumbLog", "Decoded at " + info.presentationTimeUs);
         }
-
-        if(outputIndex >= 0) {
-            ByteBuffer decodedBuffer;
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP){
-                decodedBuffer = getOutputBufferSDK21(outputIndex);
+        boolean converted = false;
+        boolean wanted = !frameBuffered && info.size > 0 && info.presentationTimeUs >= targetTimeUs;
+        // with a deadline, the frames on the way to the target are kept in case it expires first
+        boolean fallback = !wanted && !frameBuffered && info.size > 0 && deadlineMs != Long.MAX_VALUE;
+        if(wanted || fallback) {
+            updateLayout();
+            ByteBuffer decodedBuffer = null;
+            if(converter.needsImage()) {
+                decodedBuffer = unpackImage(outputIndex);
             }
-            else {
-                decodedBuffer = outputBuffers[outputIndex];
-            }
-
-            Log.i("ThumbLog", "Decoded at " + info.presentationTimeUs);
-            if(!frameBuffered) {
+            if(decodedBuffer == null) {
+                decodedBuffer = getOutputBuffer(outputIndex);
                 decodedBuffer.position(info.offset);
-                decodedBuffer.limit(info.size);
+                decodedBuffer.limit(info.offset + info.size);
+            }
 
-                getBitmapFromBuffer(decodedBuffer);
+            if(fallback) {
+                releaseFallbackFrame();
+                fallbackFrame = copyBuffer(decodedBuffer, info.presentationTimeUs);
+                fallbackConverter = converter;
+            }
+            else if(yuvOutput) {
+                yuvFrame = copyBuffer(decodedBuffer, info.presentationTimeUs);
+                frameTimeUs = info.presentationTimeUs;
                 frameBuffered = true;
             }
+            else {
+                bitmapConverter.convert(decodedBuffer, layout, converter, rotation);
+                frameTimeUs = info.presentationTimeUs;
+                converted = true;
+            }
+            releaseUnpacked();
+        }
 
-            mediaCodec.releaseOutputBuffer(outputIndex, false);
+        // pixels are converted straight out of the codec buffer, hand it back before building the bitmap
+        mediaCodec.releaseOutputBuffer(outputIndex, false);
+        if(converted) {
+            thumbnail = bitmapConverter.createBitmap();
+            frameBuffered = true;
+        }
 
-            if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
-                this.endOfOutputStream = true;
-                releaseDecoder();
-            }
+        if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+            Log.i("ThumbLog", "decode:endofoutput");
+            this.endOfOutputStream = true;
+            releaseDecoder();
         }
     }
 
+    /**
+     * Queues the next codec specific data buffer of the stream, which a reused decoder has lost.
+     *
+     * @return Whether a buffer was queued.
+     */
+    private boolean queueCodecConfig(int inputBufferIndex, ByteBuffer buf) {
+        String key = "csd-" + codecConfigIndex;
+        if(!format.containsKey(key)) {
+            codecConfigIndex = -1;
+            return false;
+        }
+        ByteBuffer data = format.getByteBuffer(key).duplicate();
+        data.rewind();
+        int size = data.remaining();
+        buf.clear();
+        buf.put(data);
+        if(isVerbose()) {
+            Log.v("ThumbLog", "Queueing " + key + " size " + size);
+        }
+        mediaCodec.queueInputBuffer(inputBufferIndex, 0, size, 0, MediaCodec.BUFFER_FLAG_CODEC_CONFIG);
+        codecConfigIndex++;
+        return true;
+    }
+
+    /**
+     * Flushes the decoder, dropping the buffers it had handed over.
+     */
+    private void flushDecoder() {
+        pooledCodec.flush();
+        // events from before the flush are stale, and none come until the decoder is resumed
+        freeInputs.clear();
+        codecEvents.clear();
+        pooledCodec.resume();
+    }
+
     private void releaseDecoder() {
-        if (mediaCodec != null) {
-            mediaCodec.stop();
-            mediaCodec.release();
+        freeInputs.clear();
+        if (pooledCodec != null) {
+            codecPool.release(pooledCodec);
+            pooledCodec = null;
             mediaCodec = null;
         }
     }
@@ -353,84 +983,150 @@ public final class CustomFrameRetriever {
         extractor.seekTo(time);
     }
 
-    private void getBitmapFromBuffer(ByteBuffer decodedBuffer) {
-        Log.i("ThumbLog", "Decodedbuffer size " + decodedBuffer.remaining());
-        byte[] byteArray = new byte[decodedBuffer.remaining()];
-        decodedBuffer.get(byteArray);
-        int inputWidth = format.getInteger(android.media.MediaFormat.KEY_WIDTH);
-        int inputHeight = format.getInteger(android.media.MediaFormat.KEY_HEIGHT);
+    /**
+     * Returns the latest frame decoded before the deadline expired in place of the one asked for.
+     */
+    private void useFallbackFrame() {
+        Log.w("ThumbLog", "Returning the frame at " + fallbackFrame.timeUs + " instead");
+        frameTimeUs = fallbackFrame.timeUs;
+        if(yuvOutput) {
+            yuvFrame = fallbackFrame;
+            fallbackFrame = null;
+        }
+        else {
+            bitmapConverter.convert(ByteBuffer.wrap(fallbackFrame.data), fallbackFrame.layout, fallbackConverter,
+                    fallbackFrame.rotation);
+            thumbnail = bitmapConverter.createBitmap();
+        }
+        approximate = true;
+        frameBuffered = true;
+    }
+
+    private void dropFrame() {
+        if(thumbnail != null) {
+            framePool.releaseBitmap(thumbnail);
+            thumbnail = null;
+        }
+        releaseYuvFrame();
+        frameBuffered = false;
+    }
+
+    private void releaseFallbackFrame() {
+        if(fallbackFrame != null) {
+            fallbackFrame.release();
+            fallbackFrame = null;
+        }
+        fallbackConverter = null;
+    }
+
+    /**
+     * Describes the decoded frame in {@link #layout} from the input and output formats, and picks the
+     * {@link #converter} for the output color format.
+     */
+    private void updateLayout() {
+        if(outputFormat == null) {
+            outputFormat = mediaCodec.getOutputFormat();
+        }
+        int inputWidth = decodeWidth;
+        int inputHeight = decodeHeight;
         int outputWidth = outputFormat.getInteger(android.media.MediaFormat.KEY_WIDTH);
         int outputHeight = outputFormat.getInteger(android.media.MediaFormat.KEY_HEIGHT);
-        rotation = customFormat.rotation;
-        int stride = outputFormat.getInteger("stride");
-        int slice = outputFormat.getInteger("slice-height");
+        if(decodeWidth != streamWidth || decodeHeight != streamHeight) {
+            if(outputWidth >= streamWidth && outputHeight >= streamHeight) {
+                // the decoder took the size from the stream, the frame is full size after all
+                Log.w("ThumbLog", "Decoder ignored the reduced size, decoding at " + outputWidth + "x" + outputHeight);
+                addFullSizeDecoder(pooledCodec.name);
+                inputWidth = streamWidth;
+                inputHeight = streamHeight;
+            }
+            else {
+                // some decoders round the reduced size down
+                inputWidth = Math.min(inputWidth, outputWidth);
+                inputHeight = Math.min(inputHeight, outputHeight);
+            }
+        }
+        rotation = Orientation.normalize(customFormat.rotation);
+        // not every decoder reports its padding, assume none then
+        int stride = outputFormat.containsKey("stride") ? outputFormat.getInteger("stride") : inputWidth;
+        int slice = outputFormat.containsKey("slice-height") ? outputFormat.getInteger("slice-height") : inputHeight;
+        stride = Math.max(stride, inputWidth);
+        slice = Math.max(slice, inputHeight);
 
         Log.i("ThumbLog", " stride" + stride + " slice " + slice);
         Log.i("ThumbLog", "OutWidth " + outputWidth + " OutHeight " + outputHeight);
         Log.i("ThumbLog", "InputWidth " + inputWidth + " InputHeight " + inputHeight + " rotation " + rotation);
-        //width = stride;
-        //height = slice;
-
-        // check output color format and convert to rgb pixel array
-        int[] pixels = null;
-        boolean colorFormatNotFound = false;
-        if(outputFormat != null) {
-            Log.i("ThumbLog", "OutputFormat found");
-            int colorFormat = outputFormat.getInteger(android.media.MediaFormat.KEY_COLOR_FORMAT);
-            if(colorFormat != inputColorFormat) {
-                Log.w("ThumbLog", "Configure colorFormat not same as output color format");
-            }
-            switch(colorFormat) {
-                case MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar :
-                    Log.i("ThumbLog", "ColorFornat planar");
-                    pixels = convertYUV420PlanarToARGB(byteArray, inputWidth, inputHeight, stride, slice);
-                    break;
-                case MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar :
-                    Log.i("ThumbLog", "ColorFomrat semiplanar");
-                    pixels = convertYUV420SemiPlanarToARGB(byteArray, inputWidth, inputHeight, stride, slice);
-                    break;
-                default :
-                    colorFormatNotFound = true;
-                    Log.i("ThumbLog", "Color format not found " + colorFormat);
+
+        int colorFormat = outputFormat.containsKey(android.media.MediaFormat.KEY_COLOR_FORMAT)
+                ? outputFormat.getInteger(android.media.MediaFormat.KEY_COLOR_FORMAT) : inputColorFormat;
+        if(colorFormat != inputColorFormat) {
+            Log.w("ThumbLog", "Configure colorFormat not same as output color format");
+        }
+        converter = FormatConverters.get(colorFormat);
+        if(converter == null) {
+            // unknown vendor layouts can still be read through the image planes, otherwise assume
+            // YUV420SemiPlanar
+            if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                converter = FormatConverters.get(MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Flexible);
+            }
+            else {
+                converter = FormatConverters.get(MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar);
             }
+            Log.w("ThumbLog", "Color format not found " + colorFormat + ", reading it as " + converter);
         }
-        else { //assume YUV420SemiPlanar
-            pixels = convertYUV420SemiPlanarToARGB(byteArray, inputWidth, inputHeight, stride, slice);
+        else {
+            Log.i("ThumbLog", "Color format " + converter);
         }
-        if(colorFormatNotFound) {
-            pixels = convertYUV420SemiPlanarToARGB(byteArray, inputWidth, inputHeight, stride, slice);
+        converter.setLayout(layout, inputWidth, inputHeight, stride, slice);
+    }
+
+    /**
+     * Reads the decoded frame from the output image into {@link #unpacked}, for formats whose buffer
+     * layout is only described by the image planes.
+     *
+     * @return The frame, described by {@link #layout}, or null if the codec has no image for it.
+     */
+    private ByteBuffer unpackImage(int outputIndex) {
+        if(Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return null;
         }
-        Log.i("ThumbLog", "Received Pixels " + pixels.length);
-        Bitmap bmp = Bitmap.createBitmap(inputWidth, inputHeight, Bitmap.Config.ARGB_8888);
-        bmp.setPixels(pixels, 0, inputWidth, 0, 0, inputWidth, inputHeight);
-        pixels = null;
-        if (bmp != null) {
-            thumbnail = bmp;
-            Log.i("ThumbLog", "Created thumbnail");
+        Image image = getOutputImageSDK21(outputIndex);
+        if(image == null) {
+            Log.w("ThumbLog", "No output image, reading the buffer as " + layout);
+            return null;
+        }
+        try {
+            unpacked = framePool.acquireBytes(converter.getImageSize(layout.width, layout.height));
+            converter.unpack(image, layout.width, layout.height, unpacked, layout);
         }
-        else if (bmp == null) {
-            Log.e("ThumbLog", "Could not create bitmap");
+        finally {
+            image.close();
         }
-        //saveBitmapToFile();
+        return ByteBuffer.wrap(unpacked);
     }
 
-    private void saveBitmapToFile() {
-        String filePath = Environment.getExternalStorageDirectory().getAbsolutePath() + "/thumb.png";
-        File file = new File(filePath);
-        try {
-            FileOutputStream fout = new FileOutputStream(file);
-            thumbnail.compress(Bitmap.CompressFormat.PNG, 85, fout);
-        }
-        catch (FileNotFoundException ex) {
-            Log.e("ThumbLog", "SaveBitmap fail " + ex);
+    private void releaseUnpacked() {
+        if(unpacked != null) {
+            framePool.releaseBytes(unpacked);
+            unpacked = null;
         }
     }
 
-    private int[] getPixelsFromByteBuffer(byte[] buffer) {
-        IntBuffer intBuffer = ByteBuffer.wrap(buffer).order(ByteOrder.BIG_ENDIAN).asIntBuffer();
-        int[] array = new int[intBuffer.remaining()];
-        intBuffer.get(array);
-        return array;
+    /**
+     * Copies the decoded planes into a pooled buffer, keeping their layout, so that the codec buffer
+     * can be released.
+     */
+    private YuvFrame copyBuffer(ByteBuffer decodedBuffer, long presentationTimeUs) {
+        byte[] data;
+        if(unpacked != null) {
+            // read from the image planes already, hand the packed frame out as it is
+            data = unpacked;
+            unpacked = null;
+        }
+        else {
+            data = framePool.acquireBytes(decodedBuffer.remaining());
+            decodedBuffer.duplicate().get(data);
+        }
+        return new YuvFrame(data, new YuvLayout().set(layout), presentationTimeUs, rotation, framePool);
     }
 
     @TargetApi(21)
@@ -443,229 +1139,245 @@ public final class CustomFrameRetriever {
         return mediaCodec.getOutputBuffer(bufferIndex);
     }
 
+    @TargetApi(21)
+    private Image getOutputImageSDK21(int bufferIndex) {
+        return mediaCodec.getOutputImage(bufferIndex);
+    }
+
+    private ByteBuffer getOutputBuffer(int bufferIndex) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP){
+            return getOutputBufferSDK21(bufferIndex);
+        }
+        return outputBuffers[bufferIndex];
+    }
+
     public Bitmap getFrame() {
         return thumbnail;
     }
 
-    public static int[] convertYUV420PlanarToARGB(byte[] data, int width, int height) {
-        int size = width * height;
-        int offset = size;
-        int[] pixels = new int[size];
-        int u, v, y1, y2, y3, y4;
-        for(int i=0, k=0; i < size; i+=2, k+=1) {
-            y1 = data[i] & 0xff;
-            y2 = data[i+1] & 0xff;
-            y3 = data[width+i] & 0xff;
-            y4 = data[width+i+1] & 0xff;
-
-            u = data[offset+k] & 0xff;
-            v = data[offset+k+(size/4)] & 0xff;
-            u = u - 128;
-            v = v - 128;
-
-            pixels[i] = convertYUVtoRGB(y1, u, v);
-            pixels[i+1] = convertYUVtoRGB(y2, u, v);
-            pixels[width+i] = convertYUVtoRGB(y3, u, v);
-            pixels[width+i+1] = convertYUVtoRGB(y4, u, v);
-
-            if (i!=0 && (i+2) % width == 0)
-                i += width;
-        }
+    /**
+     * Returns the frame decoded by {@link #prepareYuv(long, ClipExtractor)} and hands its ownership to
+     * the caller, who must {@link YuvFrame#release()} it.
+     */
+    public YuvFrame takeYuvFrame() {
+        YuvFrame frame = yuvFrame;
+        yuvFrame = null;
+        return frame;
+    }
 
-        return pixels;
+    /**
+     * Returns the frame and hands its ownership to the caller, so that {@link #release()} does not
+     * return it to the pool. Callers done with the frame can hand it back with
+     * {@link FramePool#releaseBitmap(Bitmap)}.
+     */
+    public Bitmap takeFrame() {
+        Bitmap frame = thumbnail;
+        thumbnail = null;
+        return frame;
+    }
 
+    public static int[] convertYUV420PlanarToARGB(byte[] data, int width, int height) {
+        return convertYUV420PlanarToARGB(data, width, height, width, height);
     }
 
     public static int[] convertYUV420PlanarToARGB(byte[] data, int width, int height, int stride, int slice) {
-        int size = stride * height;
-        int offset = stride * slice;
         int[] pixels = new int[width * height];
-        Log.i("ThumbLog", "Conversion start");
-        int u, v, y1, y2, y3, y4, row;
-        row = 0;
-        for(int i=0, k=0; i < size; i+=2, k+=1) {
-            y1 = data[i] & 0xff;
-            y2 = data[i+1] & 0xff;
-            y3 = data[stride+i] & 0xff;
-            y4 = data[stride+i+1] & 0xff;
-
-            u = data[offset+k] & 0xff;
-            v = data[offset+k+(offset/4)] & 0xff;
-            u = u - 128;
-            v = v - 128;
-
-            pixels[i] = convertYUVtoRGB(y1, u, v);
-            pixels[i+1] = convertYUVtoRGB(y2, u, v);
-            pixels[width+i] = convertYUVtoRGB(y3, u, v);
-            pixels[width+i+1] = convertYUVtoRGB(y4, u, v);
-
-            if(i != 0 && (i - (row * stride) + 2) % width == 0) {
-                i += 2 * stride - width;
-                row += 2;
-                k += (stride - width) / 2;
-                //Log.i("ThumbLog", "i " + i + " k " + k + " size " + size + " offset " + offset);
-            }
-        }
-        Log.i("ThumbLog", "Conversion end");
+        YuvConverter.convertPlanar(data, width, height, stride, slice, pixels, 0);
         return pixels;
     }
 
     public static int[] convertYUV420SemiPlanarToARGB(byte [] data, int width, int height) {
-        int size = width * height;
-        int offset = size;
-        int[] pixels = new int[size];
-        int u, v, y1, y2, y3, y4;
-
-        // i percorre os Y and the final pixels
-        // k percorre os pixles U e V
-        for(int i=0, k=0; i < size; i+=2, k+=2) {
-            y1 = data[i] & 0xff;
-            y2 = data[i+1] & 0xff;
-            y3 = data[width+i] & 0xff;
-            y4 = data[width+i+1] & 0xff;
-
-            u = data[offset+k] & 0xff;
-            v = data[offset+k+1] & 0xff;
-            u = u - 128;
-            v = v - 128;
-
-            pixels[i] = convertYUVtoRGB(y1, u, v);
-            pixels[i+1] = convertYUVtoRGB(y2, u, v);
-            pixels[width+i] = convertYUVtoRGB(y3, u, v);
-            pixels[width+i+1] = convertYUVtoRGB(y4, u, v);
-
-            if (i!=0 && (i+2) % width == 0)
-                i += width;
-        }
-
-        return pixels;
+        return convertYUV420SemiPlanarToARGB(data, width, height, width, height);
     }
 
     public static int[] convertYUV420SemiPlanarToARGB(byte[] data, int width, int height, int stride, int slice) {
-        int size = stride * height;
-        int offset = slice * stride;
         int[] pixels = new int[width * height];
-        int u,v,y1,y2,y3,y4,row;
-        Log.i("ThumbLog", "Conversion start");
-        row = 0;
-        for(int i = 0, k = 0; i < size; i += 2, k += 2) {
-            y1 = data[i] & 0xff;
-            y2 = data[i+1] & 0xff;
-            y3 = data[stride+i] & 0xff;
-            y4 = data[stride+i+1] & 0xff;
-
-            u = data[offset+k] & 0xff;
-            v = data[offset+k+1] & 0xff;
-            u = u - 128;
-            v = v - 128;
-
-            pixels[i] = convertYUVtoRGB(y1, u, v);
-            pixels[i+1] = convertYUVtoRGB(y2, u, v);
-            pixels[width+i] = convertYUVtoRGB(y3, u, v);
-            pixels[width+i+1] = convertYUVtoRGB(y4, u, v);
-
-            if(i != 0 && (i - (row * stride) + 2) % width == 0) {
-                i += 2 * stride - width;
-                row += 2;
-                k += (stride - width);
-                //Log.i("ThumbLog", "i " + i + " k " + k + " size " + size + " offset " + offset);
-            }
-        }
-        Log.i("ThumbLog", "Conversion Complete");
+        YuvConverter.convertSemiPlanar(data, width, height, stride, slice, pixels, 0);
         return pixels;
     }
 
-    public static byte[] convertYUV420PlanarToARGBByte(byte[] data, int width, int height) {
-        int size = width * height;
-        int offset = size;
-        byte[] bytepixels = new byte[size * 4];
-
-        int u, v, y1, y2, y3, y4;
-        for(int i=0, k=0; i < size; i+=2, k+=1) {
-            y1 = data[i] & 0xff;
-            y2 = data[i+1] & 0xff;
-            y3 = data[width+i] & 0xff;
-            y4 = data[width+i+1] & 0xff;
+    /**
+     * A decoded frame of a batch waiting for conversion, or a request for another copy of the previous
+     * frame.
+     */
+    private static final class PendingFrame {
+        static final PendingFrame END = new PendingFrame(-1, 0, null, null, false);
+
+        final int index;
+        final long timeUs;
+        final YuvFrame frame;
+        final FormatConverter converter;
+        final boolean duplicate;
+
+        PendingFrame(int index, long timeUs, YuvFrame frame, FormatConverter converter, boolean duplicate) {
+            this.index = index;
+            this.timeUs = timeUs;
+            this.frame = frame;
+            this.converter = converter;
+            this.duplicate = duplicate;
+        }
+    }
 
-            u = data[offset+k] & 0xff;
-            v = data[offset+k+(size/4)] & 0xff;
-            u = u - 128;
-            v = v - 128;
+    /**
+     * Converts the frames of a batch into bitmaps on its own thread and hands them to the callback, in
+     * the order they were decoded. The decoding thread blocks in {@link #put(PendingFrame)} while
+     * {@link #PIPELINE_DEPTH} frames are waiting.
+     */
+    private final class ConversionStage implements Runnable {
+        private final ArrayBlockingQueue<PendingFrame> queue = new ArrayBlockingQueue<>(PIPELINE_DEPTH);
+        private final ClipExtractor.FrameCallback callback;
+        private final Thread thread;
+        private Bitmap lastFrame;
+        // thrown by the callback, rethrown on the decoding thread
+        private volatile RuntimeException failure;
+
+        ConversionStage(ClipExtractor.FrameCallback callback) {
+            this.callback = callback;
+            thread = new Thread(this, "FrameConverter");
+            thread.start();
+        }
 
-            convertYUVtoRGBByte(y1, u, v, bytepixels, i*4); // pixels[i] =
-            convertYUVtoRGBByte(y2, u, v, bytepixels, (i+1)*4); // pixels[i+1] =
-            convertYUVtoRGBByte(y3, u, v, bytepixels, (width + i)*4); // pixels[width+i] =
-            convertYUVtoRGBByte(y4, u, v, bytepixels, (width+i+1)*4); // pixels[width+i+1] =
+        void put(PendingFrame pending) {
+            boolean interrupted = false;
+            while(true) {
+                try {
+                    queue.put(pending);
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if(interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
 
-            if (i!=0 && (i+2) % width == 0)
-                i += width;
+        /**
+         * Waits until every queued frame has been handed to the callback.
+         */
+        void finish() {
+            put(PendingFrame.END);
+            boolean interrupted = false;
+            while(thread.isAlive()) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if(interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            if(failure != null) {
+                throw failure;
+            }
         }
 
-        return bytepixels;
+        @Override
+        public void run() {
+            while(true) {
+                PendingFrame pending;
+                try {
+                    pending = queue.take();
+                } catch (InterruptedException e) {
+                    continue;
+                }
+                if(pending == PendingFrame.END) {
+                    break;
+                }
+                Bitmap frame;
+                if(pending.duplicate) {
+                    frame = lastFrame == null ? null : lastFrame.copy(lastFrame.getConfig(), true);
+                }
+                else {
+                    frame = convert(pending);
+                    lastFrame = frame;
+                }
+                if(failure != null) {
+                    // keep draining so that decoding does not block, the frames go nowhere
+                    if(frame != null && !pending.duplicate) {
+                        framePool.releaseBitmap(frame);
+                        lastFrame = null;
+                    }
+                    continue;
+                }
+                try {
+                    callback.onFrame(pending.index, pending.timeUs, frame);
+                } catch (RuntimeException e) {
+                    Log.e("ThumbLog", "Batch: frame callback failed", e);
+                    failure = e;
+                }
+            }
+            lastFrame = null;
+        }
 
+        private Bitmap convert(PendingFrame pending) {
+            YuvFrame frame = pending.frame;
+            if(frame == null) {
+                return null;
+            }
+            try {
+                bitmapConverter.convert(ByteBuffer.wrap(frame.data), frame.layout, pending.converter, frame.rotation);
+                return bitmapConverter.createBitmap();
+            } catch (RuntimeException e) {
+                Log.e("ThumbLog", "Batch: could not convert the frame at " + pending.timeUs, e);
+                bitmapConverter.release();
+                return null;
+            }
+            finally {
+                frame.release();
+            }
+        }
     }
 
-    public static byte[] convertYUV420SemiPlanarToARGBByte(byte[] data, int width, int height) {
-        int size = width * height;
-        int offset = size;
-        byte[] pixels = new byte[size*4];
-        int u, v, y1, y2, y3, y4;
-
-        // i percorre os Y and the final pixels
-        // k percorre os pixles U e V
-        for(int i=0, k=0; i < size; i+=2, k+=2) {
-            y1 = data[i] & 0xff;
-            y2 = data[i+1] & 0xff;
-            y3 = data[width+i] & 0xff;
-            y4 = data[width+i+1] & 0xff;
+    /**
+     * A callback of the asynchronous decoder, handed from the callback thread to the decoding one.
+     */
+    private static final class CodecEvent {
+        static final int INPUT = 0;
+        static final int OUTPUT = 1;
+        static final int FORMAT = 2;
+        static final int ERROR = 3;
+
+        final int type;
+        int index;
+        int offset;
+        int size;
+        long presentationTimeUs;
+        int flags;
+        android.media.MediaFormat format;
+        Exception error;
+
+        private CodecEvent(int type) {
+            this.type = type;
+        }
 
-            u = data[offset+k] & 0xff;
-            v = data[offset+k+1] & 0xff;
-            u = u - 128;
-            v = v - 128;
+        static CodecEvent input(int index) {
+            CodecEvent event = new CodecEvent(INPUT);
+            event.index = index;
+            return event;
+        }
 
-            convertYUVtoRGBByte(y1, u, v, pixels, i*4); // pixels[i] =
-            convertYUVtoRGBByte(y2, u, v, pixels, (i + 1) * 4); // pixels[i+1] =
-            convertYUVtoRGBByte(y3, u, v, pixels, (width+i)*4); // pixels[width+i] =
-            convertYUVtoRGBByte(y4, u, v, pixels, (width+i+1)*4); // pixels[width+i+1] =
+        static CodecEvent output(int index, MediaCodec.BufferInfo info) {
+            CodecEvent event = new CodecEvent(OUTPUT);
+            event.index = index;
+            event.offset = info.offset;
+            event.size = info.size;
+            event.presentationTimeUs = info.presentationTimeUs;
+            event.flags = info.flags;
+            return event;
+        }
 
-            if (i!=0 && (i+2) % width == 0)
-                i += width;
+        static CodecEvent format(android.media.MediaFormat format) {
+            CodecEvent event = new CodecEvent(FORMAT);
+            event.format = format;
+            return event;
         }
-        return pixels;
-    }
 
-    private static void convertYUVtoRGBByte(int y, int u, int v, byte[] byteArr, int position) {
-        int r,g,b;
-        r = y + (int) 1.402f * v;
-        g = y - (int) (0.344f * u + 0.714f * v);
-        b = y + (int) 1.772f * u;
-        r = r > 255 ? 255 : r < 0 ? 0 : r;
-        g = g > 255 ? 255 : g < 0 ? 0 : g;
-        b = b > 255 ? 255 : b < 0 ? 0 : b;
-
-        byteArr[position] = (byte)0xff;
-        byteArr[position+1] = (byte) r;
-        byteArr[position+2] = (byte) g;
-        byteArr[position+3] = (byte) b;
-    }
-
-    private static int convertYUVtoRGB(int y, int u, int v) {
-        int r,g,b;
-        r = y + (int) 1.402f * v;
-        g = y - (int) (0.344f * u + 0.714f * v);
-        b = y + (int) 1.772f * u;
-        r = r > 255 ? 255 : r < 0 ? 0 : r;
-        g = g > 255 ? 255 : g < 0 ? 0 : g;
-        b = b > 255 ? 255 : b < 0 ? 0 : b;
-        return 0xff000000 | (r << 16) | (g << 8) | b;
-    }
-
-    private static Bitmap handleRotation(Bitmap sourceBitmap, int rotation) {
-        int width = sourceBitmap.getWidth();
-        int height = sourceBitmap.getHeight();
-        Matrix matrix = new Matrix();
-        matrix.postRotate(rotation);
-        return Bitmap.createBitmap(sourceBitmap, 0, 0, width, height, matrix, true);
+        static CodecEvent error(Exception error) {
+            CodecEvent event = new CodecEvent(ERROR);
+            event.error = error;
+            return event;
+        }
     }
 }
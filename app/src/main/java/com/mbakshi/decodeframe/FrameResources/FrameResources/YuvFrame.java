@@ -0,0 +1,47 @@
+package com.mbakshi.decodeframe.FrameResources.FrameResources;
+
+import com.mbakshi.decodeframe.FrameResources.Util.Allocate.FramePool;
+import com.mbakshi.decodeframe.FrameResources.Util.ColorUtil.YuvLayout;
+
+/**
+ * A decoded frame as the decoder produced it, for consumers that work on the luma and chroma planes
+ * directly.
+ * <p>
+ * The planes are kept with the decoder's layout, row padding included, and are described by
+ * {@link #layout}: luma sample {@code (x, y)} is at
+ * {@code layout.yOffset + y * layout.yRowStride + x * layout.yPixelStride} in {@link #data}, and its U and V samples at
+ * {@code layout.uOffset + (y / 2) * layout.chromaRowStride + (x / 2) * layout.chromaPixelStride}
+ * (and the same from {@code layout.vOffset}). The buffer comes from a {@link FramePool} and must be
+ * handed back with {@link #release()} once processed.
+ */
+public final class YuvFrame {
+    /** The decoded planes. Only valid until {@link #release()} is called. */
+    public final byte[] data;
+    /** Where the planes are in {@link #data}, and the color format they are in. */
+    public final YuvLayout layout;
+    /** The presentation time of the frame, in microseconds. */
+    public final long timeUs;
+    /** The clockwise rotation of the track. It has not been applied to the planes. */
+    public final int rotation;
+
+    private final FramePool pool;
+    private boolean released;
+
+    YuvFrame(byte[] data, YuvLayout layout, long timeUs, int rotation, FramePool pool) {
+        this.data = data;
+        this.layout = layout;
+        this.timeUs = timeUs;
+        this.rotation = rotation;
+        this.pool = pool;
+    }
+
+    /**
+     * Returns the planes to the pool. The frame must not be used afterwards.
+     */
+    public synchronized void release() {
+        if (!released) {
+            released = true;
+            pool.releaseBytes(data);
+        }
+    }
+}
@@ -28,7 +28,7 @@ public class Loadable implements Runnable {
     private int trackIndex;
     private String trackType;
 
-    private boolean pendingLoadCancel;
+    private volatile boolean pendingLoadCancel;
     private boolean loadCancelled;
     private boolean loadFinished;
 
@@ -23,8 +23,8 @@ public class SampleLoader {
     private Allocator allocator;
     private Parser parser;
 
-    private Thread currentThread;
-    private Loadable currentAsyncLoadable;
+    private volatile Thread currentThread;
+    private volatile Loadable currentAsyncLoadable;
 
     private LoaderCallback callback;
 
@@ -57,6 +57,35 @@ public class SampleLoader {
         }
     }
 
+    /**
+     * Loads from {@code offset} on the calling thread only, until the parser runs out of samples to read,
+     * without continuing in the background.
+     */
+    public void loadSync(long offset, int trackIndex) {
+        Log.i(TAG, "LoadSync:offset " + offset);
+        // kept as the current loadable so that cancel reaches it
+        currentAsyncLoadable = new Loadable(this, offset, dataSource, sourceUri, allocator, parser, trackIndex, trackType);
+        currentAsyncLoadable.runSync();
+        reset();
+    }
+
+    /**
+     * Asks the current load to stop without waiting for it, and interrupts the loader thread out of
+     * blocking reads. Can be called from any thread. {@link #stopLoading()} still has to be called
+     * before loading again.
+     */
+    public void cancel() {
+        Log.i(TAG, "Cancel");
+        Loadable loadable = currentAsyncLoadable;
+        if(loadable != null) {
+            loadable.cancelLoading();
+        }
+        Thread thread = currentThread;
+        if(thread != null) {
+            thread.interrupt();
+        }
+    }
+
     public synchronized void stopLoading() {
         Log.i(TAG, "StopLoading");
         if(currentAsyncLoadable != null && !currentAsyncLoadable.isLoadFinished()) {
@@ -4,6 +4,9 @@ import com.mbakshi.decodeframe.FrameResources.Assertions;
 import com.mbakshi.decodeframe.FrameResources.Constants;
 import com.mbakshi.decodeframe.FrameResources.Util.Utilities;
 
+import java.util.Arrays;
+import java.util.Comparator;
+
 /**
  * Created by mbakshi on 20/08/15.
  */
@@ -22,6 +25,11 @@ public final class TrackSampleTable {
     /** Sample flags. */
     public final int[] flags;
 
+    // timestampsUs is in decode order, with B-frames it is not sorted. Then these hold the timestamps
+    // sorted and the sample of each, otherwise they are null and timestampsUs is searched directly.
+    private final long[] presentationTimesUs;
+    private final int[] presentationSamples;
+
     public TrackSampleTable(
             long[] offsets, int[] sizes, long[] timestampsUs, int[] flags) {
         Assertions.checkArgument(sizes.length == timestampsUs.length);
@@ -33,6 +41,31 @@ public final class TrackSampleTable {
         this.timestampsUs = timestampsUs;
         this.flags = flags;
         sampleCount = offsets.length;
+
+        if(isSorted(timestampsUs)) {
+            presentationTimesUs = null;
+            presentationSamples = null;
+        }
+        else {
+            Integer[] order = new Integer[sampleCount];
+            for(int i = 0; i < sampleCount; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer lhs, Integer rhs) {
+                    long lhsUs = TrackSampleTable.this.timestampsUs[lhs];
+                    long rhsUs = TrackSampleTable.this.timestampsUs[rhs];
+                    return lhsUs < rhsUs ? -1 : (lhsUs == rhsUs ? lhs - rhs : 1);
+                }
+            });
+            presentationTimesUs = new long[sampleCount];
+            presentationSamples = new int[sampleCount];
+            for(int i = 0; i < sampleCount; i++) {
+                presentationSamples[i] = order[i];
+                presentationTimesUs[i] = timestampsUs[order[i]];
+            }
+        }
     }
 
     /**
@@ -69,6 +102,36 @@ public final class TrackSampleTable {
         return NO_SAMPLE;
     }
 
+    /**
+     * Returns the index of the sample with the latest timestamp at or before the given timestamp,
+     * which is the sample displayed at that time. Samples are compared in presentation order, so this
+     * is right for tables with B-frames too.
+     *
+     * @param timeUs Timestamp at which to find the displayed sample.
+     * @return Index of the sample, or {@link #NO_SAMPLE} if every sample is later.
+     */
+    public int getIndexOfEarlierOrEqualSample(long timeUs) {
+        if(presentationTimesUs == null) {
+            int index = Utilities.binarySearchFloor(timestampsUs, timeUs, true, false);
+            return index < 0 ? NO_SAMPLE : index;
+        }
+        int index = Utilities.binarySearchFloor(presentationTimesUs, timeUs, true, false);
+        return index < 0 ? NO_SAMPLE : presentationSamples[index];
+    }
+
+    /**
+     * Returns the index of the sample presented first, which is not the first sample in decode order
+     * when it has a composition offset.
+     *
+     * @return Index of the sample, or {@link #NO_SAMPLE} if the table is empty.
+     */
+    public int getIndexOfFirstPresentedSample() {
+        if(sampleCount == 0) {
+            return NO_SAMPLE;
+        }
+        return presentationSamples == null ? 0 : presentationSamples[0];
+    }
+
     public int getIndexOfLaterOrEqualClosestSample(long timeUs) {
         int startIndex = Utilities.binarySearchCeil(timestampsUs, timeUs, true, false);
         if(startIndex == timestampsUs.length) {
@@ -76,4 +139,13 @@ public final class TrackSampleTable {
         }
         return startIndex;
     }
+
+    private static boolean isSorted(long[] timestampsUs) {
+        for(int i = 1; i < timestampsUs.length; i++) {
+            if(timestampsUs[i] < timestampsUs[i - 1]) {
+                return false;
+            }
+        }
+        return true;
+    }
 }
@@ -0,0 +1,293 @@
+package com.mbakshi.decodeframe.FrameResources.Util.Allocate;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import com.mbakshi.decodeframe.FrameResources.Assertions;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+/**
+ * A size keyed pool of pixel arrays (int[] for ARGB_8888, short[] for RGB_565, byte[] for 8 bit
+ * samples) and bitmaps for repeated frame extraction.
+ * <p>
+ * Released buffers are kept until their total size exceeds the byte budget, at which point the
+ * least recently released ones are dropped. Pooled bitmaps are recycled when dropped. Buffers handed
+ * out by the pool belong to the caller until they are released again, and must not be used after
+ * being released.
+ */
+public final class FramePool {
+    private static final String TAG = "FramePool";
+
+    /** Default byte budget of {@link #getDefault()}. */
+    public static final int DEFAULT_MAX_BYTES = 16 * 1024 * 1024;
+
+    private static final int KIND_INT = 0;
+    private static final int KIND_SHORT = 1;
+    private static final int KIND_BYTE = 2;
+    private static final int KIND_BITMAP = 3;
+
+    private static FramePool defaultInstance;
+
+    private final HashMap<Key, ArrayDeque<Entry>> entries;
+    /** Pooled entries, least recently released first. */
+    private final LinkedHashSet<Entry> lru;
+
+    private int maxBytes;
+    private int pooledBytes;
+
+    /**
+     * Returns the pool shared by the frame retrieval classes.
+     */
+    public static synchronized FramePool getDefault() {
+        if (defaultInstance == null) {
+            defaultInstance = new FramePool(DEFAULT_MAX_BYTES);
+        }
+        return defaultInstance;
+    }
+
+    /**
+     * @param maxBytes The maximum number of bytes kept in the pool. Buffers in use are not counted.
+     */
+    public FramePool(int maxBytes) {
+        Assertions.checkArgument(maxBytes >= 0);
+        this.maxBytes = maxBytes;
+        entries = new HashMap<>();
+        lru = new LinkedHashSet<>();
+    }
+
+    /**
+     * Returns an array of exactly {@code length} pixels, reused when one is pooled. Its content is
+     * undefined.
+     */
+    public int[] acquirePixels(int length) {
+        Assertions.checkArgument(length > 0);
+        synchronized (this) {
+            Entry entry = take(new Key(KIND_INT, length, 1, null));
+            if (entry != null) {
+                return (int[]) entry.buffer;
+            }
+        }
+        return new int[length];
+    }
+
+    /**
+     * Returns a pixel array to the pool.
+     */
+    public synchronized void releasePixels(int[] pixels) {
+        if (pixels != null) {
+            put(new Entry(new Key(KIND_INT, pixels.length, 1, null), pixels, pixels.length * 4));
+        }
+    }
+
+    /**
+     * Returns an array of exactly {@code length} 16 bit pixels, reused when one is pooled. Its content is
+     * undefined.
+     */
+    public short[] acquireShorts(int length) {
+        Assertions.checkArgument(length > 0);
+        synchronized (this) {
+            Entry entry = take(new Key(KIND_SHORT, length, 1, null));
+            if (entry != null) {
+                return (short[]) entry.buffer;
+            }
+        }
+        return new short[length];
+    }
+
+    /**
+     * Returns a 16 bit pixel array to the pool.
+     */
+    public synchronized void releaseShorts(short[] pixels) {
+        if (pixels != null) {
+            put(new Entry(new Key(KIND_SHORT, pixels.length, 1, null), pixels, pixels.length * 2));
+        }
+    }
+
+    /**
+     * Returns an array of exactly {@code length} bytes, reused when one is pooled. Its content is
+     * undefined.
+     */
+    public byte[] acquireBytes(int length) {
+        Assertions.checkArgument(length > 0);
+        synchronized (this) {
+            Entry entry = take(new Key(KIND_BYTE, length, 1, null));
+            if (entry != null) {
+                return (byte[]) entry.buffer;
+            }
+        }
+        return new byte[length];
+    }
+
+    /**
+     * Returns a byte array to the pool.
+     */
+    public synchronized void releaseBytes(byte[] bytes) {
+        if (bytes != null) {
+            put(new Entry(new Key(KIND_BYTE, bytes.length, 1, null), bytes, bytes.length));
+        }
+    }
+
+    /**
+     * Returns a mutable bitmap of the given size and config, reused when one is pooled. Its content is
+     * undefined.
+     */
+    public Bitmap acquireBitmap(int width, int height, Bitmap.Config config) {
+        Assertions.checkArgument(width > 0 && height > 0 && config != null);
+        synchronized (this) {
+            Entry entry = take(new Key(KIND_BITMAP, width, height, config));
+            if (entry != null) {
+                return (Bitmap) entry.buffer;
+            }
+        }
+        return Bitmap.createBitmap(width, height, config);
+    }
+
+    /**
+     * Returns a bitmap to the pool. Immutable and recycled bitmaps are ignored.
+     */
+    public synchronized void releaseBitmap(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()) {
+            return;
+        }
+        Key key = new Key(KIND_BITMAP, bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+        put(new Entry(key, bitmap, bitmap.getByteCount()));
+    }
+
+    /**
+     * Changes the byte budget, dropping buffers as needed.
+     */
+    public synchronized void setMaxBytes(int maxBytes) {
+        Assertions.checkArgument(maxBytes >= 0);
+        this.maxBytes = maxBytes;
+        trim(maxBytes);
+    }
+
+    /**
+     * Drops the least recently released buffers until at most {@code targetBytes} are pooled.
+     */
+    public synchronized void trim(int targetBytes) {
+        Iterator<Entry> iterator = lru.iterator();
+        while (pooledBytes > targetBytes && iterator.hasNext()) {
+            Entry entry = iterator.next();
+            iterator.remove();
+            ArrayDeque<Entry> sameSize = entries.get(entry.key);
+            sameSize.remove(entry);
+            if (sameSize.isEmpty()) {
+                entries.remove(entry.key);
+            }
+            pooledBytes -= entry.bytes;
+            if (entry.buffer instanceof Bitmap) {
+                ((Bitmap) entry.buffer).recycle();
+            }
+        }
+    }
+
+    /**
+     * Drops every pooled buffer.
+     */
+    public void clear() {
+        trim(0);
+    }
+
+    public synchronized int getPooledBytes() {
+        return pooledBytes;
+    }
+
+    private Entry take(Key key) {
+        ArrayDeque<Entry> sameSize = entries.get(key);
+        if (sameSize == null) {
+            return null;
+        }
+        // The most recently released buffer is the most likely to still be in cache.
+        Entry entry = sameSize.pollLast();
+        if (sameSize.isEmpty()) {
+            entries.remove(key);
+        }
+        lru.remove(entry);
+        pooledBytes -= entry.bytes;
+        return entry;
+    }
+
+    private void put(Entry entry) {
+        if (entry.bytes > maxBytes) {
+            if (entry.buffer instanceof Bitmap) {
+                ((Bitmap) entry.buffer).recycle();
+            }
+            return;
+        }
+        ArrayDeque<Entry> sameSize = entries.get(entry.key);
+        if (sameSize == null) {
+            sameSize = new ArrayDeque<>();
+            entries.put(entry.key, sameSize);
+        }
+        for (Entry pooled : sameSize) {
+            if (pooled.buffer == entry.buffer) {
+                Log.w(TAG, "Buffer released twice " + entry.key);
+                return;
+            }
+        }
+        sameSize.addLast(entry);
+        lru.add(entry);
+        pooledBytes += entry.bytes;
+        trim(maxBytes);
+    }
+
+    private static final class Key {
+        private final int kind;
+        private final int width;
+        private final int height;
+        private final Bitmap.Config config;
+
+        Key(int kind, int width, int height, Bitmap.Config config) {
+            this.kind = kind;
+            this.width = width;
+            this.height = height;
+            this.config = config;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return kind == other.kind && width == other.width && height == other.height && config == other.config;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = kind;
+            result = 31 * result + width;
+            result = 31 * result + height;
+            result = 31 * result + (config == null ? 0 : config.hashCode());
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return kind + ":" + width + "x" + height + " " + config;
+        }
+    }
+
+    /**
+     * A pooled buffer. Identity equality, so that equal sized buffers are distinct entries.
+     */
+    private static final class Entry {
+        private final Key key;
+        private final Object buffer;
+        private final int bytes;
+
+        Entry(Key key, Object buffer, int bytes) {
+            this.key = key;
+            this.buffer = buffer;
+            this.bytes = bytes;
+        }
+    }
+}
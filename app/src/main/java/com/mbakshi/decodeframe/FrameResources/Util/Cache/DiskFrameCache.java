@@ -0,0 +1,440 @@
+package com.mbakshi.decodeframe.FrameResources.Util.Cache;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Rect;
+import android.util.Log;
+
+import com.mbakshi.decodeframe.FrameResources.Assertions;
+import com.mbakshi.decodeframe.FrameResources.Util.Allocate.FramePool;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A cache of extracted frames on disk, kept across restarts, bounded by the bytes of its files.
+ * <p>
+ * Frames are stored PNG compressed, one file per frame, named after the hash of their {@link Key}.
+ * The compression is lossless, a frame read back has the pixels it was stored with, so it stands for
+ * the decoded frame wherever that is cached.
+ * A memory mapped {@link DiskIndex} holds the hash, last access and size of every file, so a lookup
+ * is one probe of the index and one read of the file, without opening the source. Least recently
+ * used files are deleted once the byte budget is exceeded. Files are read, encoded and written
+ * outside the cache's lock, which only guards the index.
+ * <p>
+ * Files are written to a temporary file, synced and renamed, and only then entered in the index. The
+ * index is synced every {@link #SYNC_INTERVAL} changes and on {@link #flush()}; entries it lost in a
+ * crash leave files it does not know about, which are deleted when the cache is opened, and entries
+ * whose files are gone are dropped when they are looked up.
+ */
+public final class DiskFrameCache {
+    private static final String TAG = "DiskFrameCache";
+
+    public static final int DEFAULT_MAX_BYTES = 32 * 1024 * 1024;
+    private static final String DEFAULT_DIRECTORY = "frames";
+
+    private static final String INDEX_NAME = "index";
+    private static final String ENTRY_SUFFIX = ".frame";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final int ENTRY_MAGIC = 0x46524d45;
+
+    private static final int SLOT_COUNT = 4096;
+    // entries are evicted before the table fills up, to keep probes short
+    private static final int MAX_ENTRIES = SLOT_COUNT * 3 / 4;
+    // index changes between syncs
+    private static final int SYNC_INTERVAL = 32;
+
+    private static DiskFrameCache defaultInstance;
+    private static boolean defaultFailed;
+
+    private final File directory;
+    private final MappedByteBuffer buffer;
+    private final DiskIndex index;
+    private int maxBytes;
+    private int unsyncedChanges;
+
+    /**
+     * Returns the cache shared by the extractors, in the app's cache directory, or null if it could
+     * not be opened.
+     */
+    public static synchronized DiskFrameCache getDefault(Context context) {
+        if (defaultInstance == null && !defaultFailed) {
+            try {
+                defaultInstance = new DiskFrameCache(new File(context.getCacheDir(), DEFAULT_DIRECTORY),
+                        DEFAULT_MAX_BYTES);
+            } catch (IOException exc) {
+                Log.e(TAG, "Could not open the frame cache " + exc);
+                defaultFailed = true;
+            }
+        }
+        return defaultInstance;
+    }
+
+    /**
+     * Opens the cache in a directory, creating it if needed. One directory must not be opened twice.
+     *
+     * @param maxBytes The maximum number of file bytes kept.
+     */
+    public DiskFrameCache(File directory, int maxBytes) throws IOException {
+        Assertions.checkArgument(maxBytes >= 0);
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+        int indexSize = DiskIndex.sizeFor(SLOT_COUNT);
+        RandomAccessFile indexFile = new RandomAccessFile(new File(directory, INDEX_NAME), "rw");
+        try {
+            if (indexFile.length() != indexSize) {
+                indexFile.setLength(indexSize);
+            }
+            // the mapping stays valid once the file is closed
+            buffer = indexFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, indexSize);
+        } finally {
+            indexFile.close();
+        }
+        if (!DiskIndex.isFormatted(buffer, SLOT_COUNT)) {
+            Log.i(TAG, "Creating a new index");
+            DiskIndex.format(buffer, SLOT_COUNT);
+            buffer.force();
+        }
+        index = new DiskIndex(buffer, SLOT_COUNT);
+        deleteOrphans();
+        trim(maxBytes);
+        flush();
+        Log.i(TAG, "Opened with " + index.getEntryCount() + " frames, " + index.getTotalSize() + " bytes");
+    }
+
+    /**
+     * Returns the cached frame, or null if there is none. The frame belongs to the caller.
+     */
+    public Bitmap get(Key key) {
+        String name = key.toString();
+        long hash = hash(name);
+        int size;
+        synchronized (this) {
+            size = index.getSize(hash);
+            if (size == -1) {
+                return null;
+            }
+            index.touch(hash);
+        }
+        byte[] data = readEntry(hash, size);
+        if (data == null) {
+            synchronized (this) {
+                // unless the entry was replaced meanwhile, its file is gone
+                if (index.getSize(hash) == size && getEntryFile(hash).length() != size) {
+                    index.remove(hash);
+                    onIndexChanged();
+                }
+            }
+            return null;
+        }
+        return decodeEntry(data, name, key.config);
+    }
+
+    /**
+     * Stores a frame. Luma masks (ALPHA_8 frames), which the compressors do not handle, and frames larger
+     * than the whole budget are not stored.
+     */
+    public void put(Key key, Bitmap frame) {
+        if (frame.getConfig() != Bitmap.Config.RGB_565 && frame.getConfig() != Bitmap.Config.ARGB_8888) {
+            return;
+        }
+        String name = key.toString();
+        long hash = hash(name);
+        byte[] data;
+        try {
+            data = encodeEntry(name, frame);
+        } catch (IOException exc) {
+            Log.e(TAG, "Could not encode " + name + " " + exc);
+            return;
+        }
+        if (data.length > maxBytes || !writeEntry(hash, data)) {
+            return;
+        }
+        synchronized (this) {
+            if (index.getSize(hash) == -1 && index.getEntryCount() >= MAX_ENTRIES) {
+                removeEntry(index.removeLeastRecent());
+            }
+            index.put(hash, data.length);
+            trim(maxBytes);
+            onIndexChanged();
+        }
+    }
+
+    /**
+     * Changes the byte budget, deleting frames as needed.
+     */
+    public synchronized void setMaxBytes(int maxBytes) {
+        Assertions.checkArgument(maxBytes >= 0);
+        this.maxBytes = maxBytes;
+        trim(maxBytes);
+        flush();
+    }
+
+    /**
+     * Deletes the least recently used frames until at most {@code targetBytes} are stored.
+     */
+    public synchronized void trim(long targetBytes) {
+        while (index.getTotalSize() > targetBytes && index.getEntryCount() > 0) {
+            removeEntry(index.removeLeastRecent());
+            unsyncedChanges++;
+        }
+    }
+
+    /**
+     * Deletes every stored frame.
+     */
+    public synchronized void clear() {
+        Log.i(TAG, "Clearing " + index.getTotalSize() + " bytes");
+        trim(0);
+        flush();
+    }
+
+    /**
+     * Writes the index to disk. Called every few changes, and worth calling when the app goes to the
+     * background.
+     */
+    public synchronized void flush() {
+        buffer.force();
+        unsyncedChanges = 0;
+    }
+
+    public synchronized long getCachedBytes() {
+        return index.getTotalSize();
+    }
+
+    private void onIndexChanged() {
+        if (++unsyncedChanges >= SYNC_INTERVAL) {
+            flush();
+        }
+    }
+
+    /**
+     * Deletes the file of an entry just removed from the index.
+     */
+    private void removeEntry(long hash) {
+        // out of the index before the file goes, a crash in between leaves an orphan
+        getEntryFile(hash).delete();
+    }
+
+    /************************************************************************** Entries *****/
+    private static byte[] encodeEntry(String name, Bitmap frame) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(frame.getByteCount() / 2);
+        DataOutputStream output = new DataOutputStream(bytes);
+        output.writeInt(ENTRY_MAGIC);
+        output.writeUTF(name);
+        output.writeInt(frame.getWidth());
+        output.writeInt(frame.getHeight());
+        if (!frame.compress(Bitmap.CompressFormat.PNG, 100, output)) {
+            throw new IOException("Compression failed");
+        }
+        output.flush();
+        return bytes.toByteArray();
+    }
+
+    private static Bitmap decodeEntry(byte[] data, String name, Bitmap.Config config) {
+        int width;
+        int height;
+        int offset;
+        try {
+            DataInputStream input = new DataInputStream(new ByteArrayInputStream(data));
+            if (input.readInt() != ENTRY_MAGIC || !input.readUTF().equals(name)) {
+                // another key with the same hash
+                return null;
+            }
+            width = input.readInt();
+            height = input.readInt();
+            offset = data.length - input.available();
+        } catch (IOException exc) {
+            Log.e(TAG, "Corrupt entry for " + name + " " + exc);
+            return null;
+        }
+        if (width <= 0 || height <= 0) {
+            return null;
+        }
+        if (config == null) {
+            config = Bitmap.Config.ARGB_8888;
+        }
+        FramePool framePool = FramePool.getDefault();
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = config;
+        // RGB_565 frames come back exactly, their 8 bit expansion truncates to the same values
+        options.inDither = false;
+        options.inMutable = true;
+        options.inBitmap = framePool.acquireBitmap(width, height, config);
+        Bitmap frame;
+        try {
+            frame = BitmapFactory.decodeByteArray(data, offset, data.length - offset, options);
+        } catch (IllegalArgumentException exc) {
+            // the pooled bitmap could not be decoded into
+            framePool.releaseBitmap(options.inBitmap);
+            options.inBitmap = null;
+            frame = BitmapFactory.decodeByteArray(data, offset, data.length - offset, options);
+        }
+        if (frame == null && options.inBitmap != null) {
+            framePool.releaseBitmap(options.inBitmap);
+        }
+        return frame;
+    }
+
+    private byte[] readEntry(long hash, int size) {
+        File file = getEntryFile(hash);
+        if (file.length() != size) {
+            return null;
+        }
+        byte[] data = new byte[size];
+        DataInputStream input = null;
+        try {
+            input = new DataInputStream(new FileInputStream(file));
+            input.readFully(data);
+            return data;
+        } catch (IOException exc) {
+            Log.e(TAG, "Could not read " + file + " " + exc);
+            return null;
+        } finally {
+            closeQuietly(input);
+        }
+    }
+
+    private boolean writeEntry(long hash, byte[] data) {
+        File file = getEntryFile(hash);
+        File temp = null;
+        FileOutputStream output = null;
+        try {
+            // unique, puts of the same key may write at once
+            temp = File.createTempFile(file.getName(), TEMP_SUFFIX, directory);
+            output = new FileOutputStream(temp);
+            output.write(data);
+            // on disk before the rename makes it visible
+            output.getFD().sync();
+        } catch (IOException exc) {
+            Log.e(TAG, "Could not write " + file + " " + exc);
+            closeQuietly(output);
+            if (temp != null) {
+                temp.delete();
+            }
+            return false;
+        }
+        closeQuietly(output);
+        if (!temp.renameTo(file)) {
+            Log.e(TAG, "Could not rename " + temp);
+            temp.delete();
+            return false;
+        }
+        return true;
+    }
+
+    private File getEntryFile(long hash) {
+        return new File(directory, String.format("%016x", hash) + ENTRY_SUFFIX);
+    }
+
+    /**
+     * Deletes temporary files and files the index does not refer to, left by a crash.
+     */
+    private void deleteOrphans() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            boolean orphan;
+            if (name.endsWith(TEMP_SUFFIX)) {
+                orphan = true;
+            } else if (name.endsWith(ENTRY_SUFFIX)) {
+                long hash = parseHash(name.substring(0, name.length() - ENTRY_SUFFIX.length()));
+                orphan = hash == 0 || index.getSize(hash) == -1;
+            } else {
+                orphan = false;
+            }
+            if (orphan) {
+                Log.i(TAG, "Deleting orphan " + name);
+                file.delete();
+            }
+        }
+    }
+
+    private static long parseHash(String hex) {
+        if (hex.length() != 16) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(hex.substring(0, 8), 16) << 32 | Long.parseLong(hex.substring(8), 16);
+        } catch (NumberFormatException exc) {
+            return 0;
+        }
+    }
+
+    /**
+     * 64 bit FNV-1a hash of a key, never 0 which marks empty slots.
+     */
+    private static long hash(String name) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < name.length(); i++) {
+            hash ^= name.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash == 0 ? 1 : hash;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException exc) {
+                // nothing to do
+            }
+        }
+    }
+
+    /**
+     * Identifies a frame by its request, so that it can be found before the source is opened.
+     */
+    public static final class Key {
+        public final SourceFingerprint source;
+        /** The requested time, not the time of the frame, which is only known once the source is parsed. */
+        public final long timeUs;
+        public final int seekMode;
+        public final int width;
+        public final int height;
+        public final boolean scale;
+        public final Bitmap.Config config;
+        /** Region of the decoded frame, null for all of it. */
+        public final Rect crop;
+
+        public Key(SourceFingerprint source, long timeUs, int seekMode, int width, int height, boolean scale,
+                   Bitmap.Config config, Rect crop) {
+            Assertions.checkArgument(source != null);
+            this.source = source;
+            this.timeUs = timeUs;
+            this.seekMode = seekMode;
+            this.width = width;
+            this.height = height;
+            this.scale = scale;
+            this.config = config;
+            this.crop = crop == null ? null : new Rect(crop);
+        }
+
+        /**
+         * The identity stored with the frame on disk.
+         */
+        @Override
+        public String toString() {
+            return source + "|" + timeUs + "|" + seekMode + "|" + width + "x" + height + "|" + scale + "|" + config
+                    + "|" + (crop == null ? "full" : crop.left + "," + crop.top + "," + crop.right + "," + crop.bottom);
+        }
+    }
+}
@@ -0,0 +1,346 @@
+package com.mbakshi.decodeframe.FrameResources.Util.Cache;
+
+import com.mbakshi.decodeframe.FrameResources.Assertions;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The index of a {@link DiskFrameCache}: an open addressed hash table of entries, each a 64 bit key
+ * hash, a last access stamp and a file size, laid out in a buffer that the cache memory maps.
+ * <p>
+ * Removed entries leave tombstones so that probe sequences through them keep working. Inserts reuse
+ * the first tombstone on their probe sequence, and the table is rehashed in place once entries and
+ * tombstones fill seven eighths of it, so that misses end at an empty slot after a few probes as long
+ * as the caller keeps the entries well below that. Recency is kept in memory as well, so the least
+ * recently used entry is found without scanning the table.
+ * <p>
+ * Slots carry a checksum of their hash and size. A slot torn by a crash reads as a tombstone, and a
+ * crash during a rehash loses entries, never corrupts the table.
+ */
+final class DiskIndex {
+    // header: magic, version, slot count, unused, access clock
+    static final int HEADER_SIZE = 24;
+    // slot: key hash, last access, file size, checksum of hash and size
+    static final int SLOT_SIZE = 24;
+
+    private static final int MAGIC = 0x46494458;
+    private static final int VERSION = 3;
+    private static final int CLOCK_OFFSET = 16;
+
+    private static final int SLOT_EMPTY = 0;
+    private static final int SLOT_USED = 1;
+    private static final int SLOT_DELETED = 2;
+    private static final int SIZE_DELETED = -1;
+
+    private final ByteBuffer buffer;
+    private final int slotCount;
+    // slots of the entries by hash, least recently used first
+    private final LinkedHashMap<Long, Integer> recency;
+    private long totalSize;
+    private int tombstones;
+    private long clock;
+
+    /**
+     * Returns the number of bytes of the index of a table of {@code slotCount} slots.
+     */
+    static int sizeFor(int slotCount) {
+        return HEADER_SIZE + slotCount * SLOT_SIZE;
+    }
+
+    /**
+     * Whether a buffer holds an index of {@code slotCount} slots written by this version.
+     */
+    static boolean isFormatted(ByteBuffer buffer, int slotCount) {
+        return buffer.capacity() == sizeFor(slotCount) && buffer.getInt(0) == MAGIC && buffer.getInt(4) == VERSION
+                && buffer.getInt(8) == slotCount;
+    }
+
+    /**
+     * Writes an empty index into a buffer of {@link #sizeFor(int)} bytes.
+     */
+    static void format(ByteBuffer buffer, int slotCount) {
+        Assertions.checkArgument(buffer.capacity() == sizeFor(slotCount));
+        // every slot empty, the header last
+        for (int offset = HEADER_SIZE; offset < buffer.capacity(); offset += 8) {
+            buffer.putLong(offset, 0);
+        }
+        buffer.putLong(CLOCK_OFFSET, 0);
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, VERSION);
+        buffer.putInt(8, slotCount);
+    }
+
+    /**
+     * Loads the index held by a formatted buffer.
+     */
+    DiskIndex(ByteBuffer buffer, int slotCount) {
+        Assertions.checkArgument(isFormatted(buffer, slotCount));
+        this.buffer = buffer;
+        this.slotCount = slotCount;
+        // insertion ordered, lookups must not reorder it, only touch() and put() move entries to the end
+        recency = new LinkedHashMap<>(slotCount);
+        clock = buffer.getLong(CLOCK_OFFSET);
+        ArrayList<long[]> entries = new ArrayList<>();
+        for (int slot = 0; slot < slotCount; slot++) {
+            int state = getState(slot);
+            if (state == SLOT_USED) {
+                long access = getAccess(slot);
+                entries.add(new long[]{access, slot});
+                totalSize += getSize(slot);
+                clock = Math.max(clock, access);
+            } else if (state == SLOT_DELETED) {
+                tombstones++;
+            }
+        }
+        sortByAccess(entries);
+        for (long[] entry : entries) {
+            int slot = (int) entry[1];
+            recency.put(getHash(slot), slot);
+        }
+        if (tombstones > 0) {
+            rehash();
+        }
+    }
+
+    int getEntryCount() {
+        return recency.size();
+    }
+
+    long getTotalSize() {
+        return totalSize;
+    }
+
+    int getTombstoneCount() {
+        return tombstones;
+    }
+
+    /**
+     * Returns the hashes of the entries, least recently used first.
+     */
+    long[] getHashes() {
+        long[] hashes = new long[recency.size()];
+        int i = 0;
+        for (Long hash : recency.keySet()) {
+            hashes[i++] = hash;
+        }
+        return hashes;
+    }
+
+    /**
+     * Returns the size of the entry of a hash, or -1 if there is none.
+     */
+    int getSize(long hash) {
+        Integer slot = recency.get(hash);
+        return slot == null ? -1 : getSize(slot);
+    }
+
+    /**
+     * Marks the entry of a hash as the most recently used.
+     *
+     * @return Whether there is such an entry.
+     */
+    boolean touch(long hash) {
+        Integer slot = recency.remove(hash);
+        if (slot == null) {
+            return false;
+        }
+        recency.put(hash, slot);
+        buffer.putLong(slotOffset(slot) + 8, ++clock);
+        buffer.putLong(CLOCK_OFFSET, clock);
+        return true;
+    }
+
+    /**
+     * Adds or replaces the entry of a hash, as the most recently used. The table must have a free slot,
+     * the caller evicts entries before it fills up.
+     */
+    void put(long hash, int size) {
+        Assertions.checkArgument(hash != 0 && size >= 0);
+        Integer existing = recency.remove(hash);
+        int slot;
+        if (existing != null) {
+            slot = existing;
+            totalSize -= getSize(slot);
+        } else {
+            Assertions.checkState(recency.size() < slotCount - 1, "Index full");
+            slot = findInsertSlot(hash);
+            if (getState(slot) == SLOT_DELETED) {
+                tombstones--;
+            }
+        }
+        writeSlot(slot, hash, ++clock, size);
+        buffer.putLong(CLOCK_OFFSET, clock);
+        recency.put(hash, slot);
+        totalSize += size;
+        rehashIfFull();
+    }
+
+    /**
+     * Removes the entry of a hash.
+     *
+     * @return Whether there was such an entry.
+     */
+    boolean remove(long hash) {
+        Integer slot = recency.remove(hash);
+        if (slot == null) {
+            return false;
+        }
+        totalSize -= getSize(slot);
+        writeSlot(slot, hash, 0, SIZE_DELETED);
+        tombstones++;
+        rehashIfFull();
+        return true;
+    }
+
+    /**
+     * Removes the least recently used entry.
+     *
+     * @return Its hash, or 0 if the index is empty.
+     */
+    long removeLeastRecent() {
+        Iterator<Long> iterator = recency.keySet().iterator();
+        if (!iterator.hasNext()) {
+            return 0;
+        }
+        long hash = iterator.next();
+        remove(hash);
+        return hash;
+    }
+
+    /**
+     * Returns the slot of a hash found by probing the table, or -1. Used to check the table against the
+     * in-memory map.
+     */
+    int probe(long hash) {
+        int slot = firstSlot(hash);
+        for (int i = 0; i < slotCount; i++) {
+            int state = getState(slot);
+            if (state == SLOT_EMPTY) {
+                return -1;
+            }
+            if (state == SLOT_USED && getHash(slot) == hash) {
+                return slot;
+            }
+            slot = (slot + 1) % slotCount;
+        }
+        return -1;
+    }
+
+    /**
+     * Number of slots probed to find that a hash is not in the table.
+     */
+    int getMissProbeLength(long hash) {
+        int slot = firstSlot(hash);
+        int probes = 1;
+        while (getState(slot) != SLOT_EMPTY && probes < slotCount) {
+            slot = (slot + 1) % slotCount;
+            probes++;
+        }
+        return probes;
+    }
+
+    /**
+     * Returns the first empty or deleted slot on the probe sequence of a hash not in the table.
+     */
+    private int findInsertSlot(long hash) {
+        int slot = firstSlot(hash);
+        while (getState(slot) == SLOT_USED) {
+            slot = (slot + 1) % slotCount;
+        }
+        return slot;
+    }
+
+    private void rehashIfFull() {
+        if (tombstones > 0 && recency.size() + tombstones > slotCount / 8 * 7) {
+            rehash();
+        }
+    }
+
+    /**
+     * Rebuilds the table without tombstones, keeping the access stamps.
+     */
+    private void rehash() {
+        int count = recency.size();
+        long[] hashes = new long[count];
+        long[] accesses = new long[count];
+        int[] sizes = new int[count];
+        int i = 0;
+        for (Map.Entry<Long, Integer> entry : recency.entrySet()) {
+            int slot = entry.getValue();
+            hashes[i] = entry.getKey();
+            accesses[i] = getAccess(slot);
+            sizes[i] = getSize(slot);
+            i++;
+        }
+        for (int offset = HEADER_SIZE; offset < buffer.capacity(); offset += 8) {
+            buffer.putLong(offset, 0);
+        }
+        recency.clear();
+        tombstones = 0;
+        // least recently used first, the map keeps the order
+        for (i = 0; i < count; i++) {
+            int slot = findInsertSlot(hashes[i]);
+            writeSlot(slot, hashes[i], accesses[i], sizes[i]);
+            recency.put(hashes[i], slot);
+        }
+    }
+
+    private int getState(int slot) {
+        int offset = slotOffset(slot);
+        long hash = buffer.getLong(offset);
+        int size = buffer.getInt(offset + 16);
+        int check = buffer.getInt(offset + 20);
+        if (hash == 0 && size == 0 && check == 0) {
+            return SLOT_EMPTY;
+        }
+        // a torn slot keeps the probe sequences through it going
+        return check == checksum(hash, size) && size >= 0 ? SLOT_USED : SLOT_DELETED;
+    }
+
+    private long getHash(int slot) {
+        return buffer.getLong(slotOffset(slot));
+    }
+
+    private long getAccess(int slot) {
+        return buffer.getLong(slotOffset(slot) + 8);
+    }
+
+    private int getSize(int slot) {
+        return buffer.getInt(slotOffset(slot) + 16);
+    }
+
+    private void writeSlot(int slot, long hash, long access, int size) {
+        int offset = slotOffset(slot);
+        buffer.putLong(offset, hash);
+        buffer.putLong(offset + 8, access);
+        buffer.putInt(offset + 16, size);
+        buffer.putInt(offset + 20, checksum(hash, size));
+    }
+
+    private static int slotOffset(int slot) {
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    private int firstSlot(long hash) {
+        return (int) ((hash ^ (hash >>> 32)) & 0x7fffffff) % slotCount;
+    }
+
+    private static int checksum(long hash, int size) {
+        return ((int) (hash ^ (hash >>> 32)) * 31 + size) ^ MAGIC;
+    }
+
+    private static void sortByAccess(ArrayList<long[]> entries) {
+        Collections.sort(entries, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] lhs, long[] rhs) {
+                return lhs[0] < rhs[0] ? -1 : (lhs[0] == rhs[0] ? 0 : 1);
+            }
+        });
+    }
+}
@@ -0,0 +1,194 @@
+package com.mbakshi.decodeframe.FrameResources.Util.Cache;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
+import android.util.Log;
+
+import com.mbakshi.decodeframe.FrameResources.Assertions;
+import com.mbakshi.decodeframe.FrameResources.Util.Allocate.FramePool;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An in-memory cache of extracted frames, bounded by the bytes of the bitmaps it holds.
+ * <p>
+ * Frames are keyed by their source's {@link SourceFingerprint}, the presentation time of the decoded
+ * frame, and the size, region and config they were extracted at. When the byte budget is exceeded
+ * the least recently used frames are dropped into the {@link FramePool}. The cache keeps its own copy
+ * of each frame and hands out copies drawn into pooled bitmaps, so callers own what they get and may
+ * recycle it.
+ */
+public final class FrameCache {
+    private static final String TAG = "FrameCache";
+
+    private static FrameCache defaultInstance;
+    // replaces the pixels of the pooled bitmap, whatever they were, rather than blending over them
+    private static final Paint COPY_PAINT = new Paint();
+
+    static {
+        COPY_PAINT.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC));
+    }
+
+    private final LinkedHashMap<Key, Bitmap> frames;
+    private int maxBytes;
+    private int cachedBytes;
+
+    /**
+     * Returns the cache shared by the extractors, holding up to an eighth of the heap.
+     */
+    public static synchronized FrameCache getDefault() {
+        if (defaultInstance == null) {
+            defaultInstance = new FrameCache((int) Math.min(Runtime.getRuntime().maxMemory() / 8, Integer.MAX_VALUE));
+        }
+        return defaultInstance;
+    }
+
+    /**
+     * @param maxBytes The maximum number of bitmap bytes held.
+     */
+    public FrameCache(int maxBytes) {
+        Assertions.checkArgument(maxBytes >= 0);
+        this.maxBytes = maxBytes;
+        // access ordered, iteration starts at the least recently used frame
+        frames = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    /**
+     * Returns a copy of the cached frame, or null if there is none.
+     */
+    public synchronized Bitmap get(Key key) {
+        Bitmap frame = frames.get(key);
+        if (frame == null) {
+            return null;
+        }
+        // copied under the lock, eviction could otherwise hand the frame to the pool meanwhile
+        return copyOf(frame);
+    }
+
+    /**
+     * Caches a copy of a frame. Frames larger than the whole budget are not cached.
+     */
+    public void put(Key key, Bitmap frame) {
+        int bytes = frame.getByteCount();
+        if (bytes > maxBytes) {
+            return;
+        }
+        Bitmap copy = copyOf(frame);
+        synchronized (this) {
+            Bitmap previous = frames.put(key, copy);
+            cachedBytes += bytes;
+            if (previous != null) {
+                cachedBytes -= previous.getByteCount();
+                FramePool.getDefault().releaseBitmap(previous);
+            }
+            trim(maxBytes);
+        }
+    }
+
+    /**
+     * Changes the byte budget, dropping frames as needed.
+     */
+    public synchronized void setMaxBytes(int maxBytes) {
+        Assertions.checkArgument(maxBytes >= 0);
+        this.maxBytes = maxBytes;
+        trim(maxBytes);
+    }
+
+    /**
+     * Drops the least recently used frames until at most {@code targetBytes} are cached.
+     */
+    public synchronized void trim(int targetBytes) {
+        Iterator<Map.Entry<Key, Bitmap>> iterator = frames.entrySet().iterator();
+        while (cachedBytes > targetBytes && iterator.hasNext()) {
+            Bitmap frame = iterator.next().getValue();
+            iterator.remove();
+            cachedBytes -= frame.getByteCount();
+            FramePool.getDefault().releaseBitmap(frame);
+        }
+    }
+
+    /**
+     * Drops every cached frame.
+     */
+    public void clear() {
+        Log.i(TAG, "Clearing " + getCachedBytes() + " bytes");
+        trim(0);
+    }
+
+    public synchronized int getCachedBytes() {
+        return cachedBytes;
+    }
+
+    /**
+     * Copies a frame into a bitmap from the {@link FramePool}.
+     */
+    private static Bitmap copyOf(Bitmap frame) {
+        Bitmap copy = FramePool.getDefault().acquireBitmap(frame.getWidth(), frame.getHeight(), frame.getConfig());
+        new Canvas(copy).drawBitmap(frame, 0, 0, COPY_PAINT);
+        return copy;
+    }
+
+    /**
+     * Identifies a frame extracted with given parameters.
+     */
+    public static final class Key {
+        public final SourceFingerprint source;
+        /** Presentation time of the decoded frame, so requests resolving to the same frame share it. */
+        public final long frameTimeUs;
+        public final int width;
+        public final int height;
+        public final boolean scale;
+        public final Bitmap.Config config;
+        /** Region of the decoded frame, null for all of it. */
+        public final Rect crop;
+
+        public Key(SourceFingerprint source, long frameTimeUs, int width, int height, boolean scale,
+                   Bitmap.Config config, Rect crop) {
+            this.source = source;
+            this.frameTimeUs = frameTimeUs;
+            this.width = width;
+            this.height = height;
+            this.scale = scale;
+            this.config = config;
+            this.crop = crop == null ? null : new Rect(crop);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return frameTimeUs == other.frameTimeUs && width == other.width && height == other.height
+                    && scale == other.scale && config == other.config && source.equals(other.source)
+                    && (crop == null ? other.crop == null : crop.equals(other.crop));
+        }
+
+        @Override
+        public int hashCode() {
+            int result = source.hashCode();
+            result = 31 * result + (int) (frameTimeUs ^ (frameTimeUs >>> 32));
+            result = 31 * result + width;
+            result = 31 * result + height;
+            result = 31 * result + (scale ? 1 : 0);
+            result = 31 * result + (config == null ? 0 : config.hashCode());
+            result = 31 * result + (crop == null ? 0 : crop.hashCode());
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return source + " " + frameTimeUs + " " + width + "x" + height + (scale ? " scaled " : " ") + config
+                    + (crop == null ? "" : " " + crop);
+        }
+    }
+}
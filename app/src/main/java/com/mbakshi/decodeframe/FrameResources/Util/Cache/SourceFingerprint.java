@@ -0,0 +1,59 @@
+package com.mbakshi.decodeframe.FrameResources.Util.Cache;
+
+import java.io.File;
+
+/**
+ * Identifies the content of a source file by its path, size and modification time, so that frames
+ * cached for a file are not returned once it changes.
+ */
+public final class SourceFingerprint {
+    public final String path;
+    public final long size;
+    public final long lastModified;
+
+    public SourceFingerprint(String path, long size, long lastModified) {
+        this.path = path;
+        this.size = size;
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * Returns the fingerprint of a file, or null if it is not a readable file, in which case its content
+     * cannot be told apart from later versions.
+     */
+    public static SourceFingerprint forFile(String path) {
+        if (path == null) {
+            return null;
+        }
+        File file = new File(path);
+        if (!file.isFile()) {
+            return null;
+        }
+        return new SourceFingerprint(file.getAbsolutePath(), file.length(), file.lastModified());
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof SourceFingerprint)) {
+            return false;
+        }
+        SourceFingerprint other = (SourceFingerprint) o;
+        return size == other.size && lastModified == other.lastModified && path.equals(other.path);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = path.hashCode();
+        result = 31 * result + (int) (size ^ (size >>> 32));
+        result = 31 * result + (int) (lastModified ^ (lastModified >>> 32));
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return path + "@" + size + ":" + lastModified;
+    }
+}
@@ -0,0 +1,485 @@
+package com.mbakshi.decodeframe.FrameResources.Util.CodecUtil;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import com.mbakshi.decodeframe.FrameResources.Assertions;
+import com.mbakshi.decodeframe.FrameResources.Util.Utilities;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A pool of started decoders, so that repeated frame extraction does not pay for creating and
+ * configuring a codec every time.
+ * <p>
+ * Decoders are keyed by codec name, mime type, size and color format. Released decoders are flushed
+ * and kept until they have been idle for the idle timeout. Adaptive decoders are also handed out for
+ * other streams no larger than the size they were configured for. A decoder handed out again has
+ * lost the codec specific data of its previous stream, which has to be queued again, see
+ * {@link PooledCodec#reused}.
+ * <p>
+ * No more decoders of one codec are kept alive than the device supports running at once; idle ones
+ * are dropped to make room, and {@link #acquire(MediaCodecUtil.DecoderInfo, MediaFormat, CodecListener)}
+ * fails when every instance is in use.
+ * <p>
+ * On API 23 and later decoders can run in asynchronous mode, with their callbacks delivered on a
+ * thread of the pool to the {@link CodecListener} of whoever holds the decoder.
+ */
+public final class MediaCodecPool {
+    private static final String TAG = "MediaCodecPool";
+
+    /** Default time a released decoder is kept. */
+    public static final long DEFAULT_IDLE_TIMEOUT_MS = 10000;
+    /** Default maximum number of idle decoders kept. */
+    public static final int DEFAULT_MAX_IDLE = 4;
+
+    private static MediaCodecPool defaultInstance;
+
+    /** Idle decoders, least recently released first. */
+    private final ArrayList<PooledCodec> idle;
+    /** Number of live decoders, in use or idle, per codec name. */
+    private final HashMap<String, Integer> liveCounts;
+    private final ScheduledThreadPoolExecutor evictor;
+    private final long idleTimeoutMs;
+    private final int maxIdle;
+    private HandlerThread callbackThread;
+    private Handler callbackHandler;
+
+    /**
+     * Receives the callbacks of an asynchronous decoder, on the pool's callback thread.
+     */
+    public interface CodecListener {
+        void onInputBufferAvailable(int index);
+
+        void onOutputBufferAvailable(int index, MediaCodec.BufferInfo info);
+
+        void onOutputFormatChanged(MediaFormat format);
+
+        void onError(Exception e);
+    }
+
+    /**
+     * A started decoder handed out by the pool.
+     */
+    public static final class PooledCodec {
+        public final MediaCodec codec;
+        public final String name;
+        public final String mimeType;
+        public final int width;
+        public final int height;
+        public final int colorFormat;
+        public final boolean adaptive;
+        /** Whether the decoder runs in asynchronous mode, reporting to its {@link CodecListener}. */
+        public final boolean async;
+        /** Whether the decoder has decoded another stream, and needs the codec specific data queued again. */
+        public boolean reused;
+
+        private volatile CodecListener listener;
+        // held while callbacks are delivered and while the decoder is flushed
+        private final Object callbackLock = new Object();
+        private long idleSinceMs;
+
+        PooledCodec(MediaCodec codec, String name, String mimeType, int width, int height, int colorFormat,
+                    boolean adaptive, boolean async) {
+            this.codec = codec;
+            this.name = name;
+            this.mimeType = mimeType;
+            this.width = width;
+            this.height = height;
+            this.colorFormat = colorFormat;
+            this.adaptive = adaptive;
+            this.async = async;
+        }
+
+        /**
+         * Flushes the decoder. No callback with a buffer index from before the flush is delivered once
+         * this returns. An asynchronous decoder stays stopped until {@link #resume()}.
+         */
+        public void flush() {
+            synchronized (callbackLock) {
+                codec.flush();
+            }
+        }
+
+        /**
+         * Restarts an asynchronous decoder after {@link #flush()}. Its callbacks start again.
+         */
+        public void resume() {
+            if (async) {
+                codec.start();
+            }
+        }
+
+        private boolean matches(String name, String mimeType, int width, int height, int colorFormat,
+                                boolean async) {
+            return this.name.equals(name) && this.mimeType.equals(mimeType) && this.colorFormat == colorFormat
+                    && this.async == async
+                    && (adaptive ? width <= this.width && height <= this.height
+                    : width == this.width && height == this.height);
+        }
+
+        @Override
+        public String toString() {
+            return name + " " + mimeType + " " + width + "x" + height + " " + colorFormat;
+        }
+    }
+
+    /**
+     * Returns the pool shared by the frame retrieval classes.
+     */
+    public static synchronized MediaCodecPool getDefault() {
+        if (defaultInstance == null) {
+            defaultInstance = new MediaCodecPool(DEFAULT_IDLE_TIMEOUT_MS, DEFAULT_MAX_IDLE);
+        }
+        return defaultInstance;
+    }
+
+    /**
+     * @param idleTimeoutMs How long a released decoder is kept before it is released.
+     * @param maxIdle The maximum number of idle decoders kept. 0 disables pooling.
+     */
+    public MediaCodecPool(long idleTimeoutMs, int maxIdle) {
+        Assertions.checkArgument(idleTimeoutMs >= 0 && maxIdle >= 0);
+        this.idleTimeoutMs = idleTimeoutMs;
+        this.maxIdle = maxIdle;
+        idle = new ArrayList<>();
+        liveCounts = new HashMap<>();
+        evictor = new ScheduledThreadPoolExecutor(1, new EvictorThreadFactory());
+    }
+
+    /**
+     * Returns a started decoder for a stream, reusing an idle one when there is one that fits.
+     *
+     * @param format The format of the stream, with its mime type, size and, optionally, the color
+     *     format to decode to. It is used to configure new decoders.
+     * @param listener Receives the callbacks of the decoder, which then runs in asynchronous mode, or
+     *     null for a decoder that is driven synchronously. Asynchronous mode needs API 23.
+     * @return The decoder, or null if every instance the device supports is in use.
+     * @throws IOException If the decoder could not be created or configured.
+     */
+    public PooledCodec acquire(MediaCodecUtil.DecoderInfo decoderInfo, MediaFormat format, CodecListener listener)
+            throws IOException {
+        boolean async = listener != null;
+        Assertions.checkArgument(!async || Utilities.SDK_INT >= 23);
+        String mimeType = format.getString(MediaFormat.KEY_MIME);
+        int width = format.getInteger(MediaFormat.KEY_WIDTH);
+        int height = format.getInteger(MediaFormat.KEY_HEIGHT);
+        int colorFormat = format.containsKey(MediaFormat.KEY_COLOR_FORMAT)
+                ? format.getInteger(MediaFormat.KEY_COLOR_FORMAT) : -1;
+        int maxInstances = getMaxInstances(decoderInfo);
+        ArrayList<PooledCodec> evicted = new ArrayList<>();
+        PooledCodec pooled = null;
+        boolean atLimit = false;
+        synchronized (this) {
+            for (int i = idle.size() - 1; i >= 0; i--) {
+                if (idle.get(i).matches(decoderInfo.name, mimeType, width, height, colorFormat, async)) {
+                    pooled = idle.remove(i);
+                    break;
+                }
+            }
+            if (pooled == null) {
+                // make room for a new instance by dropping idle ones of the same codec
+                Iterator<PooledCodec> iterator = idle.iterator();
+                while (getLiveCount(decoderInfo.name) >= maxInstances && iterator.hasNext()) {
+                    PooledCodec candidate = iterator.next();
+                    if (candidate.name.equals(decoderInfo.name)) {
+                        iterator.remove();
+                        evicted.add(candidate);
+                        addLiveCount(candidate.name, -1);
+                    }
+                }
+                if (getLiveCount(decoderInfo.name) >= maxInstances) {
+                    Log.w(TAG, "All " + maxInstances + " instances of " + decoderInfo.name + " in use");
+                    atLimit = true;
+                }
+                else {
+                    addLiveCount(decoderInfo.name, 1);
+                }
+            }
+        }
+        destroy(evicted);
+        if (pooled != null) {
+            Log.i(TAG, "Reusing " + pooled);
+            pooled.reused = true;
+            if (async) {
+                // asynchronous decoders stop when flushed, the listener has to be there for the first
+                // callbacks after the restart
+                pooled.listener = listener;
+                try {
+                    pooled.codec.start();
+                } catch (IllegalStateException e) {
+                    Log.w(TAG, "Could not restart " + pooled, e);
+                    discard(pooled);
+                    return acquire(decoderInfo, format, listener);
+                }
+            }
+            return pooled;
+        }
+        if (atLimit) {
+            return null;
+        }
+
+        MediaCodec codec = null;
+        PooledCodec created = null;
+        try {
+            codec = MediaCodec.createByCodecName(decoderInfo.name);
+            created = new PooledCodec(codec, decoderInfo.name, mimeType, width, height, colorFormat,
+                    decoderInfo.adaptive, async);
+            if (async) {
+                // the callback has to be set before configuring
+                created.listener = listener;
+                setCallbackV23(created);
+            }
+            MediaFormat configureFormat = format;
+            if (decoderInfo.adaptive && Utilities.SDK_INT >= 19) {
+                // the caller's format is shared, the maximum size only goes into a copy of it
+                configureFormat = copyDecoderFormat(format);
+                configureFormat.setInteger(MediaFormat.KEY_MAX_WIDTH, width);
+                configureFormat.setInteger(MediaFormat.KEY_MAX_HEIGHT, height);
+            }
+            codec.configure(configureFormat, null, null, 0);
+            codec.start();
+        } catch (IOException | RuntimeException e) {
+            synchronized (this) {
+                addLiveCount(decoderInfo.name, -1);
+            }
+            if (codec != null) {
+                codec.release();
+            }
+            throw e instanceof IOException ? (IOException) e : new IOException(e);
+        }
+        Log.i(TAG, "Created " + created);
+        return created;
+    }
+
+    /**
+     * Hands a decoder back. It is flushed and kept for reuse, or released when it cannot be flushed or
+     * the pool is full. It must not be used afterwards.
+     */
+    public void release(PooledCodec pooled) {
+        try {
+            // flushed before the listener goes, so that no callback still running hands back a stale index
+            pooled.flush();
+            pooled.listener = null;
+        } catch (IllegalStateException e) {
+            Log.w(TAG, "Could not flush " + pooled + ", releasing it", e);
+            discard(pooled);
+            return;
+        }
+        ArrayList<PooledCodec> evicted = new ArrayList<>();
+        synchronized (this) {
+            pooled.idleSinceMs = System.currentTimeMillis();
+            idle.add(pooled);
+            while (idle.size() > maxIdle) {
+                PooledCodec oldest = idle.remove(0);
+                evicted.add(oldest);
+                addLiveCount(oldest.name, -1);
+            }
+        }
+        destroy(evicted);
+        if (maxIdle > 0) {
+            evictor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    evictIdle();
+                }
+            }, idleTimeoutMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Releases a decoder that is in an unknown state, for example after a decoding error. It must not be
+     * used afterwards.
+     */
+    public void discard(PooledCodec pooled) {
+        pooled.listener = null;
+        synchronized (this) {
+            addLiveCount(pooled.name, -1);
+        }
+        ArrayList<PooledCodec> discarded = new ArrayList<>();
+        discarded.add(pooled);
+        destroy(discarded);
+    }
+
+    /**
+     * Releases the decoders that have been idle for longer than the idle timeout.
+     */
+    public void evictIdle() {
+        long now = System.currentTimeMillis();
+        ArrayList<PooledCodec> evicted = new ArrayList<>();
+        synchronized (this) {
+            Iterator<PooledCodec> iterator = idle.iterator();
+            while (iterator.hasNext()) {
+                PooledCodec pooled = iterator.next();
+                if (now - pooled.idleSinceMs >= idleTimeoutMs) {
+                    iterator.remove();
+                    evicted.add(pooled);
+                    addLiveCount(pooled.name, -1);
+                }
+            }
+        }
+        destroy(evicted);
+    }
+
+    /**
+     * Releases every idle decoder.
+     */
+    public void clear() {
+        ArrayList<PooledCodec> evicted;
+        synchronized (this) {
+            evicted = new ArrayList<>(idle);
+            idle.clear();
+            for (PooledCodec pooled : evicted) {
+                addLiveCount(pooled.name, -1);
+            }
+        }
+        destroy(evicted);
+    }
+
+    public synchronized int getIdleCount() {
+        return idle.size();
+    }
+
+    private int getLiveCount(String name) {
+        Integer count = liveCounts.get(name);
+        return count == null ? 0 : count;
+    }
+
+    private void addLiveCount(String name, int delta) {
+        int count = getLiveCount(name) + delta;
+        if (count <= 0) {
+            liveCounts.remove(name);
+        }
+        else {
+            liveCounts.put(name, count);
+        }
+    }
+
+    /**
+     * Copies the keys a video decoder is configured from. MediaFormat has no copy constructor before
+     * API 29.
+     */
+    private static MediaFormat copyDecoderFormat(MediaFormat format) {
+        MediaFormat copy = new MediaFormat();
+        copy.setString(MediaFormat.KEY_MIME, format.getString(MediaFormat.KEY_MIME));
+        copyInteger(format, copy, MediaFormat.KEY_WIDTH);
+        copyInteger(format, copy, MediaFormat.KEY_HEIGHT);
+        copyInteger(format, copy, MediaFormat.KEY_MAX_INPUT_SIZE);
+        copyInteger(format, copy, MediaFormat.KEY_COLOR_FORMAT);
+        if (format.containsKey(MediaFormat.KEY_DURATION)) {
+            copy.setLong(MediaFormat.KEY_DURATION, format.getLong(MediaFormat.KEY_DURATION));
+        }
+        for (int i = 0; format.containsKey("csd-" + i); i++) {
+            // a view of its own, so that configuring cannot move the position of the shared buffer
+            copy.setByteBuffer("csd-" + i, format.getByteBuffer("csd-" + i).duplicate());
+        }
+        return copy;
+    }
+
+    private static void copyInteger(MediaFormat from, MediaFormat to, String key) {
+        if (from.containsKey(key)) {
+            to.setInteger(key, from.getInteger(key));
+        }
+    }
+
+    private static void destroy(ArrayList<PooledCodec> codecs) {
+        for (PooledCodec pooled : codecs) {
+            Log.i(TAG, "Releasing " + pooled);
+            try {
+                pooled.codec.stop();
+            } catch (IllegalStateException e) {
+                Log.w(TAG, "Could not stop " + pooled, e);
+            }
+            pooled.codec.release();
+        }
+    }
+
+    @TargetApi(23)
+    private void setCallbackV23(final PooledCodec pooled) {
+        synchronized (this) {
+            if (callbackThread == null) {
+                callbackThread = new HandlerThread("MediaCodecPool:callbacks");
+                callbackThread.start();
+                callbackHandler = new Handler(callbackThread.getLooper());
+            }
+        }
+        pooled.codec.setCallback(new MediaCodec.Callback() {
+            @Override
+            public void onInputBufferAvailable(MediaCodec codec, int index) {
+                synchronized (pooled.callbackLock) {
+                    CodecListener listener = pooled.listener;
+                    if (listener != null) {
+                        listener.onInputBufferAvailable(index);
+                    }
+                }
+            }
+
+            @Override
+            public void onOutputBufferAvailable(MediaCodec codec, int index, MediaCodec.BufferInfo info) {
+                synchronized (pooled.callbackLock) {
+                    CodecListener listener = pooled.listener;
+                    if (listener != null) {
+                        listener.onOutputBufferAvailable(index, info);
+                    }
+                    else {
+                        // nobody holds the decoder, do not let it run out of output buffers
+                        codec.releaseOutputBuffer(index, false);
+                    }
+                }
+            }
+
+            @Override
+            public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+                Log.e(TAG, "Error in " + pooled, e);
+                synchronized (pooled.callbackLock) {
+                    CodecListener listener = pooled.listener;
+                    if (listener != null) {
+                        listener.onError(e);
+                    }
+                }
+            }
+
+            @Override
+            public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+                synchronized (pooled.callbackLock) {
+                    CodecListener listener = pooled.listener;
+                    if (listener != null) {
+                        listener.onOutputFormatChanged(format);
+                    }
+                }
+            }
+        }, callbackHandler);
+    }
+
+    private static int getMaxInstances(MediaCodecUtil.DecoderInfo decoderInfo) {
+        if (Utilities.SDK_INT >= 23 && decoderInfo.capabilities != null) {
+            return getMaxInstancesV23(decoderInfo);
+        }
+        // not reported before API 23, creating the codec fails when there are too many
+        return Integer.MAX_VALUE;
+    }
+
+    @TargetApi(23)
+    private static int getMaxInstancesV23(MediaCodecUtil.DecoderInfo decoderInfo) {
+        return Math.max(1, decoderInfo.capabilities.getMaxSupportedInstances());
+    }
+
+    private static final class EvictorThreadFactory implements ThreadFactory {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "MediaCodecPool:evictor");
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
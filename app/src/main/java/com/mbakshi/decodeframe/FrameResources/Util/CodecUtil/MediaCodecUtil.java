@@ -19,10 +19,12 @@ public class MediaCodecUtil {
     public final static class DecoderInfo {
         public final String name;
         public final boolean adaptive;
+        public final MediaCodecInfo.CodecCapabilities capabilities;
 
-        DecoderInfo(String name, boolean adaptive) {
+        DecoderInfo(String name, boolean adaptive, MediaCodecInfo.CodecCapabilities capabilities) {
             this.name = name;
             this.adaptive = adaptive;
+            this.capabilities = capabilities;
         }
     }
 
@@ -59,7 +61,7 @@ public class MediaCodecUtil {
         if (info == null) {
             return null;
         }
-        return new DecoderInfo(info.first, isAdaptive(info.second));
+        return new DecoderInfo(info.first, isAdaptive(info.second), info.second);
     }
 
     /**
@@ -170,6 +172,21 @@ public class MediaCodecUtil {
         return capabilities.isFeatureSupported(MediaCodecInfo.CodecCapabilities.FEATURE_AdaptivePlayback);
     }
 
+    /**
+     * Whether a decoder can be configured to output frames of the given size. Only known from API 21,
+     * earlier devices report false.
+     */
+    public static boolean isSizeSupported(DecoderInfo decoderInfo, int width, int height) {
+        return Utilities.SDK_INT >= 21 && decoderInfo.capabilities != null
+                && isSizeSupportedV21(decoderInfo.capabilities, width, height);
+    }
+
+    @TargetApi(21)
+    private static boolean isSizeSupportedV21(MediaCodecInfo.CodecCapabilities capabilities, int width, int height) {
+        MediaCodecInfo.VideoCapabilities videoCapabilities = capabilities.getVideoCapabilities();
+        return videoCapabilities != null && videoCapabilities.isSizeSupported(width, height);
+    }
+
     /**
      * @param profile An AVC profile constant from {@link MediaCodecInfo.CodecProfileLevel}.
      * @param level An AVC profile level from {@link MediaCodecInfo.CodecProfileLevel}.
@@ -0,0 +1,93 @@
+package com.mbakshi.decodeframe.FrameResources.Util.ColorUtil;
+
+import android.annotation.TargetApi;
+import android.media.Image;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Adapts one decoder output color format to the conversion kernels.
+ * <p>
+ * A converter describes where the planes of its format are in an output buffer. Layouts the kernels
+ * read in place are converted straight from the buffer; others, such as formats with 16 bit samples,
+ * are first unpacked into 8 bit NV12. Formats whose layout is only known through
+ * {@code MediaCodec.getOutputImage} are read from the image planes instead.
+ *
+ * @see FormatConverters
+ */
+public abstract class FormatConverter {
+    /** The {@code MediaCodecInfo.CodecCapabilities} color format handled by this converter. */
+    public final int colorFormat;
+    /** A readable name for the format, for logging. */
+    public final String name;
+    /**
+     * Relative cost of getting a frame of this format into the kernels. Formats read in place cost
+     * {@link FormatConverters#COST_DIRECT}.
+     */
+    public final int cost;
+
+    protected FormatConverter(int colorFormat, String name, int cost) {
+        this.colorFormat = colorFormat;
+        this.name = name;
+        this.cost = cost;
+    }
+
+    /**
+     * Describes a frame of this format held in a decoder output buffer.
+     *
+     * @param stride The {@code stride} of the output format, in bytes.
+     * @param sliceHeight The {@code slice-height} of the output format, in rows.
+     */
+    public abstract void setLayout(YuvLayout layout, int width, int height, int stride, int sliceHeight);
+
+    /**
+     * Whether frames have to be read with {@link #unpack(Image, int, int, byte[], YuvLayout)} because the
+     * output buffer layout is not described by the output format.
+     */
+    public boolean needsImage() {
+        return false;
+    }
+
+    /**
+     * Number of bytes {@link #unpack(ByteBuffer, YuvLayout, byte[])} needs for a frame, or 0 when the
+     * kernels can read the layout in place.
+     */
+    public int getUnpackedSize(YuvLayout layout) {
+        return layout.isDirectlyConvertible() ? 0 : YuvPacker.getPackedSize(layout.width, layout.height);
+    }
+
+    /**
+     * Unpacks a frame into 8 bit NV12 that the kernels can read. Only the visible area of
+     * {@code layout} is read, so a cropped layout unpacks just the crop.
+     *
+     * @param data The frame, starting at the buffer's position.
+     * @param layout Describes the frame, and the unpacked frame in {@code target} on return.
+     * @param target Receives the unpacked frame, at least {@link #getUnpackedSize(YuvLayout)} bytes.
+     */
+    public void unpack(ByteBuffer data, YuvLayout layout, byte[] target) {
+        YuvPacker.pack(data, layout, target);
+    }
+
+    /**
+     * Reads a frame from the planes of a decoder output image into 8 bit NV12.
+     *
+     * @param target Receives the frame, at least {@link #getImageSize(int, int)} bytes.
+     * @param layout Describes the frame in {@code target} on return.
+     */
+    @TargetApi(21)
+    public void unpack(Image image, int width, int height, byte[] target, YuvLayout layout) {
+        YuvPacker.pack(image, width, height, target, layout);
+    }
+
+    /**
+     * Number of bytes {@link #unpack(Image, int, int, byte[], YuvLayout)} needs for a frame.
+     */
+    public int getImageSize(int width, int height) {
+        return YuvPacker.getPackedSize(width, height);
+    }
+
+    @Override
+    public String toString() {
+        return name + "(" + colorFormat + ")";
+    }
+}
@@ -0,0 +1,138 @@
+package com.mbakshi.decodeframe.FrameResources.Util.ColorUtil;
+
+import android.media.MediaCodecInfo;
+import android.os.Build;
+import android.util.Log;
+
+import java.util.HashMap;
+
+/**
+ * Registry of the {@link FormatConverter}s frame retrieval can read decoder output with.
+ * <p>
+ * Decoders list the color formats they can output in their capabilities; {@link #negotiate(int[])}
+ * picks the cheapest one a converter is registered for. Further vendor formats can be supported by
+ * registering a converter for them before decoding.
+ */
+public final class FormatConverters {
+    private static final String TAG = "FormatConverters";
+
+    /** Cost of formats the kernels read in place. */
+    public static final int COST_DIRECT = 1;
+    /** Cost of formats read through the planes of an output image. */
+    public static final int COST_IMAGE = 2;
+    /** Cost of formats unpacked from wide samples. */
+    public static final int COST_UNPACK = 3;
+
+    /** {@code COLOR_FormatYUVP010}, 10 bit samples in the high bits of 16 bit words. Added in API 29. */
+    public static final int COLOR_FormatYUVP010 = 54;
+    /** Qualcomm NV21, V before U in the chroma plane. */
+    public static final int COLOR_QCOM_FormatYVU420SemiPlanar = 0x7FA30C00;
+    /** Qualcomm NV12 with 32 pixel row alignment, described by the output format's stride. */
+    public static final int COLOR_QCOM_FormatYUV420PackedSemiPlanar32m = 0x7FA30C04;
+
+    private static final HashMap<Integer, FormatConverter> converters = new HashMap<>();
+
+    static {
+        int[] planar = {
+                MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar,
+                MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420PackedPlanar
+        };
+        for (int colorFormat : planar) {
+            register(new FormatConverter(colorFormat, "I420", COST_DIRECT) {
+                @Override
+                public void setLayout(YuvLayout layout, int width, int height, int stride, int sliceHeight) {
+                    layout.setPlanar(width, height, stride, sliceHeight);
+                    layout.colorFormat = colorFormat;
+                }
+            });
+        }
+        int[] semiPlanar = {
+                MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar,
+                MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420PackedSemiPlanar,
+                MediaCodecInfo.CodecCapabilities.COLOR_TI_FormatYUV420PackedSemiPlanar,
+                COLOR_QCOM_FormatYUV420PackedSemiPlanar32m
+        };
+        for (int colorFormat : semiPlanar) {
+            register(new FormatConverter(colorFormat, "NV12", COST_DIRECT) {
+                @Override
+                public void setLayout(YuvLayout layout, int width, int height, int stride, int sliceHeight) {
+                    layout.setSemiPlanar(width, height, stride, sliceHeight);
+                    layout.colorFormat = colorFormat;
+                }
+            });
+        }
+        register(new FormatConverter(COLOR_QCOM_FormatYVU420SemiPlanar, "NV21", COST_DIRECT) {
+            @Override
+            public void setLayout(YuvLayout layout, int width, int height, int stride, int sliceHeight) {
+                layout.setSemiPlanarVu(colorFormat, width, height, stride, sliceHeight);
+            }
+        });
+        register(new FormatConverter(MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Flexible, "YUV420Flexible",
+                COST_IMAGE) {
+            @Override
+            public void setLayout(YuvLayout layout, int width, int height, int stride, int sliceHeight) {
+                // The buffer layout is vendor specific; frames are read from the image planes instead and
+                // described by unpack. NV12 is only a guess for decoders that have no output image.
+                layout.setSemiPlanar(width, height, stride, sliceHeight);
+                layout.colorFormat = colorFormat;
+            }
+
+            @Override
+            public boolean needsImage() {
+                return true;
+            }
+        });
+        register(new FormatConverter(COLOR_FormatYUVP010, "P010", COST_UNPACK) {
+            @Override
+            public void setLayout(YuvLayout layout, int width, int height, int stride, int sliceHeight) {
+                // Little endian 16 bit samples: point at the high byte of each, which holds the 8 most
+                // significant bits.
+                layout.set(colorFormat, width, height, 1, stride, 2);
+                layout.sliceHeight = sliceHeight;
+                int uOffset = stride * sliceHeight + 1;
+                layout.setChroma(uOffset, uOffset + 2, stride, 4);
+            }
+        });
+    }
+
+    private FormatConverters() {}
+
+    /**
+     * Registers a converter, replacing any registered for the same color format.
+     */
+    public static synchronized void register(FormatConverter converter) {
+        converters.put(converter.colorFormat, converter);
+    }
+
+    /**
+     * Returns the converter for a color format, or null if none is registered.
+     */
+    public static synchronized FormatConverter get(int colorFormat) {
+        return converters.get(colorFormat);
+    }
+
+    /**
+     * Picks the color format to ask a decoder for.
+     *
+     * @param colorFormats The color formats the decoder can output, in its order of preference.
+     * @return The cheapest format with a usable converter, the decoder's preference breaking ties, or -1
+     *     if there is none.
+     */
+    public static synchronized int negotiate(int[] colorFormats) {
+        FormatConverter best = null;
+        for (int colorFormat : colorFormats) {
+            FormatConverter converter = converters.get(colorFormat);
+            if (converter == null || (converter.needsImage() && Build.VERSION.SDK_INT < 21)) {
+                continue;
+            }
+            if (best == null || converter.cost < best.cost) {
+                best = converter;
+            }
+        }
+        if (best == null) {
+            Log.w(TAG, "No converter for any of " + colorFormats.length + " color formats");
+            return -1;
+        }
+        return best.colorFormat;
+    }
+}
@@ -0,0 +1,95 @@
+package com.mbakshi.decodeframe.FrameResources.Util.ColorUtil;
+
+import com.mbakshi.decodeframe.FrameResources.Assertions;
+
+/**
+ * Maps pixel coordinates of an upright image to indices of the same image rotated clockwise by 0, 90,
+ * 180 or 270 degrees, the way a track's rotation is applied for display.
+ * <p>
+ * Pixel {@code (x, y)} of a {@code width x height} image lands at
+ * {@code origin + x * stepX + y * stepY} of the rotated image, laid out with a row stride of
+ * {@link #getWidth(int, int, int)}. Kernels advance an output index by the two steps instead of
+ * computing it, so rotating costs nothing on top of the conversion.
+ */
+public final class Orientation {
+    private Orientation() {}
+
+    /**
+     * Returns the rotation as one of 0, 90, 180 and 270.
+     *
+     * @throws IllegalArgumentException If the rotation is not a multiple of 90 degrees.
+     */
+    public static int normalize(int rotation) {
+        Assertions.checkArgument(rotation % 90 == 0, "Unsupported rotation " + rotation);
+        return ((rotation % 360) + 360) % 360;
+    }
+
+    /**
+     * Whether the rotation swaps the width and the height.
+     */
+    public static boolean isTransposed(int rotation) {
+        return normalize(rotation) % 180 != 0;
+    }
+
+    /**
+     * Width of a {@code width x height} image once rotated.
+     */
+    public static int getWidth(int width, int height, int rotation) {
+        return isTransposed(rotation) ? height : width;
+    }
+
+    /**
+     * Height of a {@code width x height} image once rotated.
+     */
+    public static int getHeight(int width, int height, int rotation) {
+        return isTransposed(rotation) ? width : height;
+    }
+
+    /**
+     * Index in the rotated image of pixel {@code (0, 0)}.
+     */
+    static int origin(int width, int height, int rotation) {
+        switch (normalize(rotation)) {
+            case 90:
+                return height - 1;
+            case 180:
+                return width * height - 1;
+            case 270:
+                return (width - 1) * height;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Index distance in the rotated image between pixels {@code (x, y)} and {@code (x + 1, y)}.
+     */
+    static int stepX(int width, int height, int rotation) {
+        switch (normalize(rotation)) {
+            case 90:
+                return height;
+            case 180:
+                return -1;
+            case 270:
+                return -height;
+            default:
+                return 1;
+        }
+    }
+
+    /**
+     * Index distance in the rotated image between pixels {@code (x, y)} and {@code (x, y + 1)}.
+     */
+    static int stepY(int width, int height, int rotation) {
+        switch (normalize(rotation)) {
+            case 90:
+                return -1;
+            case 180:
+                return -width;
+            case 270:
+                return 1;
+            default:
+                return width;
+        }
+    }
+}
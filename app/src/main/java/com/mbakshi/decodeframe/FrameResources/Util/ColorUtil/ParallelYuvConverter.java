@@ -0,0 +1,208 @@
+package com.mbakshi.decodeframe.FrameResources.Util.ColorUtil;
+
+import android.util.Log;
+
+import com.mbakshi.decodeframe.FrameResources.Assertions;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Splits a frame conversion into horizontal bands and converts them on a bounded worker pool.
+ * <p>
+ * Bands always start on an even row so that no chroma row is shared between two bands, which lets
+ * every band write straight into the shared output array. The calling thread converts the first
+ * band itself and then waits for the others. Frames smaller than {@link #getMinParallelPixels()}
+ * are converted on the calling thread only, where the hand off would cost more than it saves.
+ */
+public final class ParallelYuvConverter {
+    private static final String TAG = "ParallelYuvConverter";
+
+    /** Frames below this size (720p) are converted on the calling thread. */
+    public static final int DEFAULT_MIN_PARALLEL_PIXELS = 1280 * 720;
+    /** Bands are never made smaller than this, so each task has enough work to amortize the hand off. */
+    private static final int MIN_BAND_ROWS = 64;
+    private static final long IDLE_KEEP_ALIVE_SECONDS = 10;
+
+    private static ParallelYuvConverter defaultInstance;
+
+    private final ThreadPoolExecutor executor;
+    private final int bandCount;
+    private final int minParallelPixels;
+
+    /**
+     * Returns a shared converter using one band per available core.
+     */
+    public static synchronized ParallelYuvConverter getDefault() {
+        if (defaultInstance == null) {
+            defaultInstance = new ParallelYuvConverter(Runtime.getRuntime().availableProcessors(),
+                    DEFAULT_MIN_PARALLEL_PIXELS);
+        }
+        return defaultInstance;
+    }
+
+    /**
+     * @param bandCount The maximum number of bands a frame is split into. One band runs on the calling
+     *     thread, so at most {@code bandCount - 1} worker threads are created.
+     * @param minParallelPixels Frames with fewer pixels than this are not split.
+     */
+    public ParallelYuvConverter(int bandCount, int minParallelPixels) {
+        Assertions.checkArgument(bandCount > 0);
+        this.bandCount = bandCount;
+        this.minParallelPixels = minParallelPixels;
+        int workers = Math.max(1, bandCount - 1);
+        executor = new ThreadPoolExecutor(workers, workers, IDLE_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new WorkerThreadFactory());
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    public int getMinParallelPixels() {
+        return minParallelPixels;
+    }
+
+    /**
+     * Converts a frame, splitting it into bands when it is large enough.
+     *
+     * @param data The decoded frame, starting at the buffer's position. Direct buffers are read in
+     *     place, see {@link YuvConverter#convert(ByteBuffer, YuvLayout, int, int[], int, int, int)}. The
+     *     buffer is only read from and can be released as soon as this returns.
+     * @param layout Where the planes are. Must not be modified until this returns.
+     * @param rotation Clockwise rotation to apply, one of 0, 90, 180 and 270.
+     * @param out The destination.
+     * @param outOffset The index in {@code out} of the top left pixel of the rotated frame.
+     */
+    public void convert(ByteBuffer data, YuvLayout layout, int rotation, int[] out, int outOffset) {
+        convertBands(data, layout, rotation, out, outOffset);
+    }
+
+    /**
+     * Converts a frame to RGB_565.
+     *
+     * @see #convert(ByteBuffer, YuvLayout, int, int[], int)
+     */
+    public void convert(ByteBuffer data, YuvLayout layout, int rotation, short[] out, int outOffset) {
+        convertBands(data, layout, rotation, out, outOffset);
+    }
+
+    /**
+     * Converts a frame to 8 bit grayscale.
+     *
+     * @see #convert(ByteBuffer, YuvLayout, int, int[], int)
+     */
+    public void convert(ByteBuffer data, YuvLayout layout, int rotation, byte[] out, int outOffset) {
+        convertBands(data, layout, rotation, out, outOffset);
+    }
+
+    /**
+     * Stops the worker threads. Conversions requested afterwards run on the calling thread.
+     */
+    public void release() {
+        executor.shutdown();
+    }
+
+    private void convertBands(ByteBuffer data, YuvLayout layout, int rotation, Object out, int outOffset) {
+        int width = layout.width;
+        int height = layout.height;
+        int bands = Math.min(bandCount, height / MIN_BAND_ROWS);
+        if (bands <= 1 || width * height < minParallelPixels || executor.isShutdown()) {
+            YuvConverter.convertBuffer(data, layout, rotation, out, outOffset, 0, height);
+            return;
+        }
+        // Round the band height up to a whole number of row pairs.
+        int bandRows = ((height + bands - 1) / bands + 1) & ~1;
+        bands = (height + bandRows - 1) / bandRows;
+        CountDownLatch done = new CountDownLatch(bands - 1);
+        Band[] workers = new Band[bands - 1];
+        for (int i = 1; i < bands; i++) {
+            int rowStart = i * bandRows;
+            workers[i - 1] = new Band(data, layout, rotation, out, outOffset, rowStart,
+                    Math.min(height, rowStart + bandRows), done);
+            try {
+                executor.execute(workers[i - 1]);
+            } catch (RejectedExecutionException e) {
+                // released meanwhile, the band counts down once converted here
+                workers[i - 1].run();
+            }
+        }
+        YuvConverter.convertBuffer(data, layout, rotation, out, outOffset, 0, bandRows);
+        awaitUninterruptibly(done);
+        for (Band band : workers) {
+            if (band.error != null) {
+                throw band.error;
+            }
+        }
+    }
+
+    /**
+     * The bands write into {@code out} until they complete, so returning early on an interrupt would
+     * hand back an array that is still being written to.
+     */
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                latch.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static final class Band implements Runnable {
+        private final ByteBuffer data;
+        private final YuvLayout layout;
+        private final int rotation;
+        private final Object out;
+        private final int outOffset;
+        private final int rowStart;
+        private final int rowEnd;
+        private final CountDownLatch done;
+
+        private volatile RuntimeException error;
+
+        Band(ByteBuffer data, YuvLayout layout, int rotation, Object out, int outOffset, int rowStart, int rowEnd,
+             CountDownLatch done) {
+            this.data = data;
+            this.layout = layout;
+            this.rotation = rotation;
+            this.out = out;
+            this.outOffset = outOffset;
+            this.rowStart = rowStart;
+            this.rowEnd = rowEnd;
+            this.done = done;
+        }
+
+        @Override
+        public void run() {
+            try {
+                YuvConverter.convertBuffer(data, layout, rotation, out, outOffset, rowStart, rowEnd);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Band conversion failed " + rowStart + "-" + rowEnd, e);
+                error = e;
+            } finally {
+                done.countDown();
+            }
+        }
+    }
+
+    private static final class WorkerThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "YuvConverter:" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
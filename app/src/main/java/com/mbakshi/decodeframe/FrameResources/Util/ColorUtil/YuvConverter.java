@@ -0,0 +1,420 @@
+package com.mbakshi.decodeframe.FrameResources.Util.ColorUtil;
+
+import com.mbakshi.decodeframe.FrameResources.Assertions;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * Fixed point YUV420 to RGB conversion.
+ * <p>
+ * The BT.601 coefficients are folded into the per-Y, per-U and per-V contribution tables of
+ * {@link YuvTables} once, so the inner loops only do table lookups, integer adds and a clamp
+ * lookup. Every chroma sample is shared by a 2x2 block of luma samples, so the frame is walked one row
+ * pair at a time and the chroma contribution is computed once per block.
+ * <p>
+ * Frames are described by a {@link YuvLayout} and can be read from an array or straight from a
+ * decoder output {@link ByteBuffer}. Three outputs are supported, each with its own kernel: ARGB_8888
+ * into an int[], RGB_565 into a short[], and 8 bit grayscale into a byte[]. The grayscale kernel
+ * only reads the luma plane. The frame can be rotated on the way: pixels are written straight to
+ * their rotated position (see {@link Orientation}), so an oriented frame never needs a second copy.
+ * <p>
+ * All entry points write into caller supplied memory and never allocate a frame sized buffer.
+ */
+public final class YuvConverter {
+    private YuvConverter() {}
+
+    /**
+     * Converts a {@code COLOR_FormatYUV420Planar} (I420) frame.
+     *
+     * @param data The decoded frame.
+     * @param width The visible width of the frame.
+     * @param height The visible height of the frame.
+     * @param stride The row stride of the luma plane, in bytes.
+     * @param sliceHeight The number of rows in the luma plane, including any padding.
+     * @param out The destination. Pixels are written with a row stride of {@code width}.
+     * @param outOffset The index in {@code out} of the top left pixel.
+     */
+    public static void convertPlanar(byte[] data, int width, int height, int stride, int sliceHeight,
+                                     int[] out, int outOffset) {
+        YuvLayout layout = new YuvLayout().setPlanar(width, height, stride, sliceHeight);
+        convert(data, 0, layout, 0, out, outOffset, 0, height);
+    }
+
+    /**
+     * Converts a {@code COLOR_FormatYUV420SemiPlanar} (NV12) frame.
+     *
+     * @see #convertPlanar(byte[], int, int, int, int, int[], int)
+     */
+    public static void convertSemiPlanar(byte[] data, int width, int height, int stride, int sliceHeight,
+                                         int[] out, int outOffset) {
+        YuvLayout layout = new YuvLayout().setSemiPlanar(width, height, stride, sliceHeight);
+        convert(data, 0, layout, 0, out, outOffset, 0, height);
+    }
+
+    /**
+     * Converts a {@code COLOR_FormatYUV420Planar} frame into an {@link IntBuffer}, starting at its
+     * current position. The position is not modified.
+     */
+    public static void convertPlanar(byte[] data, int width, int height, int stride, int sliceHeight,
+                                     IntBuffer out) {
+        convert(data, new YuvLayout().setPlanar(width, height, stride, sliceHeight), out);
+    }
+
+    /**
+     * Converts a {@code COLOR_FormatYUV420SemiPlanar} frame into an {@link IntBuffer}, starting at its
+     * current position. The position is not modified.
+     */
+    public static void convertSemiPlanar(byte[] data, int width, int height, int stride, int sliceHeight,
+                                         IntBuffer out) {
+        convert(data, new YuvLayout().setSemiPlanar(width, height, stride, sliceHeight), out);
+    }
+
+    /**
+     * Converts the rows {@code [rowStart, rowEnd)} of a frame held in a {@link ByteBuffer}, typically a
+     * decoder output buffer, to ARGB_8888 and rotates them. The frame starts at the buffer's current
+     * position, and neither the position nor the limit are modified.
+     * <p>
+     * Heap buffers are read through their backing array. Direct buffers, which is what decoders hand
+     * out, are read one row pair at a time into a small per thread scratch array, so the frame is never
+     * copied as a whole and the buffer can be released as soon as this returns.
+     *
+     * @see #convert(byte[], int, YuvLayout, int, int[], int, int, int)
+     */
+    public static void convert(ByteBuffer data, YuvLayout layout, int rotation, int[] out, int outOffset,
+                               int rowStart, int rowEnd) {
+        convertBuffer(data, layout, rotation, out, outOffset, rowStart, rowEnd);
+    }
+
+    /**
+     * Converts the rows {@code [rowStart, rowEnd)} of a frame to RGB_565, in the native 16 bit layout of
+     * an RGB_565 bitmap.
+     *
+     * @see #convert(ByteBuffer, YuvLayout, int, int[], int, int, int)
+     */
+    public static void convert(ByteBuffer data, YuvLayout layout, int rotation, short[] out, int outOffset,
+                               int rowStart, int rowEnd) {
+        convertBuffer(data, layout, rotation, out, outOffset, rowStart, rowEnd);
+    }
+
+    /**
+     * Converts the rows {@code [rowStart, rowEnd)} of a frame to 8 bit full range grayscale. Only the
+     * luma plane is read.
+     *
+     * @see #convert(ByteBuffer, YuvLayout, int, int[], int, int, int)
+     */
+    public static void convert(ByteBuffer data, YuvLayout layout, int rotation, byte[] out, int outOffset,
+                               int rowStart, int rowEnd) {
+        convertBuffer(data, layout, rotation, out, outOffset, rowStart, rowEnd);
+    }
+
+    /**
+     * Converts the rows {@code [rowStart, rowEnd)} of a frame to ARGB_8888 and rotates them. The rows
+     * are written to the same place in {@code out} as a whole frame conversion would write them, so
+     * disjoint row ranges can be converted concurrently.
+     *
+     * @param data Array holding the decoded frame.
+     * @param offset Index in {@code data} of the first byte of the frame.
+     * @param layout Where the planes are, relative to {@code offset}.
+     * @param rotation Clockwise rotation to apply, one of 0, 90, 180 and 270. The rotated frame is laid
+     *     out with a row stride of {@link Orientation#getWidth(int, int, int)}.
+     * @param out The destination.
+     * @param outOffset The index in {@code out} of the top left pixel of the rotated frame.
+     * @param rowStart The first row to convert. Must be even, so that it starts a chroma row.
+     * @param rowEnd The row after the last row to convert.
+     */
+    public static void convert(byte[] data, int offset, YuvLayout layout, int rotation, int[] out, int outOffset,
+                               int rowStart, int rowEnd) {
+        convertArray(data, offset, layout, rotation, out, outOffset, rowStart, rowEnd);
+    }
+
+    /**
+     * Converts into an int[], short[] or byte[] destination, picking the matching kernel.
+     */
+    static void convertBuffer(ByteBuffer data, YuvLayout layout, int rotation, Object out, int outOffset,
+                              int rowStart, int rowEnd) {
+        if (data.hasArray()) {
+            convertArray(data.array(), data.arrayOffset() + data.position(), layout, rotation, out, outOffset,
+                    rowStart, rowEnd);
+        } else {
+            convertDirect(data, layout, rotation, out, outOffset, rowStart, rowEnd);
+        }
+    }
+
+    private static void convertArray(byte[] data, int offset, YuvLayout layout, int rotation, Object out,
+                                     int outOffset, int rowStart, int rowEnd) {
+        int width = layout.width;
+        int height = layout.height;
+        checkRange(layout, out, outOffset, rowStart, rowEnd);
+        int stride = layout.yRowStride;
+        int chromaStride = layout.chromaRowStride;
+        int chromaStep = layout.chromaPixelStride;
+        int stepX = Orientation.stepX(width, height, rotation);
+        int stepY = Orientation.stepY(width, height, rotation);
+        int lastPair = rowStart + ((rowEnd - rowStart) & ~1);
+        int y0 = offset + layout.yOffset + rowStart * stride;
+        int u = offset + layout.uOffset + (rowStart >> 1) * chromaStride;
+        int v = offset + layout.vOffset + (rowStart >> 1) * chromaStride;
+        int o0 = outOffset + Orientation.origin(width, height, rotation) + rowStart * stepY;
+        for (int row = rowStart; row < lastPair; row += 2) {
+            convertRowPair(data, y0, y0 + stride, data, u, v, chromaStep, width, out, o0, o0 + stepY, stepX);
+            y0 += 2 * stride;
+            u += chromaStride;
+            v += chromaStride;
+            o0 += 2 * stepY;
+        }
+        if (lastPair != rowEnd) {
+            // Odd row count, the last row has its own chroma row.
+            convertRowPair(data, y0, y0, data, u, v, chromaStep, width, out, o0, o0, stepX);
+        }
+    }
+
+    private static void convertDirect(ByteBuffer data, YuvLayout layout, int rotation, Object out, int outOffset,
+                                      int rowStart, int rowEnd) {
+        int width = layout.width;
+        int height = layout.height;
+        checkRange(layout, out, outOffset, rowStart, rowEnd);
+        // Reads go through a duplicate so that bands converted concurrently never share a position.
+        ByteBuffer source = data.duplicate();
+        int base = data.position();
+        boolean lumaOnly = out instanceof byte[];
+        int chromaLength = layout.getChromaRowLength();
+        boolean interleaved = layout.isChromaInterleaved();
+        int firstChroma = Math.min(layout.uOffset, layout.vOffset);
+        // Interleaved chroma is read in one go, planar chroma as a U run followed by a V run.
+        int uScratch = interleaved ? 2 * width + layout.uOffset - firstChroma : 2 * width;
+        int vScratch = interleaved ? 2 * width + layout.vOffset - firstChroma : 2 * width + chromaLength;
+        byte[] scratch = RowScratch.getBytes(2 * width + 2 * chromaLength + layout.chromaPixelStride);
+
+        int stepX = Orientation.stepX(width, height, rotation);
+        int stepY = Orientation.stepY(width, height, rotation);
+        int o0 = outOffset + Orientation.origin(width, height, rotation) + rowStart * stepY;
+        for (int row = rowStart; row < rowEnd; row += 2) {
+            boolean pair = row + 1 < rowEnd;
+            int y0 = base + layout.yOffset + row * layout.yRowStride;
+            read(source, y0, scratch, 0, width);
+            if (pair) {
+                read(source, y0 + layout.yRowStride, scratch, width, width);
+            }
+            int chromaRow = base + (row >> 1) * layout.chromaRowStride;
+            if (lumaOnly) {
+                // Grayscale never looks at chroma.
+            } else if (interleaved) {
+                read(source, chromaRow + firstChroma, scratch, 2 * width,
+                        chromaLength + Math.abs(layout.vOffset - layout.uOffset));
+            } else {
+                read(source, chromaRow + layout.uOffset, scratch, uScratch, chromaLength);
+                read(source, chromaRow + layout.vOffset, scratch, vScratch, chromaLength);
+            }
+            convertRowPair(scratch, 0, pair ? width : 0, scratch, uScratch, vScratch, layout.chromaPixelStride,
+                    width, out, o0, pair ? o0 + stepY : o0, stepX);
+            o0 += 2 * stepY;
+        }
+    }
+
+    private static void read(ByteBuffer source, int position, byte[] dst, int dstOffset, int length) {
+        source.position(position);
+        source.get(dst, dstOffset, length);
+    }
+
+    private static void convert(byte[] data, YuvLayout layout, IntBuffer out) {
+        int width = layout.width;
+        int height = layout.height;
+        Assertions.checkArgument(out.remaining() >= width * height);
+        if (out.hasArray()) {
+            convertArray(data, 0, layout, 0, out.array(), out.arrayOffset() + out.position(), 0, height);
+            return;
+        }
+        // Direct buffers are filled a row pair at a time through a per thread scratch array.
+        int[] scratch = RowScratch.get(2 * width);
+        int base = out.position();
+        for (int row = 0; row < height; row += 2) {
+            int rows = Math.min(2, height - row);
+            int y0 = layout.yOffset + row * layout.yRowStride;
+            int chroma = (row >> 1) * layout.chromaRowStride;
+            convertRowPair(data, y0, rows == 2 ? y0 + layout.yRowStride : y0, data, layout.uOffset + chroma,
+                    layout.vOffset + chroma, layout.chromaPixelStride, width, scratch, 0, width, 1);
+            out.position(base + row * width);
+            out.put(scratch, 0, rows * width);
+        }
+        out.position(base);
+    }
+
+    private static void checkRange(YuvLayout layout, Object out, int outOffset, int rowStart, int rowEnd) {
+        Assertions.checkArgument(layout.isDirectlyConvertible(), "Layout needs unpacking " + layout);
+        Assertions.checkArgument(length(out) - outOffset >= layout.width * layout.height);
+        Assertions.checkArgument((rowStart & 1) == 0 && rowStart <= rowEnd && rowEnd <= layout.height);
+    }
+
+    /**
+     * Length of an int[], short[] or byte[] destination.
+     */
+    static int length(Object out) {
+        if (out instanceof int[]) {
+            return ((int[]) out).length;
+        } else if (out instanceof short[]) {
+            return ((short[]) out).length;
+        } else {
+            return ((byte[]) out).length;
+        }
+    }
+
+    private static void convertRowPair(byte[] y, int y0, int y1, byte[] c, int u, int v, int chromaStep,
+                                       int width, Object out, int o0, int o1, int step) {
+        if (out instanceof int[]) {
+            convertRowPair(y, y0, y1, c, u, v, chromaStep, width, (int[]) out, o0, o1, step);
+        } else if (out instanceof short[]) {
+            convertRowPair(y, y0, y1, c, u, v, chromaStep, width, (short[]) out, o0, o1, step);
+        } else {
+            convertRowPair(y, y0, y1, width, (byte[]) out, o0, o1, step);
+        }
+    }
+
+    /**
+     * Converts two luma rows sharing one chroma row. Passing the same offsets for both rows converts a
+     * single row.
+     *
+     * @param y Array holding the luma rows.
+     * @param y0 Offset of the first luma row.
+     * @param y1 Offset of the second luma row.
+     * @param c Array holding the chroma row.
+     * @param u Offset of the first U sample.
+     * @param v Offset of the first V sample.
+     * @param chromaStep Distance between two consecutive U (or V) samples.
+     * @param width Number of pixels to convert in each row.
+     * @param out Destination array.
+     * @param o0 Offset in {@code out} of the first pixel of the first row.
+     * @param o1 Offset in {@code out} of the first pixel of the second row.
+     * @param step Distance in {@code out} between two horizontally adjacent pixels.
+     */
+    static void convertRowPair(byte[] y, int y0, int y1, byte[] c, int u, int v, int chromaStep, int width,
+                               int[] out, int o0, int o1, int step) {
+        final int[] yTable = YuvTables.Y;
+        final int[] clamp = YuvTables.CLAMP;
+        int end = y0 + (width & ~1);
+        while (y0 < end) {
+            int cu = c[u] & 0xff;
+            int cv = c[v] & 0xff;
+            int r = YuvTables.RV[cv];
+            int g = YuvTables.GU[cu] + YuvTables.GV[cv];
+            int b = YuvTables.BU[cu];
+
+            int l = yTable[y[y0] & 0xff];
+            out[o0] = YuvTables.argb(clamp, l + r, l + g, l + b);
+            l = yTable[y[y0 + 1] & 0xff];
+            out[o0 + step] = YuvTables.argb(clamp, l + r, l + g, l + b);
+            l = yTable[y[y1] & 0xff];
+            out[o1] = YuvTables.argb(clamp, l + r, l + g, l + b);
+            l = yTable[y[y1 + 1] & 0xff];
+            out[o1 + step] = YuvTables.argb(clamp, l + r, l + g, l + b);
+
+            y0 += 2;
+            y1 += 2;
+            o0 += 2 * step;
+            o1 += 2 * step;
+            u += chromaStep;
+            v += chromaStep;
+        }
+        if ((width & 1) != 0) {
+            int cu = c[u] & 0xff;
+            int cv = c[v] & 0xff;
+            int r = YuvTables.RV[cv];
+            int g = YuvTables.GU[cu] + YuvTables.GV[cv];
+            int b = YuvTables.BU[cu];
+            int l = yTable[y[y0] & 0xff];
+            out[o0] = YuvTables.argb(clamp, l + r, l + g, l + b);
+            l = yTable[y[y1] & 0xff];
+            out[o1] = YuvTables.argb(clamp, l + r, l + g, l + b);
+        }
+    }
+
+    /**
+     * RGB_565 variant of {@link #convertRowPair(byte[], int, int, byte[], int, int, int, int, int[], int,
+     * int, int)}.
+     */
+    static void convertRowPair(byte[] y, int y0, int y1, byte[] c, int u, int v, int chromaStep, int width,
+                               short[] out, int o0, int o1, int step) {
+        final int[] yTable = YuvTables.Y;
+        final int[] clamp = YuvTables.CLAMP;
+        int end = y0 + (width & ~1);
+        while (y0 < end) {
+            int cu = c[u] & 0xff;
+            int cv = c[v] & 0xff;
+            int r = YuvTables.RV[cv];
+            int g = YuvTables.GU[cu] + YuvTables.GV[cv];
+            int b = YuvTables.BU[cu];
+
+            int l = yTable[y[y0] & 0xff];
+            out[o0] = YuvTables.rgb565(clamp, l + r, l + g, l + b);
+            l = yTable[y[y0 + 1] & 0xff];
+            out[o0 + step] = YuvTables.rgb565(clamp, l + r, l + g, l + b);
+            l = yTable[y[y1] & 0xff];
+            out[o1] = YuvTables.rgb565(clamp, l + r, l + g, l + b);
+            l = yTable[y[y1 + 1] & 0xff];
+            out[o1 + step] = YuvTables.rgb565(clamp, l + r, l + g, l + b);
+
+            y0 += 2;
+            y1 += 2;
+            o0 += 2 * step;
+            o1 += 2 * step;
+            u += chromaStep;
+            v += chromaStep;
+        }
+        if ((width & 1) != 0) {
+            int cu = c[u] & 0xff;
+            int cv = c[v] & 0xff;
+            int r = YuvTables.RV[cv];
+            int g = YuvTables.GU[cu] + YuvTables.GV[cv];
+            int b = YuvTables.BU[cu];
+            int l = yTable[y[y0] & 0xff];
+            out[o0] = YuvTables.rgb565(clamp, l + r, l + g, l + b);
+            l = yTable[y[y1] & 0xff];
+            out[o1] = YuvTables.rgb565(clamp, l + r, l + g, l + b);
+        }
+    }
+
+    /**
+     * Grayscale variant of {@link #convertRowPair(byte[], int, int, byte[], int, int, int, int, int[],
+     * int, int, int)}, which only needs the luma rows.
+     */
+    static void convertRowPair(byte[] y, int y0, int y1, int width, byte[] out, int o0, int o1, int step) {
+        final byte[] luma = YuvTables.LUMA;
+        int end = y0 + width;
+        while (y0 < end) {
+            out[o0] = luma[y[y0] & 0xff];
+            out[o1] = luma[y[y1] & 0xff];
+            y0++;
+            y1++;
+            o0 += step;
+            o1 += step;
+        }
+    }
+
+    /**
+     * Per thread scratch rows, used when the source or the destination cannot be accessed directly.
+     */
+    static final class RowScratch {
+        private static final ThreadLocal<int[]> ROWS = new ThreadLocal<>();
+        private static final ThreadLocal<byte[]> BYTES = new ThreadLocal<>();
+
+        private RowScratch() {}
+
+        static int[] get(int length) {
+            int[] rows = ROWS.get();
+            if (rows == null || rows.length < length) {
+                rows = new int[length];
+                ROWS.set(rows);
+            }
+            return rows;
+        }
+
+        static byte[] getBytes(int length) {
+            byte[] bytes = BYTES.get();
+            if (bytes == null || bytes.length < length) {
+                bytes = new byte[length];
+                BYTES.set(bytes);
+            }
+            return bytes;
+        }
+    }
+}
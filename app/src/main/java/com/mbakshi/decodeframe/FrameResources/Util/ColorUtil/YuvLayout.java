@@ -0,0 +1,195 @@
+package com.mbakshi.decodeframe.FrameResources.Util.ColorUtil;
+
+import android.media.MediaCodecInfo;
+
+import com.mbakshi.decodeframe.FrameResources.Assertions;
+
+/**
+ * Describes where the planes of a YUV 4:2:0 frame sit inside a decoder output buffer.
+ * <p>
+ * Offsets are relative to the first byte of the frame, which for a decoder output buffer is the
+ * {@code offset} reported in its {@code BufferInfo}. Luma samples are addressed as
+ * {@code yOffset + y * yRowStride + x * yPixelStride} and chroma samples as
+ * {@code uOffset + (y / 2) * chromaRowStride + (x / 2) * chromaPixelStride}, which covers planar
+ * (pixel stride 1) as well as interleaved (pixel stride 2) chroma. Every addressed sample is one
+ * byte; formats with wider samples point the offsets at the most significant byte and use larger
+ * pixel strides. The conversion kernels read layouts with a luma pixel stride of 1, other layouts go
+ * through their {@link FormatConverter} first.
+ */
+public final class YuvLayout {
+    /** The {@code MediaCodecInfo.CodecCapabilities} color format the frame was decoded to. */
+    public int colorFormat;
+
+    /** Visible width of the frame, in pixels. */
+    public int width;
+    /** Visible height of the frame, in pixels. */
+    public int height;
+
+    /** Offset of the first luma sample. */
+    public int yOffset;
+    /** Distance between two luma rows, in bytes. */
+    public int yRowStride;
+    /** Distance between two horizontally adjacent luma samples, in bytes. */
+    public int yPixelStride;
+    /** Number of luma rows in the buffer, including padding rows. */
+    public int sliceHeight;
+
+    /** Offset of the first U sample. */
+    public int uOffset;
+    /** Offset of the first V sample. */
+    public int vOffset;
+    /** Distance between two chroma rows, in bytes. */
+    public int chromaRowStride;
+    /** Distance between two horizontally adjacent U (or V) samples, in bytes. */
+    public int chromaPixelStride;
+
+    /**
+     * Describes a {@code COLOR_FormatYUV420Planar} (I420) frame: a luma plane followed by a quarter
+     * size U plane and a quarter size V plane.
+     *
+     * @param stride The luma row stride, in bytes.
+     * @param sliceHeight The number of luma rows, including padding rows.
+     * @return This layout.
+     */
+    public YuvLayout setPlanar(int width, int height, int stride, int sliceHeight) {
+        set(MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar, width, height, stride, sliceHeight);
+        uOffset = stride * sliceHeight;
+        vOffset = uOffset + (stride / 2) * (sliceHeight / 2);
+        chromaRowStride = stride / 2;
+        chromaPixelStride = 1;
+        return this;
+    }
+
+    /**
+     * Describes a {@code COLOR_FormatYUV420SemiPlanar} (NV12) frame: a luma plane followed by a plane of
+     * interleaved U and V samples.
+     *
+     * @see #setPlanar(int, int, int, int)
+     */
+    public YuvLayout setSemiPlanar(int width, int height, int stride, int sliceHeight) {
+        set(MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar, width, height, stride, sliceHeight);
+        uOffset = stride * sliceHeight;
+        vOffset = uOffset + 1;
+        chromaRowStride = stride;
+        chromaPixelStride = 2;
+        return this;
+    }
+
+    /**
+     * Describes an NV21 frame: a luma plane followed by a plane of interleaved V and U samples, V first.
+     *
+     * @see #setPlanar(int, int, int, int)
+     */
+    public YuvLayout setSemiPlanarVu(int colorFormat, int width, int height, int stride, int sliceHeight) {
+        setSemiPlanar(width, height, stride, sliceHeight);
+        this.colorFormat = colorFormat;
+        vOffset = uOffset;
+        uOffset = vOffset + 1;
+        return this;
+    }
+
+    /**
+     * Copies another layout.
+     *
+     * @return This layout.
+     */
+    public YuvLayout set(YuvLayout other) {
+        colorFormat = other.colorFormat;
+        width = other.width;
+        height = other.height;
+        yOffset = other.yOffset;
+        yRowStride = other.yRowStride;
+        yPixelStride = other.yPixelStride;
+        sliceHeight = other.sliceHeight;
+        uOffset = other.uOffset;
+        vOffset = other.vOffset;
+        chromaRowStride = other.chromaRowStride;
+        chromaPixelStride = other.chromaPixelStride;
+        return this;
+    }
+
+    /**
+     * Restricts the layout to a rectangle of the frame. The planes are not touched, only the offsets
+     * move to the top left corner of the rectangle and the size shrinks, so converting the cropped
+     * layout reads nothing outside the rectangle.
+     *
+     * @param left The left edge of the rectangle. Must be even, so that it starts a chroma sample.
+     * @param top The top edge of the rectangle. Must be even, so that it starts a chroma row.
+     * @return This layout.
+     */
+    public YuvLayout crop(int left, int top, int width, int height) {
+        Assertions.checkArgument((left & 1) == 0 && (top & 1) == 0, "Crop must start on an even pixel");
+        Assertions.checkArgument(left >= 0 && top >= 0 && width > 0 && height > 0
+                && left + width <= this.width && top + height <= this.height);
+        yOffset += top * yRowStride + left * yPixelStride;
+        int chroma = (top / 2) * chromaRowStride + (left / 2) * chromaPixelStride;
+        uOffset += chroma;
+        vOffset += chroma;
+        this.width = width;
+        this.height = height;
+        return this;
+    }
+
+    /**
+     * Whether the U and V samples of a chroma row are interleaved, so that one read covers both.
+     */
+    public boolean isChromaInterleaved() {
+        return Math.abs(vOffset - uOffset) < chromaPixelStride;
+    }
+
+    /**
+     * Number of bytes in one chroma row that hold samples for the visible width, for one of U or V.
+     */
+    public int getChromaRowLength() {
+        return ((width + 1) / 2 - 1) * chromaPixelStride + 1;
+    }
+
+    /**
+     * Sets the format and the luma plane, leaving the chroma planes to the caller.
+     *
+     * @return This layout.
+     */
+    public YuvLayout set(int colorFormat, int width, int height, int yOffset, int yRowStride, int yPixelStride) {
+        set(colorFormat, width, height, yRowStride, 0);
+        this.yOffset = yOffset;
+        this.yPixelStride = yPixelStride;
+        return this;
+    }
+
+    /**
+     * Sets the chroma planes.
+     *
+     * @return This layout.
+     */
+    public YuvLayout setChroma(int uOffset, int vOffset, int chromaRowStride, int chromaPixelStride) {
+        this.uOffset = uOffset;
+        this.vOffset = vOffset;
+        this.chromaRowStride = chromaRowStride;
+        this.chromaPixelStride = chromaPixelStride;
+        return this;
+    }
+
+    /**
+     * Whether the conversion kernels can read this layout as it is.
+     */
+    public boolean isDirectlyConvertible() {
+        return yPixelStride == 1;
+    }
+
+    private void set(int colorFormat, int width, int height, int stride, int sliceHeight) {
+        this.colorFormat = colorFormat;
+        this.width = width;
+        this.height = height;
+        this.yOffset = 0;
+        this.yRowStride = stride;
+        this.yPixelStride = 1;
+        this.sliceHeight = sliceHeight;
+    }
+
+    @Override
+    public String toString() {
+        return "YuvLayout(" + colorFormat + ", " + width + "x" + height + ", y " + yOffset + "/" + yRowStride
+                + "/" + yPixelStride + ", slice " + sliceHeight + ", u " + uOffset + ", v " + vOffset + ", chroma "
+                + chromaRowStride + "/" + chromaPixelStride + ")";
+    }
+}
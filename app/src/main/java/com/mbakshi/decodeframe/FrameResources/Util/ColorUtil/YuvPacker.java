@@ -0,0 +1,105 @@
+package com.mbakshi.decodeframe.FrameResources.Util.ColorUtil;
+
+import android.annotation.TargetApi;
+import android.media.Image;
+import android.media.MediaCodecInfo;
+
+import com.mbakshi.decodeframe.FrameResources.Assertions;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Gathers frames the conversion kernels cannot read in place into tightly packed 8 bit NV12: a
+ * {@code width x height} luma plane followed by interleaved U and V rows of {@code 2 * ((width + 1) / 2)}
+ * bytes.
+ * <p>
+ * Rows are read with bulk gets, and only the samples addressed by the source layout are copied, so
+ * wide samples are narrowed to their most significant byte on the way.
+ */
+final class YuvPacker {
+    private YuvPacker() {}
+
+    /**
+     * Number of bytes a packed {@code width x height} frame takes.
+     */
+    static int getPackedSize(int width, int height) {
+        return width * height + 2 * ((width + 1) / 2) * ((height + 1) / 2);
+    }
+
+    /**
+     * Packs the frame described by {@code layout}, which starts at the position of {@code data}.
+     *
+     * @param target Receives the packed frame. Must hold at least {@link #getPackedSize(int, int)} bytes.
+     * @param layout Describes the source, and describes the packed frame in {@code target} on return.
+     */
+    static void pack(ByteBuffer data, YuvLayout layout, byte[] target) {
+        int width = layout.width;
+        int height = layout.height;
+        Assertions.checkArgument(target.length >= getPackedSize(width, height));
+        ByteBuffer source = data.duplicate();
+        int base = data.position();
+        int chromaWidth = (width + 1) / 2;
+        int chromaHeight = (height + 1) / 2;
+        int packedChroma = width * height;
+        gather(source, base + layout.yOffset, layout.yRowStride, layout.yPixelStride, width, height,
+                target, 0, width, 1);
+        gather(source, base + layout.uOffset, layout.chromaRowStride, layout.chromaPixelStride, chromaWidth,
+                chromaHeight, target, packedChroma, 2 * chromaWidth, 2);
+        gather(source, base + layout.vOffset, layout.chromaRowStride, layout.chromaPixelStride, chromaWidth,
+                chromaHeight, target, packedChroma + 1, 2 * chromaWidth, 2);
+        setPacked(layout, width, height);
+    }
+
+    /**
+     * Packs the top left {@code width x height} pixels of a YUV_420_888 image, as returned by
+     * {@code MediaCodec.getOutputImage}.
+     *
+     * @param layout Describes the packed frame in {@code target} on return.
+     */
+    @TargetApi(21)
+    static void pack(Image image, int width, int height, byte[] target, YuvLayout layout) {
+        Assertions.checkArgument(target.length >= getPackedSize(width, height));
+        Image.Plane[] planes = image.getPlanes();
+        int chromaWidth = (width + 1) / 2;
+        int chromaHeight = (height + 1) / 2;
+        int packedChroma = width * height;
+        gather(planes[0], width, height, target, 0, width, 1);
+        gather(planes[1], chromaWidth, chromaHeight, target, packedChroma, 2 * chromaWidth, 2);
+        gather(planes[2], chromaWidth, chromaHeight, target, packedChroma + 1, 2 * chromaWidth, 2);
+        setPacked(layout, width, height);
+    }
+
+    @TargetApi(21)
+    private static void gather(Image.Plane plane, int columns, int rows, byte[] target, int targetOffset,
+                               int targetRowStride, int targetPixelStride) {
+        ByteBuffer buffer = plane.getBuffer();
+        gather(buffer.duplicate(), buffer.position(), plane.getRowStride(), plane.getPixelStride(), columns, rows,
+                target, targetOffset, targetRowStride, targetPixelStride);
+    }
+
+    private static void gather(ByteBuffer source, int offset, int rowStride, int pixelStride, int columns,
+                               int rows, byte[] target, int targetOffset, int targetRowStride,
+                               int targetPixelStride) {
+        int span = (columns - 1) * pixelStride + 1;
+        boolean contiguous = pixelStride == 1 && targetPixelStride == 1;
+        byte[] row = contiguous ? null : YuvConverter.RowScratch.getBytes(span);
+        for (int y = 0; y < rows; y++) {
+            source.position(offset + y * rowStride);
+            int t = targetOffset + y * targetRowStride;
+            if (contiguous) {
+                source.get(target, t, columns);
+                continue;
+            }
+            source.get(row, 0, span);
+            for (int x = 0, s = 0; x < columns; x++, s += pixelStride, t += targetPixelStride) {
+                target[t] = row[s];
+            }
+        }
+    }
+
+    private static void setPacked(YuvLayout layout, int width, int height) {
+        layout.set(MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar, width, height, 0, width, 1);
+        layout.sliceHeight = height;
+        layout.setChroma(width * height, width * height + 1, 2 * ((width + 1) / 2), 2);
+    }
+}
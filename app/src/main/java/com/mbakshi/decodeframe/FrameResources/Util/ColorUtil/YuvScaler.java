@@ -0,0 +1,271 @@
+package com.mbakshi.decodeframe.FrameResources.Util.ColorUtil;
+
+import android.graphics.Rect;
+
+import com.mbakshi.decodeframe.FrameResources.Assertions;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Converts a region of a YUV420 frame straight into a smaller ARGB_8888, RGB_565 or grayscale image.
+ * <p>
+ * Each output pixel is taken from the 2x2 luma block nearest to the centre of the source area it
+ * covers, averaged, together with the single chroma sample that block shares. Only
+ * {@code outWidth * outHeight} blocks are ever read, so the cost depends on the output size and not
+ * on the frame size, and no full resolution image is produced on the way. The scaled image can be
+ * rotated in the same pass, see {@link Orientation}.
+ */
+public final class YuvScaler {
+    /** Per thread table of the source column used for each output column. */
+    private static final ThreadLocal<int[]> COLUMNS = new ThreadLocal<>();
+    /** Per thread copy of the source rows in use, when reading from a direct buffer. */
+    private static final ThreadLocal<byte[]> ROWS = new ThreadLocal<>();
+
+    private YuvScaler() {}
+
+    /**
+     * Computes the centred source region that, scaled to {@code targetWidth x targetHeight}, fills the
+     * target without distortion. This is the region {@code ThumbnailUtils.extractThumbnail} keeps.
+     *
+     * @param out Receives the region.
+     */
+    public static void getCenterCrop(int width, int height, int targetWidth, int targetHeight, Rect out) {
+        Assertions.checkArgument(targetWidth > 0 && targetHeight > 0);
+        if ((long) width * targetHeight > (long) targetWidth * height) {
+            // Source is wider than the target, trim the sides.
+            int cropWidth = (int) ((long) targetWidth * height / targetHeight);
+            int left = ((width - cropWidth) / 2) & ~1;
+            out.set(left, 0, left + cropWidth, height);
+        } else {
+            int cropHeight = (int) ((long) targetHeight * width / targetWidth);
+            int top = ((height - cropHeight) / 2) & ~1;
+            out.set(0, top, width, top + cropHeight);
+        }
+    }
+
+    /**
+     * Scales a region of a frame.
+     *
+     * @param data The decoded frame, starting at the buffer's position. Neither the position nor the
+     *     limit are modified. Direct buffers are read one source row pair at a time, only over the
+     *     columns of {@code source}, so the frame is never copied as a whole.
+     * @param layout Where the planes are.
+     * @param source The region of the frame to scale. Must be at least 2x2.
+     * @param rotation Clockwise rotation to apply to the scaled image, one of 0, 90, 180 and 270.
+     * @param out The destination. Pixels are written with a row stride of
+     *     {@code Orientation.getWidth(outWidth, outHeight, rotation)}.
+     * @param outOffset The index in {@code out} of the top left pixel.
+     * @param outWidth The width of the scaled image, before rotation.
+     * @param outHeight The height of the scaled image, before rotation.
+     */
+    public static void scale(ByteBuffer data, YuvLayout layout, Rect source, int rotation,
+                             int[] out, int outOffset, int outWidth, int outHeight) {
+        scaleInto(data, layout, source, rotation, out, outOffset, outWidth, outHeight);
+    }
+
+    /**
+     * Scales a region of a frame to RGB_565.
+     *
+     * @see #scale(ByteBuffer, YuvLayout, Rect, int, int[], int, int, int)
+     */
+    public static void scale(ByteBuffer data, YuvLayout layout, Rect source, int rotation,
+                             short[] out, int outOffset, int outWidth, int outHeight) {
+        scaleInto(data, layout, source, rotation, out, outOffset, outWidth, outHeight);
+    }
+
+    /**
+     * Scales a region of a frame to 8 bit grayscale. Only the luma plane is read.
+     *
+     * @see #scale(ByteBuffer, YuvLayout, Rect, int, int[], int, int, int)
+     */
+    public static void scale(ByteBuffer data, YuvLayout layout, Rect source, int rotation,
+                             byte[] out, int outOffset, int outWidth, int outHeight) {
+        scaleInto(data, layout, source, rotation, out, outOffset, outWidth, outHeight);
+    }
+
+    private static void scaleInto(ByteBuffer data, YuvLayout layout, Rect source, int rotation,
+                                  Object out, int outOffset, int outWidth, int outHeight) {
+        int srcLeft = source.left;
+        int srcTop = source.top;
+        // the edges, not width(), so the kernel makes no framework calls and runs in JVM tests
+        int srcWidth = source.right - source.left;
+        int srcHeight = source.bottom - source.top;
+        Assertions.checkArgument(srcWidth >= 2 && srcHeight >= 2);
+        Assertions.checkArgument(layout.isDirectlyConvertible(), "Layout needs unpacking " + layout);
+        Assertions.checkArgument(outWidth > 0 && outHeight > 0
+                && YuvConverter.length(out) - outOffset >= outWidth * outHeight);
+
+        int[] columns = getColumns(outWidth);
+        for (int x = 0; x < outWidth; x++) {
+            columns[x] = blockStart(srcLeft, srcWidth, x, outWidth);
+        }
+
+        int stride = layout.yRowStride;
+        int chromaStride = layout.chromaRowStride;
+        int chromaStep = layout.chromaPixelStride;
+        int stepX = Orientation.stepX(outWidth, outHeight, rotation);
+        int stepY = Orientation.stepY(outWidth, outHeight, rotation);
+        int rowOrigin = outOffset + Orientation.origin(outWidth, outHeight, rotation);
+
+        if (data.hasArray()) {
+            byte[] array = data.array();
+            int base = data.arrayOffset() + data.position();
+            for (int y = 0; y < outHeight; y++) {
+                int row = blockStart(srcTop, srcHeight, y, outHeight);
+                int y0 = base + layout.yOffset + row * stride;
+                int chromaRow = base + (row >> 1) * chromaStride;
+                scaleRow(array, y0, y0 + stride, array, chromaRow + layout.uOffset, chromaRow + layout.vOffset,
+                        chromaStep, columns, outWidth, out, rowOrigin, stepX);
+                rowOrigin += stepY;
+            }
+            return;
+        }
+
+        // Only the columns of the source region are read. Offsets handed to scaleRow are shifted so that
+        // adding an absolute source column lands inside the scratch copy.
+        ByteBuffer buffer = data.duplicate();
+        int base = data.position();
+        int left = srcLeft & ~1;
+        int lumaLength = Math.min(source.right + 1, layout.width) - left;
+        int chromaStart = (left >> 1) * chromaStep;
+        int chromaLength = ((lumaLength + 1) / 2 - 1) * chromaStep + 1;
+        boolean lumaOnly = out instanceof byte[];
+        boolean interleaved = layout.isChromaInterleaved();
+        int firstChroma = Math.min(layout.uOffset, layout.vOffset);
+        int uScratch = interleaved ? 2 * lumaLength + layout.uOffset - firstChroma : 2 * lumaLength;
+        int vScratch = interleaved ? 2 * lumaLength + layout.vOffset - firstChroma : 2 * lumaLength + chromaLength;
+        byte[] scratch = getRows(2 * lumaLength + 2 * chromaLength + chromaStep);
+        int lastRow = -1;
+        for (int y = 0; y < outHeight; y++) {
+            int row = blockStart(srcTop, srcHeight, y, outHeight);
+            if (row != lastRow) {
+                // Upscaled regions map several output rows to the same block, read it once.
+                int y0 = base + layout.yOffset + row * stride + left;
+                read(buffer, y0, scratch, 0, lumaLength);
+                read(buffer, y0 + stride, scratch, lumaLength, lumaLength);
+                int chromaRow = base + (row >> 1) * chromaStride + chromaStart;
+                if (lumaOnly) {
+                    // Grayscale never looks at chroma.
+                } else if (interleaved) {
+                    read(buffer, chromaRow + firstChroma, scratch, 2 * lumaLength,
+                            chromaLength + Math.abs(layout.vOffset - layout.uOffset));
+                } else {
+                    read(buffer, chromaRow + layout.uOffset, scratch, uScratch, chromaLength);
+                    read(buffer, chromaRow + layout.vOffset, scratch, vScratch, chromaLength);
+                }
+                lastRow = row;
+            }
+            scaleRow(scratch, -left, lumaLength - left, scratch, uScratch - chromaStart, vScratch - chromaStart,
+                    chromaStep, columns, outWidth, out, rowOrigin, stepX);
+            rowOrigin += stepY;
+        }
+    }
+
+    private static void scaleRow(byte[] y, int y0, int y1, byte[] c, int u, int v, int chromaStep,
+                                 int[] columns, int outWidth, Object out, int o, int step) {
+        if (out instanceof int[]) {
+            scaleRow(y, y0, y1, c, u, v, chromaStep, columns, outWidth, (int[]) out, o, step);
+        } else if (out instanceof short[]) {
+            scaleRow(y, y0, y1, c, u, v, chromaStep, columns, outWidth, (short[]) out, o, step);
+        } else {
+            scaleRow(y, y0, y1, columns, outWidth, (byte[]) out, o, step);
+        }
+    }
+
+    /**
+     * Produces one output row from a source row pair.
+     *
+     * @param y0 Offset in {@code y} of column 0 of the first luma row.
+     * @param y1 Offset in {@code y} of column 0 of the second luma row.
+     * @param u Offset in {@code c} of the U sample of column 0.
+     * @param v Offset in {@code c} of the V sample of column 0.
+     * @param columns Source column of the 2x2 block used for each output pixel.
+     */
+    private static void scaleRow(byte[] y, int y0, int y1, byte[] c, int u, int v, int chromaStep,
+                                 int[] columns, int outWidth, int[] out, int o, int step) {
+        final int[] yTable = YuvTables.Y;
+        final int[] clamp = YuvTables.CLAMP;
+        for (int x = 0; x < outWidth; x++) {
+            int column = columns[x];
+            int sum = (y[y0 + column] & 0xff) + (y[y0 + column + 1] & 0xff)
+                    + (y[y1 + column] & 0xff) + (y[y1 + column + 1] & 0xff);
+            int chroma = (column >> 1) * chromaStep;
+            int cu = c[u + chroma] & 0xff;
+            int cv = c[v + chroma] & 0xff;
+            int l = yTable[(sum + 2) >> 2];
+            out[o] = YuvTables.argb(clamp, l + YuvTables.RV[cv], l + YuvTables.GU[cu] + YuvTables.GV[cv],
+                    l + YuvTables.BU[cu]);
+            o += step;
+        }
+    }
+
+    /**
+     * RGB_565 variant of {@link #scaleRow(byte[], int, int, byte[], int, int, int, int[], int, int[], int,
+     * int)}.
+     */
+    private static void scaleRow(byte[] y, int y0, int y1, byte[] c, int u, int v, int chromaStep,
+                                 int[] columns, int outWidth, short[] out, int o, int step) {
+        final int[] yTable = YuvTables.Y;
+        final int[] clamp = YuvTables.CLAMP;
+        for (int x = 0; x < outWidth; x++) {
+            int column = columns[x];
+            int sum = (y[y0 + column] & 0xff) + (y[y0 + column + 1] & 0xff)
+                    + (y[y1 + column] & 0xff) + (y[y1 + column + 1] & 0xff);
+            int chroma = (column >> 1) * chromaStep;
+            int cu = c[u + chroma] & 0xff;
+            int cv = c[v + chroma] & 0xff;
+            int l = yTable[(sum + 2) >> 2];
+            out[o] = YuvTables.rgb565(clamp, l + YuvTables.RV[cv], l + YuvTables.GU[cu] + YuvTables.GV[cv],
+                    l + YuvTables.BU[cu]);
+            o += step;
+        }
+    }
+
+    /**
+     * Grayscale variant of {@link #scaleRow(byte[], int, int, byte[], int, int, int, int[], int, int[], int,
+     * int)}, which only needs the luma rows.
+     */
+    private static void scaleRow(byte[] y, int y0, int y1, int[] columns, int outWidth, byte[] out, int o,
+                                 int step) {
+        final byte[] luma = YuvTables.LUMA;
+        for (int x = 0; x < outWidth; x++) {
+            int column = columns[x];
+            int sum = (y[y0 + column] & 0xff) + (y[y0 + column + 1] & 0xff)
+                    + (y[y1 + column] & 0xff) + (y[y1 + column + 1] & 0xff);
+            out[o] = luma[(sum + 2) >> 2];
+            o += step;
+        }
+    }
+
+    private static void read(ByteBuffer source, int position, byte[] dst, int dstOffset, int length) {
+        source.position(position);
+        source.get(dst, dstOffset, length);
+    }
+
+    /**
+     * Returns the even coordinate of the 2x2 block closest to the centre of output sample {@code index}.
+     */
+    private static int blockStart(int srcStart, int srcLength, int index, int outLength) {
+        int centre = srcStart + (int) (((2L * index + 1) * srcLength) / (2L * outLength));
+        int start = Math.min(Math.max(centre - 1, srcStart), srcStart + srcLength - 2);
+        return start & ~1;
+    }
+
+    private static int[] getColumns(int length) {
+        int[] columns = COLUMNS.get();
+        if (columns == null || columns.length < length) {
+            columns = new int[length];
+            COLUMNS.set(columns);
+        }
+        return columns;
+    }
+
+    private static byte[] getRows(int length) {
+        byte[] rows = ROWS.get();
+        if (rows == null || rows.length < length) {
+            rows = new byte[length];
+            ROWS.set(rows);
+        }
+        return rows;
+    }
+}
@@ -0,0 +1,72 @@
+package com.mbakshi.decodeframe.FrameResources.Util.ColorUtil;
+
+/**
+ * Fixed point BT.601 lookup tables shared by the conversion kernels.
+ * <p>
+ * The coefficients are folded into per-Y, per-U and per-V contribution tables, scaled by
+ * {@code 1 << SHIFT}. A pixel is then {@code Y[y] + RV[v]}, {@code Y[y] + GU[u] + GV[v]} and
+ * {@code Y[y] + BU[u]}, shifted down and clamped through {@link #CLAMP}. Grayscale output only needs
+ * {@link #LUMA}, which maps a luma sample straight to its full range gray level.
+ */
+final class YuvTables {
+    /** Number of fractional bits used by the fixed point tables. */
+    static final int SHIFT = 16;
+    private static final int ROUNDING = 1 << (SHIFT - 1);
+
+    /**
+     * Clamp table covering every value the tables can produce before clamping. The extremes are
+     * -277 (blue, y = 0, u = 0) and 535 (blue, y = 255, u = 255).
+     */
+    static final int CLAMP_OFFSET = 384;
+    static final int[] CLAMP = new int[1024];
+
+    /** Luma contribution, with the rounding term for the final shift folded in. */
+    static final int[] Y = new int[256];
+    static final int[] RV = new int[256];
+    static final int[] GU = new int[256];
+    static final int[] GV = new int[256];
+    static final int[] BU = new int[256];
+    /** Full range gray level of each video range luma sample. */
+    static final byte[] LUMA = new byte[256];
+
+    static {
+        // Decoders output video range (16-235) BT.601.
+        for (int i = 0; i < 256; i++) {
+            Y[i] = fixed(1.164 * (i - 16)) + ROUNDING;
+            RV[i] = fixed(1.596 * (i - 128));
+            GU[i] = -fixed(0.391 * (i - 128));
+            GV[i] = -fixed(0.813 * (i - 128));
+            BU[i] = fixed(2.018 * (i - 128));
+            LUMA[i] = (byte) Math.min(255, Math.max(0, Math.round(1.164 * (i - 16))));
+        }
+        for (int i = 0; i < CLAMP.length; i++) {
+            int value = i - CLAMP_OFFSET;
+            CLAMP[i] = value < 0 ? 0 : value > 255 ? 255 : value;
+        }
+    }
+
+    private YuvTables() {}
+
+    private static int fixed(double value) {
+        return (int) Math.round(value * (1 << SHIFT));
+    }
+
+    /**
+     * Clamps the fixed point channel sums and packs them into an opaque ARGB_8888 pixel.
+     */
+    static int argb(int[] clamp, int r, int g, int b) {
+        return 0xff000000
+                | (clamp[(r >> SHIFT) + CLAMP_OFFSET] << 16)
+                | (clamp[(g >> SHIFT) + CLAMP_OFFSET] << 8)
+                | clamp[(b >> SHIFT) + CLAMP_OFFSET];
+    }
+
+    /**
+     * Clamps the fixed point channel sums and packs them into an RGB_565 pixel.
+     */
+    static short rgb565(int[] clamp, int r, int g, int b) {
+        return (short) (((clamp[(r >> SHIFT) + CLAMP_OFFSET] >> 3) << 11)
+                | ((clamp[(g >> SHIFT) + CLAMP_OFFSET] >> 2) << 5)
+                | (clamp[(b >> SHIFT) + CLAMP_OFFSET] >> 3));
+    }
+}
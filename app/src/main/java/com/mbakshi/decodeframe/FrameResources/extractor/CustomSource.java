@@ -12,6 +12,7 @@ import com.mbakshi.decodeframe.FrameResources.DataSource.CustomDataSource;
 import com.mbakshi.decodeframe.FrameResources.DataSource.DataSpec;
 import com.mbakshi.decodeframe.FrameResources.SampleLoader.SampleLoader;
 import com.mbakshi.decodeframe.FrameResources.Tracks.CustomTrackOutput;
+import com.mbakshi.decodeframe.FrameResources.Tracks.TrackSampleTable;
 import com.mbakshi.decodeframe.FrameResources.Tracks.TrackOutput;
 import com.mbakshi.decodeframe.FrameResources.Util.Allocate.CustomCountAllocator;
 import com.mbakshi.decodeframe.FrameResources.Util.SampleHolder;
@@ -47,6 +48,8 @@ public class CustomSource implements ExtractorOutput, SampleLoader.LoaderCallbac
 
     private SparseArray<CustomTrackOutput> sampleQueues;
     private SampleLoader loader;
+    // set by cancelLoading, from any thread
+    private volatile boolean loadingCancelled;
 
     private String trackType;
 
@@ -183,6 +186,16 @@ public class CustomSource implements ExtractorOutput, SampleLoader.LoaderCallbac
         return null;
     }
 
+    /**
+     * Returns the sample table of a track, or null if the source has not been prepared.
+     */
+    public TrackSampleTable getSampleTable(int index) {
+        if(parser != null) {
+            return parser.getSampleTable(index);
+        }
+        return null;
+    }
+
     private boolean haveFormatForAllTracks() {
         for (int i = 0; i < sampleQueues.size(); i++) {
             if (!sampleQueues.valueAt(i).hasFormat()) {
@@ -226,10 +239,22 @@ public class CustomSource implements ExtractorOutput, SampleLoader.LoaderCallbac
         return MediaExtractor.SAMPLE_NOT_FOUND;
     }
 
+    /**
+     * Stops loading samples, from any thread and without waiting. The next seek starts loading again.
+     */
+    public void cancelLoading() {
+        loadingCancelled = true;
+        if(loader != null) {
+            loader.cancel();
+        }
+    }
+
     public void seekTo(long positionUs, int seekType) throws IOException {
         Log.i(TAG, "Seek To " + positionUs);
         if(prepared && tracksBuilt) {
-            if(!sampleQueues.valueAt(selectedTrackIndex).skipToKeyframeBefore(positionUs)) {
+            // after a cancel the queued samples may be all there is, load again
+            if(loadingCancelled || !sampleQueues.valueAt(selectedTrackIndex).skipToKeyframeBefore(positionUs)) {
+                loadingCancelled = false;
                 loader.stopLoading();
                 resetAtPositionUs(positionUs, seekType);
             }
@@ -239,6 +264,34 @@ public class CustomSource implements ExtractorOutput, SampleLoader.LoaderCallbac
         }
     }
 
+    /**
+     * Loads the single sync sample at or before {@code positionUs} of the selected track, or the first
+     * one after it when there is none before. Nothing else is loaded: once the sample has been read,
+     * {@link #readSampleData(ByteBuffer, int)} reports the end of the stream.
+     *
+     * @return The timestamp of the sample, or -1 if the sample table is not known.
+     */
+    public long seekToSyncSample(long positionUs) {
+        TrackSampleTable sampleTable = getSampleTable(selectedTrackIndex);
+        if(!prepared || !tracksBuilt || sampleTable == null) {
+            return -1;
+        }
+        int sampleIndex = sampleTable.getIndexOfEarlierOrEqualSynchronizationSample(positionUs);
+        if(sampleIndex == TrackSampleTable.NO_SAMPLE) {
+            sampleIndex = sampleTable.getIndexOfLaterOrEqualSynchronizationSample(positionUs);
+        }
+        if(sampleIndex == TrackSampleTable.NO_SAMPLE) {
+            return -1;
+        }
+        Log.i(TAG, "Seek to sync sample " + sampleIndex + " at " + sampleTable.timestampsUs[sampleIndex]);
+        loadingCancelled = false;
+        loader.stopLoading();
+        parser.seek();
+        clearSamples();
+        loader.loadSync(parser.getSamplePosition(selectedTrackIndex, sampleIndex), selectedTrackIndex);
+        return sampleTable.timestampsUs[sampleIndex];
+    }
+
     private void resetAtPositionUs(long positionUs, int seekType) {
         parser.seek();
         clearSamples();
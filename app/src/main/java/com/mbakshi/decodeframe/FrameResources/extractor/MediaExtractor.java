@@ -6,6 +6,8 @@ import android.media.MediaFormat;
 import android.net.Uri;
 import android.util.Log;
 
+import com.mbakshi.decodeframe.FrameResources.Tracks.TrackSampleTable;
+
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
@@ -87,6 +89,14 @@ public class MediaExtractor {
         return source.getNativeTrackFormat(i);
     }
 
+    /**
+     * Returns the timestamps, sizes and sync flags of every sample of a track, or null if they are not
+     * known.
+     */
+    public TrackSampleTable getSampleTable(int i) {
+        return source.getSampleTable(i);
+    }
+
     public void selectTrack(int i) {
         source.selectTrack(i);
     }
@@ -133,6 +143,22 @@ public class MediaExtractor {
 
     }
 
+    /**
+     * Loads only the sync sample at or before {@code positionUs}, for decoding a single key frame.
+     *
+     * @return The timestamp of the sample, or -1 if it could not be located.
+     */
+    public long seekToSyncSample(long positionUs) {
+        return source.seekToSyncSample(positionUs);
+    }
+
+    /**
+     * Stops loading samples, from any thread. The next seek loads again.
+     */
+    public void cancelLoading() {
+        source.cancelLoading();
+    }
+
     public void advance() {
         source.advance();
     }
@@ -119,6 +119,18 @@ public class Parser {
         }
     }
 
+    /**
+     * Returns the sample table of a track, or null if the tracks have not been parsed yet.
+     *
+     * @param trackIndex The index of the track, in the order of the track outputs.
+     */
+    public TrackSampleTable getSampleTable(int trackIndex) {
+        if (tracks == null || trackIndex < 0 || trackIndex >= tracks.length) {
+            return null;
+        }
+        return tracks[trackIndex].sampleTable;
+    }
+
     public void setExtractorOutput(ExtractorOutput extractorOutput) {
         this.extractorOutput = extractorOutput;
     }
@@ -183,7 +195,30 @@ public class Parser {
         return earliestSamplePosition;
     }
 
+    /**
+     * Restricts reading to a single sample of one track, so that loading stops once it has been read.
+     * The restriction lasts until the next {@link #getPosition(long, int)}.
+     *
+     * @return The byte offset of the sample.
+     */
+    public long getSamplePosition(int trackIndex, int sampleIndex) {
+        for (int i = 0; i < tracks.length; i++) {
+            Mp4Track track = tracks[i];
+            if (i == trackIndex) {
+                track.sampleIndex = sampleIndex;
+                track.endSampleIndex = sampleIndex + 1;
+            } else {
+                track.sampleIndex = track.sampleTable.sampleCount;
+                track.endSampleIndex = track.sampleTable.sampleCount;
+            }
+        }
+        return tracks[trackIndex].sampleTable.offsets[sampleIndex];
+    }
+
     public long getPosition(long timeUs, int seekType) {
+        for (Mp4Track track : tracks) {
+            track.endSampleIndex = track.sampleTable.sampleCount;
+        }
         switch (seekType) {
             case MediaExtractor.SEEK_TO_PREV_SYNC :
                 return getPrevSyncPosition(timeUs);
@@ -375,7 +410,7 @@ public class Parser {
         for (int trackIndex = 0; trackIndex < tracks.length; trackIndex++) {
             Mp4Track track = tracks[trackIndex];
             int sampleIndex = track.sampleIndex;
-            if (sampleIndex == track.sampleTable.sampleCount) {
+            if (sampleIndex >= track.endSampleIndex) {
                 continue;
             }
 
@@ -410,11 +445,14 @@ public class Parser {
         public final TrackOutput trackOutput;
 
         public int sampleIndex;
+        /** Index of the sample after the last one to read. */
+        public int endSampleIndex;
 
         public Mp4Track(Track track, TrackSampleTable sampleTable, TrackOutput trackOutput) {
             this.track = track;
             this.sampleTable = sampleTable;
             this.trackOutput = trackOutput;
+            endSampleIndex = sampleTable.sampleCount;
         }
     }
 }
@@ -0,0 +1,34 @@
+package com.mbakshi.decodeframe;
+
+import android.graphics.Bitmap;
+
+/**
+ * A frame returned by a deadline bounded request, with how well it matches the time asked for.
+ *
+ * @see ClipExtractor#getFrameAtTime(long, int, int, boolean, Bitmap.Config, long)
+ */
+public final class FrameResult {
+    /** The frame the seek mode picks for the requested time. */
+    public static final int EXACT = 0;
+    /** An earlier frame, the latest one decoded before the deadline expired. */
+    public static final int APPROXIMATE = 1;
+    /** No frame could be decoded in time. */
+    public static final int MISSING = 2;
+
+    /** One of {@link #EXACT}, {@link #APPROXIMATE} and {@link #MISSING}. */
+    public final int status;
+    /** The frame, null when {@link #MISSING}. It belongs to the caller. */
+    public final Bitmap frame;
+    /** The presentation time of the frame, in microseconds, or -1 when {@link #MISSING}. */
+    public final long timeUs;
+
+    FrameResult(int status, Bitmap frame, long timeUs) {
+        this.status = status;
+        this.frame = frame;
+        this.timeUs = timeUs;
+    }
+
+    static FrameResult missing() {
+        return new FrameResult(MISSING, null, -1);
+    }
+}
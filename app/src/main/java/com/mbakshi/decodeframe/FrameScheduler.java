@@ -0,0 +1,304 @@
+package com.mbakshi.decodeframe;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.util.Log;
+
+import com.mbakshi.decodeframe.FrameResources.Assertions;
+import com.mbakshi.decodeframe.FrameResources.Util.Allocate.FramePool;
+import com.mbakshi.decodeframe.FrameResources.Util.Cache.DiskFrameCache;
+import com.mbakshi.decodeframe.FrameResources.Util.Cache.SourceFingerprint;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Schedules frame requests for thumbnail grids and scrubbing UIs.
+ * <p>
+ * Requests run on a bounded number of workers, visible ones first, then prefetches, then background
+ * work. Within a priority the latest request runs first, so the frames for the current scroll
+ * position are extracted before the ones scrolled past. Identical requests (same source, time, size
+ * and config) that are still queued or running are merged and share one extraction; asking for one
+ * again at a higher priority moves it up.
+ * <p>
+ * Frames in the {@link DiskFrameCache} are returned without opening the source. Other requests open
+ * their own {@link ClipExtractor}. Listeners are called on the worker thread.
+ */
+public final class FrameScheduler {
+    private static final String TAG = "FrameScheduler";
+    private static final long IDLE_KEEP_ALIVE_SECONDS = 10;
+
+    /** Frames on screen. */
+    public static final int PRIORITY_VISIBLE = 0;
+    /** Frames about to come on screen. */
+    public static final int PRIORITY_PREFETCH = 1;
+    /** Frames that may be needed later. */
+    public static final int PRIORITY_BACKGROUND = 2;
+
+    /**
+     * Receives the frame of a request.
+     */
+    public interface FrameListener {
+        /**
+         * @param frame The frame, or null if it could not be extracted. It belongs to the listener, and
+         *     can be handed back with {@link FramePool#releaseBitmap(Bitmap)} once used.
+         */
+        void onFrame(Uri uri, long timeUs, Bitmap frame);
+    }
+
+    /**
+     * A request for a frame, which can be cancelled until its listener is called.
+     */
+    public final class Request {
+        private final FrameListener listener;
+        private Job job;
+
+        private Request(FrameListener listener) {
+            this.listener = listener;
+        }
+
+        /**
+         * Drops the request. The extraction stops too unless other requests share it.
+         *
+         * @return Whether the request was dropped, false if its listener has been or is being called.
+         */
+        public boolean cancel() {
+            return FrameScheduler.this.cancel(this);
+        }
+    }
+
+    private final Context context;
+    private final ThreadPoolExecutor executor;
+    // queued and running extractions, by what they extract
+    private final HashMap<Key, Job> jobs = new HashMap<>();
+    private long nextSequence;
+
+    public FrameScheduler(Context context) {
+        this(context, FrameExtractionService.getDefaultConcurrency());
+    }
+
+    /**
+     * @param maxConcurrent The maximum number of extractions running at once.
+     */
+    public FrameScheduler(Context context, int maxConcurrent) {
+        Assertions.checkArgument(maxConcurrent > 0);
+        this.context = context.getApplicationContext();
+        // jobs are comparable, the queue orders them by priority and recency
+        executor = new ThreadPoolExecutor(maxConcurrent, maxConcurrent, IDLE_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>(), new FrameExtractionService.ExtractorThreadFactory("FrameScheduler:"));
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Requests a frame.
+     *
+     * @param priority One of {@link #PRIORITY_VISIBLE}, {@link #PRIORITY_PREFETCH} and
+     *     {@link #PRIORITY_BACKGROUND}.
+     * @see ClipExtractor#getFrameAtTime(long, android.graphics.Rect, int, int, boolean, Bitmap.Config)
+     */
+    public Request submit(Uri uri, long timeUs, int maxW, int maxH, boolean scale, Bitmap.Config config,
+                          int priority, FrameListener listener) {
+        Assertions.checkArgument(priority == PRIORITY_VISIBLE || priority == PRIORITY_PREFETCH
+                || priority == PRIORITY_BACKGROUND);
+        Key key = new Key(uri, timeUs, maxW, maxH, scale, config);
+        Request request = new Request(listener);
+        Job job;
+        boolean queue = false;
+        synchronized (this) {
+            job = jobs.get(key);
+            if(job == null) {
+                job = new Job(key, priority, nextSequence++);
+                jobs.put(key, job);
+                queue = true;
+            }
+            else {
+                Log.i(TAG, "Merging with the pending request for " + timeUs);
+                if(priority < job.priority && executor.remove(job)) {
+                    // the queue does not notice changes to its elements, put the job back in its new place
+                    job.priority = priority;
+                    job.sequence = nextSequence++;
+                    queue = true;
+                }
+            }
+            request.job = job;
+            job.requests.add(request);
+        }
+        if(queue) {
+            executor.execute(job);
+        }
+        return request;
+    }
+
+    /**
+     * Number of extractions queued and not started yet.
+     */
+    public int getPendingCount() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Stops accepting requests. Queued ones still run.
+     */
+    public void shutdown() {
+        Log.i(TAG, "Shutting down with " + getPendingCount() + " pending");
+        executor.shutdown();
+    }
+
+    private boolean cancel(Request request) {
+        Job job = request.job;
+        synchronized (this) {
+            if(!job.requests.remove(request)) {
+                return false;
+            }
+            if(!job.requests.isEmpty()) {
+                return true;
+            }
+            jobs.remove(job.key);
+            job.cancelled = true;
+            if(!executor.remove(job) && job.running) {
+                // the extractor is only released once running is cleared, under this lock
+                job.extractor.cancel();
+            }
+        }
+        return true;
+    }
+
+    private void finish(Job job, Bitmap frame) {
+        ArrayList<Request> requests;
+        synchronized (this) {
+            if(jobs.get(job.key) == job) {
+                jobs.remove(job.key);
+            }
+            requests = new ArrayList<>(job.requests);
+            job.requests.clear();
+        }
+        if(requests.isEmpty()) {
+            if(frame != null) {
+                FramePool.getDefault().releaseBitmap(frame);
+            }
+            return;
+        }
+        for(int i = 0; i < requests.size(); i++) {
+            // merged requests get a copy each, every listener owns its frame
+            Bitmap copy = frame == null || i == 0 ? frame : frame.copy(frame.getConfig(), true);
+            requests.get(i).listener.onFrame(job.key.uri, job.key.timeUs, copy);
+        }
+    }
+
+    /**
+     * Returns the frame from the disk cache, found by the source's fingerprint alone.
+     */
+    private Bitmap getCachedFrame(Key key) {
+        DiskFrameCache diskCache = DiskFrameCache.getDefault(context);
+        SourceFingerprint fingerprint = SourceFingerprint.forFile(key.uri.getPath());
+        if(diskCache == null || fingerprint == null) {
+            return null;
+        }
+        return diskCache.get(new DiskFrameCache.Key(fingerprint, key.timeUs, ClipExtractor.SEEK_MODE_PREVIOUS_SYNC,
+                key.maxW, key.maxH, key.scale, key.config, null));
+    }
+
+    private final class Job implements Runnable, Comparable<Job> {
+        final Key key;
+        final ClipExtractor extractor;
+        final ArrayList<Request> requests = new ArrayList<>();
+        // guarded by the scheduler, only changed while the job is out of the queue
+        int priority;
+        long sequence;
+        volatile boolean cancelled;
+        // guarded by the scheduler, set while the extractor is in use
+        boolean running;
+
+        Job(Key key, int priority, long sequence) {
+            this.key = key;
+            this.priority = priority;
+            this.sequence = sequence;
+            extractor = new ClipExtractor(context);
+        }
+
+        @Override
+        public void run() {
+            Bitmap frame = null;
+            boolean start;
+            synchronized (FrameScheduler.this) {
+                start = !cancelled;
+                running = start;
+            }
+            try {
+                if(start) {
+                    frame = getCachedFrame(key);
+                }
+                if(start && !cancelled && frame == null) {
+                    extractor.setDataSource(key.uri);
+                    frame = extractor.getFrameAtTime(key.timeUs, null, key.maxW, key.maxH, key.scale, key.config);
+                }
+            }
+            catch (IOException exc) {
+                Log.e(TAG, "Could not open " + key.uri + " " + exc);
+            }
+            finally {
+                synchronized (FrameScheduler.this) {
+                    running = false;
+                }
+                extractor.release();
+            }
+            finish(this, frame);
+        }
+
+        @Override
+        public int compareTo(Job other) {
+            if(priority != other.priority) {
+                return priority < other.priority ? -1 : 1;
+            }
+            // latest first
+            return sequence > other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+
+    private static final class Key {
+        final Uri uri;
+        final long timeUs;
+        final int maxW;
+        final int maxH;
+        final boolean scale;
+        final Bitmap.Config config;
+
+        Key(Uri uri, long timeUs, int maxW, int maxH, boolean scale, Bitmap.Config config) {
+            this.uri = uri;
+            this.timeUs = timeUs;
+            this.maxW = maxW;
+            this.maxH = maxH;
+            this.scale = scale;
+            this.config = config;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(this == o) {
+                return true;
+            }
+            if(!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return timeUs == other.timeUs && maxW == other.maxW && maxH == other.maxH && scale == other.scale
+                    && config == other.config && uri.equals(other.uri);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = uri.hashCode();
+            result = 31 * result + (int) (timeUs ^ (timeUs >>> 32));
+            result = 31 * result + maxW;
+            result = 31 * result + maxH;
+            result = 31 * result + (scale ? 1 : 0);
+            result = 31 * result + (config == null ? 0 : config.hashCode());
+            return result;
+        }
+    }
+}
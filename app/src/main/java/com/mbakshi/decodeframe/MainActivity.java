@@ -1,6 +1,5 @@
 package com.mbakshi.decodeframe;
 
-import android.content.Context;
 import android.content.Intent;
 import android.graphics.Bitmap;
 import android.net.Uri;
@@ -13,8 +12,7 @@ import android.view.MenuItem;
 import android.view.View;
 import android.widget.Button;
 
-import com.mbakshi.decodeframe.FrameResources.Util.Media.MediaFormat;
-import com.mbakshi.decodeframe.FrameResources.Util.Media.MimeTypes;
+import com.mbakshi.decodeframe.FrameResources.Util.Allocate.FramePool;
 
 import java.io.File;
 import java.io.FileOutputStream;
@@ -26,14 +24,22 @@ public class MainActivity extends AppCompatActivity {
 
     private Uri fileUri;
     private String filePath;
+    private FrameScheduler frameScheduler;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
+        frameScheduler = new FrameScheduler(this);
         addButton();
     }
 
+    @Override
+    protected void onDestroy() {
+        frameScheduler.shutdown();
+        super.onDestroy();
+    }
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         // Inflate the menu; this adds items to the action bar if it is present.
@@ -80,40 +86,21 @@ public class MainActivity extends AppCompatActivity {
     }
 
     private void extractFrame() {
-        final Context context = this;
-        Thread thumbThread = new Thread(new Runnable() {
-            @Override
-            public void run() {
-                Log.i(TAG, "Extract frame start for file path " + filePath);
-                ClipExtractor clipExtractor = new ClipExtractor(context);
-                try {
-                    if(clipExtractor.setDataSource(fileUri)) {
-                        int trackCount = clipExtractor.getTrackCount();
-                        MediaFormat format = null;
-                        for(int i = 0; i < trackCount; i++) {
-                            MediaFormat trackFormat = clipExtractor.getTrackFormat(i);
-                            if(MimeTypes.isVideo(trackFormat.mimeType)) {
-                                format = trackFormat;
-                                break;
-                            }
-                        }
-                        if(format != null) {
-                            int w = format.width;
-                            int h = format.height;
-                            Bitmap bitmap = clipExtractor.getFrameAtTime(0, w, h, false);
-                            saveBitmap(bitmap);
+        Log.i(TAG, "Extract frame start for file path " + filePath);
+        // the whole first frame, at the size of the video
+        frameScheduler.submit(fileUri, 0, 0, 0, false, Bitmap.Config.ARGB_8888, FrameScheduler.PRIORITY_VISIBLE,
+                new FrameScheduler.FrameListener() {
+                    @Override
+                    public void onFrame(Uri uri, long timeUs, Bitmap frame) {
+                        if(frame != null) {
+                            saveBitmap(frame);
+                            FramePool.getDefault().releaseBitmap(frame);
                         }
                         else {
-                            Log.e(TAG, "Could not find video track in file");
+                            Log.e(TAG, "Could not extract the frame of " + uri);
                         }
                     }
-                }
-                catch (IOException exc) {
-                    Log.e(TAG, "IOExc could not set data source " + exc);
-                }
-            }
-        });
-        thumbThread.start();
+                });
     }
 
     private void saveBitmap(Bitmap bitmap) {
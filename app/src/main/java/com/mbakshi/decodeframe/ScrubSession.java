@@ -0,0 +1,329 @@
+package com.mbakshi.decodeframe;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.mbakshi.decodeframe.FrameResources.Assertions;
+import com.mbakshi.decodeframe.FrameResources.Tracks.TrackSampleTable;
+import com.mbakshi.decodeframe.FrameResources.Util.Allocate.FramePool;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Serves the frames of a scrubber drag over one clip.
+ * <p>
+ * The session keeps one {@link ClipExtractor} open for the whole gesture, so the file is parsed once
+ * and its decoder stays started in the codec pool. Frames are the sync frames at or before the
+ * requested times, as in {@link ClipExtractor#SEEK_MODE_SYNC_ONLY}. The session follows the speed and
+ * direction of the requests and decodes the next sync frames ahead of them, further ahead the faster
+ * the drag, so that most requests are answered from frames already decoded. Prefetches not started
+ * yet are dropped when the direction changes.
+ * <p>
+ * Only the latest request is served: one still waiting when another comes in is dropped without its
+ * listener being called.
+ */
+public final class ScrubSession {
+    private static final String TAG = "ScrubSession";
+
+    // requests further apart start a new gesture, and the speed is measured afresh
+    private static final long GESTURE_GAP_MS = 300;
+    // how far ahead of the drag frames are decoded
+    private static final long LOOKAHEAD_MS = 500;
+    private static final int MIN_PREFETCH = 2;
+    private static final int MAX_PREFETCH = 6;
+    private static final int MAX_CACHED_FRAMES = 2 * MAX_PREFETCH + 4;
+
+    /**
+     * Receives the frame of a request.
+     */
+    public interface FrameListener {
+        /**
+         * Called on the thread of {@link #request(long, FrameListener)} when the frame was decoded
+         * ahead, on the session's thread otherwise.
+         *
+         * @param timeUs The requested time.
+         * @param frame The frame, or null if it could not be decoded. It belongs to the listener.
+         */
+        void onFrame(long timeUs, Bitmap frame);
+    }
+
+    private final Uri uri;
+    private final int maxW;
+    private final int maxH;
+    private final boolean scale;
+    private final Bitmap.Config config;
+    private final ClipExtractor extractor;
+    // set by the worker once the clip is open, null if it could not be opened or has no sample table
+    private volatile TrackSampleTable sampleTable;
+
+    // decoded sync frames by timestamp, least recently used first
+    private final LinkedHashMap<Long, Bitmap> frames = new LinkedHashMap<>(16, 0.75f, true);
+    // sync frame timestamps to decode ahead, nearest first
+    private final ArrayDeque<Long> prefetches = new ArrayDeque<>();
+    private boolean hasPending;
+    private long pendingTimeUs;
+    private FrameListener pendingListener;
+    // sync frame being decoded, or -1
+    private long decodingFrameUs = -1;
+    private boolean closed;
+
+    private long lastTimeUs;
+    private long lastRequestMs = Long.MIN_VALUE;
+    // media microseconds per millisecond of dragging, signed
+    private float velocity;
+    private int direction;
+
+    /**
+     * Starts a session. The clip is opened on the session's thread.
+     *
+     * @see ClipExtractor#getFrameAtTime(long, android.graphics.Rect, int, int, boolean, Bitmap.Config)
+     */
+    public ScrubSession(Context context, Uri uri, int maxW, int maxH, boolean scale, Bitmap.Config config) {
+        this.uri = uri;
+        this.maxW = maxW;
+        this.maxH = maxH;
+        this.scale = scale;
+        this.config = config;
+        extractor = new ClipExtractor(context);
+        extractor.setSeekMode(ClipExtractor.SEEK_MODE_SYNC_ONLY);
+        // frames live in the session, the shared caches would only copy and compress them
+        extractor.setFrameCache(null);
+        extractor.setDiskCache(null);
+        Thread worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runWorker();
+            }
+        }, "ScrubSession");
+        worker.setPriority(Thread.NORM_PRIORITY - 1);
+        worker.start();
+    }
+
+    /**
+     * Asks for the frame at {@code timeUs}, the current position of the scrubber.
+     */
+    public void request(long timeUs, FrameListener listener) {
+        Bitmap frame = null;
+        synchronized (this) {
+            Assertions.checkState(!closed);
+            updateMotion(timeUs);
+            long frameUs = getSyncFrameTime(timeUs);
+            Bitmap cached = frames.get(frameUs);
+            if(cached != null) {
+                frame = cached.copy(cached.getConfig(), true);
+                // the request still in the queue is behind this one
+                hasPending = false;
+                pendingListener = null;
+            }
+            else {
+                hasPending = true;
+                pendingTimeUs = timeUs;
+                pendingListener = listener;
+            }
+            schedulePrefetches(frameUs);
+            notifyAll();
+        }
+        if(frame != null) {
+            listener.onFrame(timeUs, frame);
+        }
+    }
+
+    /**
+     * Ends the session. Waiting requests are dropped, and the clip is closed once the frame being
+     * decoded is done. Does not block.
+     */
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            hasPending = false;
+            pendingListener = null;
+            prefetches.clear();
+            notifyAll();
+        }
+    }
+
+    /**
+     * Updates the speed and direction of the drag with a new request.
+     */
+    private void updateMotion(long timeUs) {
+        long nowMs = SystemClock.uptimeMillis();
+        long elapsedMs = nowMs - lastRequestMs;
+        if(lastRequestMs == Long.MIN_VALUE || elapsedMs > GESTURE_GAP_MS) {
+            velocity = 0;
+            direction = 0;
+        }
+        else if(timeUs != lastTimeUs) {
+            float current = (float) (timeUs - lastTimeUs) / Math.max(elapsedMs, 1);
+            // smoothed, touch events come in unevenly
+            velocity = velocity == 0 ? current : (velocity + current) / 2;
+            int newDirection = timeUs > lastTimeUs ? 1 : -1;
+            if(direction != 0 && newDirection != direction) {
+                Log.i(TAG, "Direction changed, dropping " + prefetches.size() + " prefetches");
+                prefetches.clear();
+                velocity = current;
+            }
+            direction = newDirection;
+        }
+        lastTimeUs = timeUs;
+        lastRequestMs = nowMs;
+    }
+
+    /**
+     * Queues the sync frames after {@code frameUs} in the direction of the drag that are not decoded
+     * yet, as many as the drag covers in {@link #LOOKAHEAD_MS}, within bounds.
+     */
+    private void schedulePrefetches(long frameUs) {
+        TrackSampleTable sampleTable = this.sampleTable;
+        prefetches.clear();
+        if(sampleTable == null) {
+            return;
+        }
+        int step = direction < 0 ? -1 : 1;
+        long reachUs = frameUs + (long) (velocity * LOOKAHEAD_MS);
+        long syncUs = frameUs;
+        for(int i = 0; i < MAX_PREFETCH; i++) {
+            int sync = step > 0
+                    ? sampleTable.getIndexOfLaterOrEqualSynchronizationSample(syncUs + 1)
+                    : sampleTable.getIndexOfEarlierOrEqualSynchronizationSample(syncUs - 1);
+            if(sync == TrackSampleTable.NO_SAMPLE) {
+                break;
+            }
+            syncUs = sampleTable.timestampsUs[sync];
+            if(i >= MIN_PREFETCH && (step > 0 ? syncUs > reachUs : syncUs < reachUs)) {
+                break;
+            }
+            if(syncUs != decodingFrameUs && !frames.containsKey(syncUs)) {
+                prefetches.add(syncUs);
+            }
+        }
+    }
+
+    /**
+     * Returns the timestamp of the sync frame shown for {@code timeUs}, or {@code timeUs} itself when
+     * it is not known yet.
+     */
+    private long getSyncFrameTime(long timeUs) {
+        TrackSampleTable sampleTable = this.sampleTable;
+        if(sampleTable == null) {
+            return timeUs;
+        }
+        int sync = sampleTable.getIndexOfEarlierOrEqualSynchronizationSample(timeUs);
+        if(sync == TrackSampleTable.NO_SAMPLE) {
+            sync = sampleTable.getIndexOfLaterOrEqualSynchronizationSample(timeUs);
+        }
+        return sync == TrackSampleTable.NO_SAMPLE ? timeUs : sampleTable.timestampsUs[sync];
+    }
+
+    private void runWorker() {
+        boolean opened;
+        try {
+            opened = extractor.setDataSource(uri);
+            sampleTable = extractor.getVideoSampleTable();
+        }
+        catch (IOException exc) {
+            Log.e(TAG, "Could not open " + uri + " " + exc);
+            opened = false;
+        }
+        if(sampleTable == null) {
+            Log.w(TAG, "No sample table, frames are not decoded ahead");
+        }
+        while(true) {
+            long timeUs;
+            long frameUs;
+            FrameListener listener;
+            Bitmap cached;
+            boolean decoded;
+            synchronized (this) {
+                while(!closed && !hasPending && prefetches.isEmpty()) {
+                    try {
+                        wait();
+                    }
+                    catch (InterruptedException exc) {
+                        closed = true;
+                    }
+                }
+                if(closed) {
+                    break;
+                }
+                if(hasPending) {
+                    timeUs = pendingTimeUs;
+                    listener = pendingListener;
+                    hasPending = false;
+                    pendingListener = null;
+                }
+                else {
+                    timeUs = prefetches.poll();
+                    listener = null;
+                }
+                frameUs = getSyncFrameTime(timeUs);
+                cached = frames.get(frameUs);
+                decoded = cached != null;
+                if(decoded) {
+                    // decoded ahead since it was asked for
+                    cached = listener != null ? cached.copy(cached.getConfig(), true) : null;
+                }
+                else {
+                    decodingFrameUs = frameUs;
+                }
+            }
+            if(decoded) {
+                if(listener != null) {
+                    listener.onFrame(timeUs, cached);
+                }
+                continue;
+            }
+            Bitmap frame = opened ? extractor.getFrameAtTime(frameUs, null, maxW, maxH, scale, config) : null;
+            Bitmap copy = null;
+            synchronized (this) {
+                decodingFrameUs = -1;
+                if(closed) {
+                    // the request was dropped by close() while its frame was decoded
+                    listener = null;
+                    FramePool.getDefault().releaseBitmap(frame);
+                    frame = null;
+                }
+                if(frame != null) {
+                    putFrame(frameUs, frame);
+                    if(listener != null) {
+                        copy = frame.copy(frame.getConfig(), true);
+                    }
+                }
+                if(listener != null && prefetches.isEmpty()) {
+                    // the clip may have been opened after the request came in
+                    schedulePrefetches(getSyncFrameTime(lastTimeUs));
+                }
+            }
+            if(listener != null) {
+                listener.onFrame(timeUs, copy);
+            }
+        }
+        extractor.release();
+        synchronized (this) {
+            for(Bitmap frame : frames.values()) {
+                FramePool.getDefault().releaseBitmap(frame);
+            }
+            frames.clear();
+        }
+        Log.i(TAG, "Closed");
+    }
+
+    private void putFrame(long frameUs, Bitmap frame) {
+        Bitmap previous = frames.put(frameUs, frame);
+        if(previous != null) {
+            FramePool.getDefault().releaseBitmap(previous);
+        }
+        Iterator<Map.Entry<Long, Bitmap>> iterator = frames.entrySet().iterator();
+        while(frames.size() > MAX_CACHED_FRAMES && iterator.hasNext()) {
+            Bitmap evicted = iterator.next().getValue();
+            iterator.remove();
+            FramePool.getDefault().releaseBitmap(evicted);
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package com.mbakshi.decodeframe.FrameResources.Tracks;
+
+import com.mbakshi.decodeframe.FrameResources.Constants;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class TrackSampleTableTest {
+    @Test
+    public void findsDisplayedSampleInDecodeOrder() {
+        TrackSampleTable table = table(new long[]{0, 1000, 2000, 3000});
+        assertEquals(2, table.getIndexOfEarlierOrEqualSample(2500));
+        assertEquals(3, table.getIndexOfEarlierOrEqualSample(3000));
+        assertEquals(TrackSampleTable.NO_SAMPLE, table.getIndexOfEarlierOrEqualSample(-1));
+        assertEquals(0, table.getIndexOfFirstPresentedSample());
+    }
+
+    @Test
+    public void findsDisplayedSampleWithBFrames() {
+        // I P B B, the P frame is decoded before the B frames it is shown after
+        TrackSampleTable table = table(new long[]{0, 3000, 1000, 2000});
+        assertEquals(3, table.getIndexOfEarlierOrEqualSample(2500));
+        assertEquals(2, table.getIndexOfEarlierOrEqualSample(1999));
+        assertEquals(1, table.getIndexOfEarlierOrEqualSample(3000));
+        assertEquals(1, table.getIndexOfEarlierOrEqualSample(10000));
+        assertEquals(0, table.getIndexOfEarlierOrEqualSample(999));
+    }
+
+    @Test
+    public void findsFirstPresentedSampleWithCompositionOffsets() {
+        TrackSampleTable table = table(new long[]{2000, 5000, 3000, 4000});
+        assertEquals(TrackSampleTable.NO_SAMPLE, table.getIndexOfEarlierOrEqualSample(1000));
+        assertEquals(0, table.getIndexOfFirstPresentedSample());
+        table = table(new long[]{3000, 1000, 2000});
+        assertEquals(1, table.getIndexOfFirstPresentedSample());
+        assertEquals(2, table.getIndexOfEarlierOrEqualSample(2999));
+    }
+
+    private static TrackSampleTable table(long[] timestampsUs) {
+        int count = timestampsUs.length;
+        int[] flags = new int[count];
+        flags[0] = Constants.SAMPLE_FLAG_SYNC;
+        return new TrackSampleTable(new long[count], new int[count], timestampsUs, flags);
+    }
+}
@@ -0,0 +1,96 @@
+package com.mbakshi.decodeframe.FrameResources.Util.Allocate;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class FramePoolTest {
+    @Test
+    public void reusesReleasedArraysOfTheSameLength() {
+        FramePool pool = new FramePool(1024);
+        int[] pixels = pool.acquirePixels(16);
+        pool.releasePixels(pixels);
+        assertEquals(64, pool.getPooledBytes());
+        assertNotSame(pixels, pool.acquirePixels(15));
+        assertSame(pixels, pool.acquirePixels(16));
+        assertEquals(0, pool.getPooledBytes());
+        assertNotSame(pixels, pool.acquirePixels(16));
+    }
+
+    @Test
+    public void keepsKindsApart() {
+        FramePool pool = new FramePool(1024);
+        pool.releasePixels(new int[8]);
+        pool.releaseShorts(new short[8]);
+        byte[] bytes = new byte[8];
+        pool.releaseBytes(bytes);
+        assertEquals(32 + 16 + 8, pool.getPooledBytes());
+        assertSame(bytes, pool.acquireBytes(8));
+        assertEquals(8, pool.acquireShorts(8).length);
+        assertEquals(32, pool.getPooledBytes());
+    }
+
+    @Test
+    public void handsOutMostRecentlyReleasedFirst() {
+        FramePool pool = new FramePool(1024);
+        byte[] first = new byte[10];
+        byte[] second = new byte[10];
+        pool.releaseBytes(first);
+        pool.releaseBytes(second);
+        assertSame(second, pool.acquireBytes(10));
+        assertSame(first, pool.acquireBytes(10));
+    }
+
+    @Test
+    public void dropsLeastRecentlyReleasedOverBudget() {
+        FramePool pool = new FramePool(100);
+        byte[] oldest = new byte[40];
+        byte[] middle = new byte[41];
+        byte[] newest = new byte[42];
+        pool.releaseBytes(oldest);
+        pool.releaseBytes(middle);
+        assertEquals(81, pool.getPooledBytes());
+        pool.releaseBytes(newest);
+        assertEquals(83, pool.getPooledBytes());
+        assertNotSame(oldest, pool.acquireBytes(40));
+        assertSame(middle, pool.acquireBytes(41));
+        assertSame(newest, pool.acquireBytes(42));
+        assertEquals(0, pool.getPooledBytes());
+    }
+
+    @Test
+    public void ignoresOversizedAndDoubleReleases() {
+        FramePool pool = new FramePool(100);
+        pool.releaseBytes(new byte[101]);
+        assertEquals(0, pool.getPooledBytes());
+        byte[] bytes = new byte[10];
+        pool.releaseBytes(bytes);
+        pool.releaseBytes(bytes);
+        assertEquals(10, pool.getPooledBytes());
+        pool.releaseBytes(null);
+        assertEquals(10, pool.getPooledBytes());
+    }
+
+    @Test
+    public void trimsToBudget() {
+        FramePool pool = new FramePool(1000);
+        for (int i = 1; i <= 10; i++) {
+            pool.releaseBytes(new byte[i * 10]);
+        }
+        assertEquals(550, pool.getPooledBytes());
+        pool.setMaxBytes(300);
+        // the 10 to 70 byte arrays, released first, go first
+        assertEquals(270, pool.getPooledBytes());
+        pool.trim(100);
+        assertEquals(100, pool.getPooledBytes());
+        pool.clear();
+        assertEquals(0, pool.getPooledBytes());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsEmptyArrays() {
+        new FramePool(100).acquirePixels(0);
+    }
+}
@@ -0,0 +1,222 @@
+package com.mbakshi.decodeframe.FrameResources.Util.Cache;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DiskIndexTest {
+    private static final int SLOT_COUNT = 64;
+
+    private ByteBuffer buffer;
+    private DiskIndex index;
+
+    @Before
+    public void setUp() {
+        buffer = ByteBuffer.allocate(DiskIndex.sizeFor(SLOT_COUNT));
+        assertFalse(DiskIndex.isFormatted(buffer, SLOT_COUNT));
+        DiskIndex.format(buffer, SLOT_COUNT);
+        assertTrue(DiskIndex.isFormatted(buffer, SLOT_COUNT));
+        index = new DiskIndex(buffer, SLOT_COUNT);
+    }
+
+    @Test
+    public void storesSizes() {
+        index.put(10, 100);
+        index.put(20, 200);
+        assertEquals(100, index.getSize(10));
+        assertEquals(-1, index.getSize(30));
+        index.put(10, 150);
+        assertEquals(150, index.getSize(10));
+        assertEquals(2, index.getEntryCount());
+        assertEquals(350, index.getTotalSize());
+        assertTrue(index.remove(20));
+        assertFalse(index.remove(20));
+        assertEquals(150, index.getTotalSize());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() {
+        index.put(1, 10);
+        index.put(2, 10);
+        index.put(3, 10);
+        assertTrue(index.touch(1));
+        assertFalse(index.touch(4));
+        // replacing an entry uses it, looking it up does not
+        index.put(2, 20);
+        assertEquals(10, index.getSize(3));
+        assertArrayEquals(new long[]{3, 1, 2}, index.getHashes());
+        assertEquals(3, index.removeLeastRecent());
+        assertEquals(1, index.removeLeastRecent());
+        assertEquals(2, index.removeLeastRecent());
+        assertEquals(0, index.removeLeastRecent());
+        assertEquals(0, index.getTotalSize());
+    }
+
+    @Test
+    public void reloadKeepsEntriesAndRecency() {
+        index.put(5, 50);
+        index.put(6, 60);
+        index.put(7, 70);
+        index.touch(5);
+        index.remove(6);
+        DiskIndex reloaded = new DiskIndex(buffer, SLOT_COUNT);
+        assertArrayEquals(new long[]{7, 5}, reloaded.getHashes());
+        assertEquals(120, reloaded.getTotalSize());
+        assertEquals(50, reloaded.getSize(5));
+        // the access clock carries on from where it was
+        reloaded.put(8, 80);
+        reloaded.touch(7);
+        assertArrayEquals(new long[]{5, 8, 7}, new DiskIndex(buffer, SLOT_COUNT).getHashes());
+    }
+
+    @Test
+    public void reusesTombstones() {
+        // all three start probing at slot 1
+        long first = 1;
+        long second = 1 + SLOT_COUNT;
+        long third = 1 + 2 * SLOT_COUNT;
+        index.put(first, 1);
+        index.put(second, 1);
+        assertEquals(1, index.probe(first));
+        assertEquals(2, index.probe(second));
+        index.remove(first);
+        assertEquals(1, index.getTombstoneCount());
+        // the probe for the second one goes past the tombstone
+        assertEquals(2, index.probe(second));
+        index.put(third, 1);
+        assertEquals(1, index.probe(third));
+        assertEquals(0, index.getTombstoneCount());
+    }
+
+    @Test
+    public void rehashesOnceTheTableFillsUp() {
+        // small hashes start probing at their own slot, so each lands there
+        for (long hash = 1; hash <= 48; hash++) {
+            index.put(hash, 1);
+        }
+        for (long hash = 1; hash <= 8; hash++) {
+            index.remove(hash);
+        }
+        for (long hash = 49; hash <= 56; hash++) {
+            index.put(hash, 1);
+        }
+        // 48 entries and 8 tombstones, seven eighths of the table
+        assertEquals(8, index.getTombstoneCount());
+        index.put(57, 1);
+        assertEquals(0, index.getTombstoneCount());
+        for (long hash = 9; hash <= 57; hash++) {
+            assertEquals(hash, index.probe(hash));
+        }
+        assertEquals(49, index.getEntryCount());
+    }
+
+    @Test
+    public void missesStayShortUnderChurn() {
+        Random random = new Random(1);
+        int maxEntries = SLOT_COUNT * 3 / 4;
+        for (int i = 0; i < 5000; i++) {
+            long hash = 1 + random.nextInt(1000);
+            if (random.nextInt(3) == 0) {
+                index.remove(hash);
+            } else {
+                if (index.getSize(hash) == -1 && index.getEntryCount() >= maxEntries) {
+                    index.removeLeastRecent();
+                }
+                index.put(hash, 1);
+            }
+            assertTrue(index.getEntryCount() + index.getTombstoneCount() <= SLOT_COUNT * 7 / 8);
+        }
+        // every miss ends at an empty slot rather than walking the whole table
+        for (long hash = 1001; hash < 1101; hash++) {
+            assertTrue(index.getMissProbeLength(hash) < SLOT_COUNT);
+        }
+    }
+
+    @Test
+    public void matchesReferenceLru() {
+        // access ordered, least recently used first, like the index
+        LinkedHashMap<Long, Integer> reference = new LinkedHashMap<>(16, 0.75f, true);
+        Random random = new Random(2);
+        int maxEntries = SLOT_COUNT * 3 / 4;
+        long budget = 2000;
+        for (int i = 0; i < 3000; i++) {
+            long hash = 1 + random.nextInt(200);
+            int op = random.nextInt(10);
+            if (op < 2) {
+                assertEquals(reference.remove(hash) != null, index.remove(hash));
+            } else if (op < 5) {
+                assertEquals(reference.get(hash) != null, index.touch(hash));
+            } else {
+                int size = random.nextInt(100);
+                if (!reference.containsKey(hash) && reference.size() >= maxEntries) {
+                    assertEquals(removeEldest(reference), index.removeLeastRecent());
+                }
+                reference.put(hash, size);
+                index.put(hash, size);
+                // the cache trims to its byte budget the same way
+                while (index.getTotalSize() > budget) {
+                    assertEquals(removeEldest(reference), index.removeLeastRecent());
+                }
+            }
+            assertEquals(reference.size(), index.getEntryCount());
+            assertEquals(sum(reference), index.getTotalSize());
+        }
+        long[] hashes = index.getHashes();
+        int i = 0;
+        for (Map.Entry<Long, Integer> entry : reference.entrySet()) {
+            assertEquals((long) entry.getKey(), hashes[i++]);
+            assertEquals((int) entry.getValue(), index.getSize(entry.getKey()));
+            assertTrue(index.probe(entry.getKey()) != -1);
+        }
+        DiskIndex reloaded = new DiskIndex(buffer, SLOT_COUNT);
+        assertArrayEquals(hashes, reloaded.getHashes());
+        assertEquals(index.getTotalSize(), reloaded.getTotalSize());
+    }
+
+    @Test
+    public void tornSlotReadsAsDeleted() {
+        index.put(3, 30);
+        index.put(3 + SLOT_COUNT, 40);
+        index.put(9, 90);
+        int slot = index.probe(3);
+        // a crash wrote the size but not the checksum
+        buffer.putInt(DiskIndex.HEADER_SIZE + slot * DiskIndex.SLOT_SIZE + 16, 31);
+        DiskIndex reloaded = new DiskIndex(buffer, SLOT_COUNT);
+        assertEquals(-1, reloaded.getSize(3));
+        // still found past the torn slot, and the table is rehashed without it
+        assertEquals(40, reloaded.getSize(3 + SLOT_COUNT));
+        assertTrue(reloaded.probe(3 + SLOT_COUNT) != -1);
+        assertEquals(0, reloaded.getTombstoneCount());
+        assertEquals(130, reloaded.getTotalSize());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnformattedBuffer() {
+        new DiskIndex(ByteBuffer.allocate(DiskIndex.sizeFor(SLOT_COUNT)), SLOT_COUNT);
+    }
+
+    private static long removeEldest(LinkedHashMap<Long, Integer> map) {
+        Iterator<Long> iterator = map.keySet().iterator();
+        long eldest = iterator.next();
+        iterator.remove();
+        return eldest;
+    }
+
+    private static long sum(Map<Long, Integer> map) {
+        long sum = 0;
+        for (int size : map.values()) {
+            sum += size;
+        }
+        return sum;
+    }
+}
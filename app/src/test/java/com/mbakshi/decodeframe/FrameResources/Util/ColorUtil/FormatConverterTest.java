@@ -0,0 +1,115 @@
+package com.mbakshi.decodeframe.FrameResources.Util.ColorUtil;
+
+import android.media.MediaCodecInfo;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FormatConverterTest {
+    private static final int WIDTH = 21;
+    private static final int HEIGHT = 13;
+    private static final int STRIDE = 32;
+    private static final int SLICE_HEIGHT = 16;
+
+    @Test
+    public void packsPlanarFrameToNv12() {
+        YuvLayout layout = new YuvLayout().setPlanar(WIDTH, HEIGHT, STRIDE, SLICE_HEIGHT);
+        byte[] frame = TestFrames.randomFrame(layout, 1);
+        YuvLayout source = new YuvLayout().set(layout);
+        byte[] packed = new byte[YuvPacker.getPackedSize(WIDTH, HEIGHT)];
+        YuvPacker.pack(TestFrames.direct(frame, 3), layout, packed);
+
+        assertEquals(MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar, layout.colorFormat);
+        assertTrue(layout.isChromaInterleaved());
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                assertEquals(TestFrames.luma(frame, source, x, y), TestFrames.luma(packed, layout, x, y));
+                assertEquals(TestFrames.u(frame, source, x, y), TestFrames.u(packed, layout, x, y));
+                assertEquals(TestFrames.v(frame, source, x, y), TestFrames.v(packed, layout, x, y));
+            }
+        }
+        assertEquals(packed.length, layout.vOffset + ((HEIGHT + 1) / 2 - 1) * layout.chromaRowStride
+                + ((WIDTH + 1) / 2 - 1) * layout.chromaPixelStride + 1);
+    }
+
+    @Test
+    public void unpacksP010ToItsHighBytes() {
+        FormatConverter converter = FormatConverters.get(FormatConverters.COLOR_FormatYUVP010);
+        YuvLayout layout = new YuvLayout();
+        converter.setLayout(layout, WIDTH, HEIGHT, 2 * STRIDE, SLICE_HEIGHT);
+        assertFalse(layout.isDirectlyConvertible());
+
+        // the 8 bit frame the 10 bit one is widened from, with random low bits
+        YuvLayout narrow = new YuvLayout().setSemiPlanar(WIDTH, HEIGHT, STRIDE, SLICE_HEIGHT);
+        byte[] frame = TestFrames.randomFrame(narrow, 2);
+        byte[] wide = new byte[2 * frame.length];
+        Random random = new Random(3);
+        for (int i = 0; i < frame.length; i++) {
+            wide[2 * i] = (byte) (random.nextInt(4) << 6);
+            wide[2 * i + 1] = frame[i];
+        }
+
+        byte[] unpacked = new byte[converter.getUnpackedSize(layout)];
+        converter.unpack(ByteBuffer.wrap(wide), layout, unpacked);
+        assertTrue(layout.isDirectlyConvertible());
+        int[] expected = new int[WIDTH * HEIGHT];
+        YuvConverter.convert(frame, 0, narrow, 0, expected, 0, 0, HEIGHT);
+        int[] out = new int[WIDTH * HEIGHT];
+        YuvConverter.convert(unpacked, 0, layout, 0, out, 0, 0, HEIGHT);
+        assertArrayEquals(expected, out);
+    }
+
+    @Test
+    public void unpacksOnlyTheCrop() {
+        FormatConverter converter = FormatConverters.get(FormatConverters.COLOR_FormatYUVP010);
+        YuvLayout layout = new YuvLayout();
+        converter.setLayout(layout, WIDTH, HEIGHT, 2 * STRIDE, SLICE_HEIGHT);
+        byte[] wide = new byte[2 * STRIDE * SLICE_HEIGHT * 3 / 2];
+        new Random(4).nextBytes(wide);
+        YuvLayout whole = new YuvLayout().set(layout);
+        layout.crop(4, 2, 8, 6);
+        byte[] unpacked = new byte[converter.getUnpackedSize(layout)];
+        assertEquals(YuvPacker.getPackedSize(8, 6), unpacked.length);
+        converter.unpack(ByteBuffer.wrap(wide), layout, unpacked);
+        for (int y = 0; y < 6; y++) {
+            for (int x = 0; x < 8; x++) {
+                assertEquals(TestFrames.luma(wide, whole, 4 + x, 2 + y), TestFrames.luma(unpacked, layout, x, y));
+                assertEquals(TestFrames.v(wide, whole, 4 + x, 2 + y), TestFrames.v(unpacked, layout, x, y));
+            }
+        }
+    }
+
+    @Test
+    public void describesDirectFormats() {
+        YuvLayout layout = new YuvLayout();
+        FormatConverters.get(MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420PackedPlanar)
+                .setLayout(layout, WIDTH, HEIGHT, STRIDE, SLICE_HEIGHT);
+        assertEquals(MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420PackedPlanar, layout.colorFormat);
+        assertEquals(STRIDE * SLICE_HEIGHT, layout.uOffset);
+        assertEquals(0, FormatConverters.get(layout.colorFormat).getUnpackedSize(layout));
+
+        FormatConverters.get(FormatConverters.COLOR_QCOM_FormatYVU420SemiPlanar)
+                .setLayout(layout, WIDTH, HEIGHT, STRIDE, SLICE_HEIGHT);
+        assertEquals(STRIDE * SLICE_HEIGHT, layout.vOffset);
+        assertEquals(layout.vOffset + 1, layout.uOffset);
+    }
+
+    @Test
+    public void negotiatesCheapestFormat() {
+        int planar = MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar;
+        int semiPlanar = MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar;
+        assertEquals(planar, FormatConverters.negotiate(new int[]{FormatConverters.COLOR_FormatYUVP010, planar}));
+        // the decoder's order breaks ties
+        assertEquals(semiPlanar, FormatConverters.negotiate(new int[]{semiPlanar, planar}));
+        assertEquals(FormatConverters.COLOR_FormatYUVP010,
+                FormatConverters.negotiate(new int[]{0x12345, FormatConverters.COLOR_FormatYUVP010}));
+        assertEquals(-1, FormatConverters.negotiate(new int[]{0x12345}));
+    }
+}
@@ -0,0 +1,52 @@
+package com.mbakshi.decodeframe.FrameResources.Util.ColorUtil;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class OrientationTest {
+    @Test
+    public void normalizesRotations() {
+        assertEquals(0, Orientation.normalize(0));
+        assertEquals(0, Orientation.normalize(360));
+        assertEquals(90, Orientation.normalize(450));
+        assertEquals(270, Orientation.normalize(-90));
+        assertEquals(180, Orientation.normalize(-180));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsOddAngles() {
+        Orientation.normalize(45);
+    }
+
+    @Test
+    public void swapsSidesWhenTransposed() {
+        assertFalse(Orientation.isTransposed(180));
+        assertTrue(Orientation.isTransposed(-90));
+        assertEquals(6, Orientation.getWidth(4, 6, 90));
+        assertEquals(4, Orientation.getHeight(4, 6, 270));
+        assertEquals(4, Orientation.getWidth(4, 6, 180));
+    }
+
+    @Test
+    public void stepsMatchRotatedPositions() {
+        int width = 5;
+        int height = 3;
+        for (int rotation = 0; rotation < 360; rotation += 90) {
+            int origin = Orientation.origin(width, height, rotation);
+            int stepX = Orientation.stepX(width, height, rotation);
+            int stepY = Orientation.stepY(width, height, rotation);
+            boolean[] written = new boolean[width * height];
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    int index = origin + x * stepX + y * stepY;
+                    assertEquals("rotation " + rotation, TestFrames.rotatedIndex(x, y, width, height, rotation), index);
+                    assertFalse(written[index]);
+                    written[index] = true;
+                }
+            }
+        }
+    }
+}
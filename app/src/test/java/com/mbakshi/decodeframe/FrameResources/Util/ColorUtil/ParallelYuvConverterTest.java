@@ -0,0 +1,52 @@
+package com.mbakshi.decodeframe.FrameResources.Util.ColorUtil;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+
+public class ParallelYuvConverterTest {
+    // tall enough for four bands, with a short last one
+    private static final int WIDTH = 66;
+    private static final int HEIGHT = 270;
+
+    private final ParallelYuvConverter converter = new ParallelYuvConverter(4, 0);
+
+    @After
+    public void tearDown() {
+        converter.release();
+    }
+
+    @Test
+    public void bandsMatchSingleThreadedConversion() {
+        YuvLayout layout = new YuvLayout().setSemiPlanar(WIDTH, HEIGHT, WIDTH, HEIGHT);
+        ByteBuffer data = TestFrames.direct(TestFrames.randomFrame(layout, 1), 7);
+        for (int rotation = 0; rotation < 360; rotation += 90) {
+            int[] expected = new int[WIDTH * HEIGHT];
+            YuvConverter.convert(data, layout, rotation, expected, 0, 0, HEIGHT);
+            int[] out = new int[WIDTH * HEIGHT];
+            converter.convert(data, layout, rotation, out, 0);
+            assertArrayEquals("rotation " + rotation, expected, out);
+
+            short[] expected565 = new short[WIDTH * HEIGHT];
+            YuvConverter.convert(data, layout, rotation, expected565, 0, 0, HEIGHT);
+            short[] out565 = new short[WIDTH * HEIGHT];
+            converter.convert(data, layout, rotation, out565, 0);
+            assertArrayEquals("rotation " + rotation, expected565, out565);
+        }
+    }
+
+    @Test
+    public void convertsOnCallingThreadOnceReleased() {
+        YuvLayout layout = new YuvLayout().setPlanar(WIDTH, HEIGHT, WIDTH, HEIGHT);
+        ByteBuffer data = ByteBuffer.wrap(TestFrames.randomFrame(layout, 2));
+        byte[] expected = new byte[WIDTH * HEIGHT];
+        YuvConverter.convert(data, layout, 0, expected, 0, 0, HEIGHT);
+        converter.release();
+        byte[] out = new byte[WIDTH * HEIGHT];
+        converter.convert(data, layout, 0, out, 0);
+        assertArrayEquals(expected, out);
+    }
+}
@@ -0,0 +1,103 @@
+package com.mbakshi.decodeframe.FrameResources.Util.ColorUtil;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Builds YUV420 frames for the conversion tests and converts single pixels with the floating point
+ * BT.601 formulas the fixed point tables approximate.
+ */
+final class TestFrames {
+    private TestFrames() {}
+
+    /**
+     * Returns a buffer of random samples large enough for a frame of {@code layout}, padding included.
+     */
+    static byte[] randomFrame(YuvLayout layout, long seed) {
+        int chromaRows = (layout.height + 1) / 2;
+        int end = layout.yOffset + layout.sliceHeight * layout.yRowStride;
+        end = Math.max(end, Math.max(layout.uOffset, layout.vOffset) + chromaRows * layout.chromaRowStride);
+        byte[] data = new byte[end];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    /**
+     * Copies a frame into a direct buffer, at position {@code offset}.
+     */
+    static ByteBuffer direct(byte[] data, int offset) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(offset + data.length);
+        buffer.position(offset);
+        buffer.put(data);
+        buffer.position(offset);
+        return buffer;
+    }
+
+    static int luma(byte[] data, YuvLayout layout, int x, int y) {
+        return data[layout.yOffset + y * layout.yRowStride + x * layout.yPixelStride] & 0xff;
+    }
+
+    static int u(byte[] data, YuvLayout layout, int x, int y) {
+        return data[layout.uOffset + (y / 2) * layout.chromaRowStride + (x / 2) * layout.chromaPixelStride] & 0xff;
+    }
+
+    static int v(byte[] data, YuvLayout layout, int x, int y) {
+        return data[layout.vOffset + (y / 2) * layout.chromaRowStride + (x / 2) * layout.chromaPixelStride] & 0xff;
+    }
+
+    /**
+     * Converts one video range BT.601 sample to an opaque ARGB_8888 pixel.
+     */
+    static int referenceArgb(int y, int u, int v) {
+        double l = 1.164 * (y - 16);
+        int r = clamp(l + 1.596 * (v - 128));
+        int g = clamp(l - 0.391 * (u - 128) - 0.813 * (v - 128));
+        int b = clamp(l + 2.018 * (u - 128));
+        return 0xff000000 | (r << 16) | (g << 8) | b;
+    }
+
+    /**
+     * Gray level of one video range luma sample.
+     */
+    static int referenceGray(int y) {
+        return clamp(1.164 * (y - 16));
+    }
+
+    /**
+     * Largest difference between the channels of two ARGB_8888 pixels.
+     */
+    static int channelDistance(int argb1, int argb2) {
+        int distance = 0;
+        for (int shift = 0; shift < 32; shift += 8) {
+            distance = Math.max(distance, Math.abs(((argb1 >> shift) & 0xff) - ((argb2 >> shift) & 0xff)));
+        }
+        return distance;
+    }
+
+    /**
+     * Packs an ARGB_8888 pixel the way an RGB_565 bitmap stores it.
+     */
+    static short toRgb565(int argb) {
+        return (short) ((((argb >> 16) & 0xff) >> 3) << 11 | (((argb >> 8) & 0xff) >> 2) << 5 | (argb & 0xff) >> 3);
+    }
+
+    /**
+     * Index of pixel {@code (x, y)} of a {@code width x height} image rotated clockwise by {@code rotation}.
+     */
+    static int rotatedIndex(int x, int y, int width, int height, int rotation) {
+        switch (rotation) {
+            case 90:
+                return x * height + (height - 1 - y);
+            case 180:
+                return (height - 1 - y) * width + (width - 1 - x);
+            case 270:
+                return (width - 1 - x) * height + y;
+            default:
+                return y * width + x;
+        }
+    }
+
+    private static int clamp(double value) {
+        return (int) Math.max(0, Math.min(255, Math.round(value)));
+    }
+}
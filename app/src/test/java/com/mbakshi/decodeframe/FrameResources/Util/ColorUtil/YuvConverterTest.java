@@ -0,0 +1,231 @@
+package com.mbakshi.decodeframe.FrameResources.Util.ColorUtil;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class YuvConverterTest {
+    // odd sizes, padded rows and padded planes
+    private static final int WIDTH = 37;
+    private static final int HEIGHT = 23;
+    private static final int STRIDE = 48;
+    private static final int SLICE_HEIGHT = 26;
+
+    @Test
+    public void planarMatchesReference() {
+        YuvLayout layout = new YuvLayout().setPlanar(WIDTH, HEIGHT, STRIDE, SLICE_HEIGHT);
+        assertMatchesReference(layout, TestFrames.randomFrame(layout, 1));
+    }
+
+    @Test
+    public void semiPlanarMatchesReference() {
+        YuvLayout layout = new YuvLayout().setSemiPlanar(WIDTH, HEIGHT, STRIDE, SLICE_HEIGHT);
+        assertMatchesReference(layout, TestFrames.randomFrame(layout, 2));
+    }
+
+    @Test
+    public void semiPlanarVuMatchesReference() {
+        YuvLayout layout = new YuvLayout().setSemiPlanarVu(0, WIDTH, HEIGHT, STRIDE, SLICE_HEIGHT);
+        assertMatchesReference(layout, TestFrames.randomFrame(layout, 3));
+    }
+
+    @Test
+    public void extremeSamplesClampWithinReference() {
+        // every corner of the YUV cube, including the ones outside the RGB gamut
+        int[] values = {0, 16, 128, 235, 240, 255};
+        for (int y : values) {
+            for (int u : values) {
+                for (int v : values) {
+                    byte[] data = uniformPlanar(2, 2, y, u, v);
+                    int[] out = new int[4];
+                    YuvConverter.convertPlanar(data, 2, 2, 2, 2, out, 0);
+                    int distance = TestFrames.channelDistance(TestFrames.referenceArgb(y, u, v), out[0]);
+                    assertTrue("y " + y + " u " + u + " v " + v + " off by " + distance, distance <= 1);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void rgb565IsArgbTruncated() {
+        YuvLayout layout = new YuvLayout().setSemiPlanar(WIDTH, HEIGHT, STRIDE, SLICE_HEIGHT);
+        ByteBuffer data = ByteBuffer.wrap(TestFrames.randomFrame(layout, 4));
+        int[] argb = new int[WIDTH * HEIGHT];
+        short[] rgb565 = new short[WIDTH * HEIGHT];
+        YuvConverter.convert(data, layout, 0, argb, 0, 0, HEIGHT);
+        YuvConverter.convert(data, layout, 0, rgb565, 0, 0, HEIGHT);
+        for (int i = 0; i < argb.length; i++) {
+            assertEquals("pixel " + i, TestFrames.toRgb565(argb[i]), rgb565[i]);
+        }
+    }
+
+    @Test
+    public void grayscaleMatchesReference() {
+        YuvLayout layout = new YuvLayout().setPlanar(WIDTH, HEIGHT, STRIDE, SLICE_HEIGHT);
+        byte[] frame = TestFrames.randomFrame(layout, 5);
+        byte[] out = new byte[WIDTH * HEIGHT];
+        YuvConverter.convert(ByteBuffer.wrap(frame), layout, 0, out, 0, 0, HEIGHT);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int expected = TestFrames.referenceGray(TestFrames.luma(frame, layout, x, y));
+                assertEquals("pixel " + x + "," + y, expected, out[y * WIDTH + x] & 0xff);
+            }
+        }
+    }
+
+    @Test
+    public void rotationMovesPixels() {
+        YuvLayout layout = new YuvLayout().setPlanar(WIDTH, HEIGHT, STRIDE, SLICE_HEIGHT);
+        ByteBuffer data = ByteBuffer.wrap(TestFrames.randomFrame(layout, 6));
+        int[] upright = new int[WIDTH * HEIGHT];
+        YuvConverter.convert(data, layout, 0, upright, 0, 0, HEIGHT);
+        for (int rotation = 90; rotation < 360; rotation += 90) {
+            int[] rotated = new int[WIDTH * HEIGHT];
+            YuvConverter.convert(data, layout, rotation, rotated, 0, 0, HEIGHT);
+            for (int y = 0; y < HEIGHT; y++) {
+                for (int x = 0; x < WIDTH; x++) {
+                    assertEquals("rotation " + rotation + " pixel " + x + "," + y, upright[y * WIDTH + x],
+                            rotated[TestFrames.rotatedIndex(x, y, WIDTH, HEIGHT, rotation)]);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void directBufferMatchesArray() {
+        YuvLayout planar = new YuvLayout().setPlanar(WIDTH, HEIGHT, STRIDE, SLICE_HEIGHT);
+        YuvLayout semiPlanar = new YuvLayout().setSemiPlanarVu(0, WIDTH, HEIGHT, STRIDE, SLICE_HEIGHT);
+        for (YuvLayout layout : new YuvLayout[]{planar, semiPlanar}) {
+            byte[] frame = TestFrames.randomFrame(layout, 7);
+            ByteBuffer heap = ByteBuffer.wrap(frame);
+            ByteBuffer direct = TestFrames.direct(frame, 13);
+            for (int rotation = 0; rotation < 360; rotation += 90) {
+                int[] expectedArgb = new int[WIDTH * HEIGHT];
+                int[] argb = new int[WIDTH * HEIGHT];
+                YuvConverter.convert(heap, layout, rotation, expectedArgb, 0, 0, HEIGHT);
+                YuvConverter.convert(direct, layout, rotation, argb, 0, 0, HEIGHT);
+                assertArrayEquals(layout + " rotation " + rotation, expectedArgb, argb);
+
+                short[] expected565 = new short[WIDTH * HEIGHT];
+                short[] rgb565 = new short[WIDTH * HEIGHT];
+                YuvConverter.convert(heap, layout, rotation, expected565, 0, 0, HEIGHT);
+                YuvConverter.convert(direct, layout, rotation, rgb565, 0, 0, HEIGHT);
+                assertArrayEquals(layout + " rotation " + rotation, expected565, rgb565);
+
+                byte[] expectedGray = new byte[WIDTH * HEIGHT];
+                byte[] gray = new byte[WIDTH * HEIGHT];
+                YuvConverter.convert(heap, layout, rotation, expectedGray, 0, 0, HEIGHT);
+                YuvConverter.convert(direct, layout, rotation, gray, 0, 0, HEIGHT);
+                assertArrayEquals(layout + " rotation " + rotation, expectedGray, gray);
+            }
+            assertEquals(13, direct.position());
+        }
+    }
+
+    @Test
+    public void bandsMatchWholeFrame() {
+        YuvLayout layout = new YuvLayout().setSemiPlanar(WIDTH, HEIGHT, STRIDE, SLICE_HEIGHT);
+        ByteBuffer data = TestFrames.direct(TestFrames.randomFrame(layout, 8), 0);
+        int[] whole = new int[WIDTH * HEIGHT];
+        YuvConverter.convert(data, layout, 90, whole, 0, 0, HEIGHT);
+        int[] banded = new int[WIDTH * HEIGHT];
+        YuvConverter.convert(data, layout, 90, banded, 0, 10, HEIGHT);
+        YuvConverter.convert(data, layout, 90, banded, 0, 0, 4);
+        YuvConverter.convert(data, layout, 90, banded, 0, 4, 10);
+        assertArrayEquals(whole, banded);
+    }
+
+    @Test
+    public void croppedLayoutMatchesRegion() {
+        YuvLayout layout = new YuvLayout().setPlanar(WIDTH, HEIGHT, STRIDE, SLICE_HEIGHT);
+        byte[] frame = TestFrames.randomFrame(layout, 9);
+        int[] whole = new int[WIDTH * HEIGHT];
+        YuvConverter.convert(frame, 0, layout, 0, whole, 0, 0, HEIGHT);
+        int left = 6;
+        int top = 4;
+        int width = 15;
+        int height = 11;
+        YuvLayout cropped = new YuvLayout().set(layout).crop(left, top, width, height);
+        int[] region = new int[width * height];
+        YuvConverter.convert(frame, 0, cropped, 0, region, 0, 0, height);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                assertEquals(whole[(top + y) * WIDTH + left + x], region[y * width + x]);
+            }
+        }
+    }
+
+    @Test
+    public void intBufferMatchesArray() {
+        byte[] frame = TestFrames.randomFrame(new YuvLayout().setSemiPlanar(WIDTH, HEIGHT, STRIDE, SLICE_HEIGHT), 3);
+        int[] expected = new int[WIDTH * HEIGHT];
+        YuvConverter.convertSemiPlanar(frame, WIDTH, HEIGHT, STRIDE, SLICE_HEIGHT, expected, 0);
+        IntBuffer direct = ByteBuffer.allocateDirect(4 * (2 + WIDTH * HEIGHT)).asIntBuffer();
+        assertFalse(direct.hasArray());
+        direct.position(2);
+        YuvConverter.convertSemiPlanar(frame, WIDTH, HEIGHT, STRIDE, SLICE_HEIGHT, direct);
+        assertEquals(2, direct.position());
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals("pixel " + i, expected[i], direct.get(2 + i));
+        }
+    }
+
+    @Test
+    public void writesOnlyFromOutOffset() {
+        YuvLayout layout = new YuvLayout().setPlanar(WIDTH, HEIGHT, STRIDE, SLICE_HEIGHT);
+        byte[] frame = TestFrames.randomFrame(layout, 10);
+        int[] expected = new int[WIDTH * HEIGHT];
+        YuvConverter.convertPlanar(frame, WIDTH, HEIGHT, STRIDE, SLICE_HEIGHT, expected, 0);
+        int[] out = new int[3 + WIDTH * HEIGHT];
+        YuvConverter.convertPlanar(frame, WIDTH, HEIGHT, STRIDE, SLICE_HEIGHT, out, 3);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, out[i]);
+        }
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], out[3 + i]);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsOddRowStart() {
+        YuvLayout layout = new YuvLayout().setPlanar(WIDTH, HEIGHT, STRIDE, SLICE_HEIGHT);
+        YuvConverter.convert(TestFrames.randomFrame(layout, 11), 0, layout, 0, new int[WIDTH * HEIGHT], 0, 1, HEIGHT);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsShortOutput() {
+        YuvLayout layout = new YuvLayout().setPlanar(WIDTH, HEIGHT, STRIDE, SLICE_HEIGHT);
+        YuvConverter.convert(TestFrames.randomFrame(layout, 12), 0, layout, 0, new int[WIDTH * HEIGHT - 1], 0, 0,
+                HEIGHT);
+    }
+
+    private static void assertMatchesReference(YuvLayout layout, byte[] frame) {
+        int[] out = new int[WIDTH * HEIGHT];
+        YuvConverter.convert(frame, 0, layout, 0, out, 0, 0, HEIGHT);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int expected = TestFrames.referenceArgb(TestFrames.luma(frame, layout, x, y),
+                        TestFrames.u(frame, layout, x, y), TestFrames.v(frame, layout, x, y));
+                int distance = TestFrames.channelDistance(expected, out[y * WIDTH + x]);
+                // fixed point rounding
+                assertTrue("pixel " + x + "," + y + " off by " + distance, distance <= 1);
+            }
+        }
+    }
+
+    private static byte[] uniformPlanar(int width, int height, int y, int u, int v) {
+        int lumaSize = width * height;
+        int chromaSize = ((width + 1) / 2) * ((height + 1) / 2);
+        byte[] data = new byte[lumaSize + 2 * chromaSize];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i < lumaSize ? y : i < lumaSize + chromaSize ? u : v);
+        }
+        return data;
+    }
+}
@@ -0,0 +1,156 @@
+package com.mbakshi.decodeframe.FrameResources.Util.ColorUtil;
+
+import android.graphics.Rect;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class YuvScalerTest {
+    private static final int WIDTH = 40;
+    private static final int HEIGHT = 30;
+    private static final int STRIDE = 48;
+    private static final int SLICE_HEIGHT = 32;
+
+    @Test
+    public void halvingAveragesEachBlock() {
+        YuvLayout layout = new YuvLayout().setPlanar(WIDTH, HEIGHT, STRIDE, SLICE_HEIGHT);
+        byte[] frame = TestFrames.randomFrame(layout, 1);
+        int outWidth = WIDTH / 2;
+        int outHeight = HEIGHT / 2;
+        int[] out = new int[outWidth * outHeight];
+        YuvScaler.scale(ByteBuffer.wrap(frame), layout, region(0, 0, WIDTH, HEIGHT), 0, out, 0, outWidth, outHeight);
+        byte[] gray = new byte[outWidth * outHeight];
+        YuvScaler.scale(ByteBuffer.wrap(frame), layout, region(0, 0, WIDTH, HEIGHT), 0, gray, 0, outWidth, outHeight);
+        for (int y = 0; y < outHeight; y++) {
+            for (int x = 0; x < outWidth; x++) {
+                int luma = blockAverage(frame, layout, 2 * x, 2 * y);
+                int expected = TestFrames.referenceArgb(luma, TestFrames.u(frame, layout, 2 * x, 2 * y),
+                        TestFrames.v(frame, layout, 2 * x, 2 * y));
+                int distance = TestFrames.channelDistance(expected, out[y * outWidth + x]);
+                assertTrue("pixel " + x + "," + y + " off by " + distance, distance <= 1);
+                assertEquals(TestFrames.referenceGray(luma), gray[y * outWidth + x] & 0xff);
+            }
+        }
+    }
+
+    @Test
+    public void readsOnlyTheRegion() {
+        YuvLayout layout = new YuvLayout().setSemiPlanar(WIDTH, HEIGHT, STRIDE, SLICE_HEIGHT);
+        byte[] frame = TestFrames.randomFrame(layout, 2);
+        Rect source = region(8, 6, 24, 22);
+        int[] out = new int[4 * 4];
+        YuvScaler.scale(ByteBuffer.wrap(frame), layout, source, 0, out, 0, 4, 4);
+        for (int y = 0; y < 4; y++) {
+            for (int x = 0; x < 4; x++) {
+                // the even aligned block holding the pixel before the centre of each 4x4 area
+                int sx = 8 + 4 * x;
+                int sy = 6 + 4 * y;
+                int expected = TestFrames.referenceArgb(blockAverage(frame, layout, sx, sy),
+                        TestFrames.u(frame, layout, sx, sy), TestFrames.v(frame, layout, sx, sy));
+                assertTrue(TestFrames.channelDistance(expected, out[y * 4 + x]) <= 1);
+            }
+        }
+    }
+
+    @Test
+    public void uniformFrameScalesToItsColor() {
+        YuvLayout layout = new YuvLayout().setSemiPlanar(WIDTH, HEIGHT, WIDTH, HEIGHT);
+        byte[] frame = new byte[WIDTH * HEIGHT * 3 / 2];
+        for (int i = 0; i < frame.length; i++) {
+            frame[i] = (byte) (i < WIDTH * HEIGHT ? 120 : (i & 1) == 0 ? 90 : 200);
+        }
+        int expected = TestFrames.referenceArgb(120, 90, 200);
+        // down, up and to a different aspect ratio
+        int[][] sizes = {{7, 5}, {80, 61}, {3, 29}};
+        for (int[] size : sizes) {
+            int[] out = new int[size[0] * size[1]];
+            YuvScaler.scale(ByteBuffer.wrap(frame), layout, region(0, 0, WIDTH, HEIGHT), 0, out, 0, size[0], size[1]);
+            for (int pixel : out) {
+                assertTrue(TestFrames.channelDistance(expected, pixel) <= 1);
+            }
+        }
+    }
+
+    @Test
+    public void directBufferMatchesArray() {
+        YuvLayout planar = new YuvLayout().setPlanar(WIDTH, HEIGHT, STRIDE, SLICE_HEIGHT);
+        YuvLayout semiPlanar = new YuvLayout().setSemiPlanarVu(0, WIDTH, HEIGHT, STRIDE, SLICE_HEIGHT);
+        Rect[] sources = {region(0, 0, WIDTH, HEIGHT), region(6, 4, 31, 27), region(2, 2, 4, 4)};
+        for (YuvLayout layout : new YuvLayout[]{planar, semiPlanar}) {
+            byte[] frame = TestFrames.randomFrame(layout, 3);
+            ByteBuffer heap = ByteBuffer.wrap(frame);
+            ByteBuffer direct = TestFrames.direct(frame, 5);
+            for (Rect source : sources) {
+                int[] expected = new int[9 * 7];
+                int[] out = new int[9 * 7];
+                YuvScaler.scale(heap, layout, source, 90, expected, 0, 9, 7);
+                YuvScaler.scale(direct, layout, source, 90, out, 0, 9, 7);
+                assertArrayEquals(expected, out);
+
+                short[] expected565 = new short[9 * 7];
+                short[] out565 = new short[9 * 7];
+                YuvScaler.scale(heap, layout, source, 0, expected565, 0, 9, 7);
+                YuvScaler.scale(direct, layout, source, 0, out565, 0, 9, 7);
+                assertArrayEquals(expected565, out565);
+            }
+            assertEquals(5, direct.position());
+        }
+    }
+
+    @Test
+    public void rotationMovesPixels() {
+        YuvLayout layout = new YuvLayout().setPlanar(WIDTH, HEIGHT, STRIDE, SLICE_HEIGHT);
+        ByteBuffer data = ByteBuffer.wrap(TestFrames.randomFrame(layout, 4));
+        Rect source = region(0, 0, WIDTH, HEIGHT);
+        int outWidth = 11;
+        int outHeight = 8;
+        int[] upright = new int[outWidth * outHeight];
+        YuvScaler.scale(data, layout, source, 0, upright, 0, outWidth, outHeight);
+        short[] upright565 = new short[outWidth * outHeight];
+        YuvScaler.scale(data, layout, source, 0, upright565, 0, outWidth, outHeight);
+        for (int rotation = 90; rotation < 360; rotation += 90) {
+            int[] rotated = new int[outWidth * outHeight];
+            YuvScaler.scale(data, layout, source, rotation, rotated, 0, outWidth, outHeight);
+            for (int y = 0; y < outHeight; y++) {
+                for (int x = 0; x < outWidth; x++) {
+                    int pixel = upright[y * outWidth + x];
+                    assertEquals(pixel, rotated[TestFrames.rotatedIndex(x, y, outWidth, outHeight, rotation)]);
+                    assertEquals(TestFrames.toRgb565(pixel), upright565[y * outWidth + x]);
+                }
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsRegionsSmallerThanABlock() {
+        YuvLayout layout = new YuvLayout().setPlanar(WIDTH, HEIGHT, STRIDE, SLICE_HEIGHT);
+        YuvScaler.scale(ByteBuffer.wrap(TestFrames.randomFrame(layout, 5)), layout, region(4, 4, 5, 8), 0,
+                new int[4], 0, 2, 2);
+    }
+
+    /**
+     * Rounded average of the 2x2 luma block at {@code (x, y)}.
+     */
+    private static int blockAverage(byte[] frame, YuvLayout layout, int x, int y) {
+        int sum = TestFrames.luma(frame, layout, x, y) + TestFrames.luma(frame, layout, x + 1, y)
+                + TestFrames.luma(frame, layout, x, y + 1) + TestFrames.luma(frame, layout, x + 1, y + 1);
+        return (sum + 2) >> 2;
+    }
+
+    /**
+     * Builds a region through its fields, which the scaler reads, so no framework code runs.
+     */
+    private static Rect region(int left, int top, int right, int bottom) {
+        Rect rect = new Rect();
+        rect.left = left;
+        rect.top = top;
+        rect.right = right;
+        rect.bottom = bottom;
+        return rect;
+    }
+}
@@ -0,0 +1,75 @@
+package com.mbakshi.decodeframe.FrameResources.Util.ColorUtil;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class YuvTablesTest {
+    @Test
+    public void clampTableCoversEverySum() {
+        int min = Integer.MAX_VALUE;
+        int max = Integer.MIN_VALUE;
+        for (int y = 0; y < 256; y++) {
+            for (int c = 0; c < 256; c++) {
+                int l = YuvTables.Y[y];
+                for (int sum : new int[]{l + YuvTables.RV[c], l + YuvTables.BU[c]}) {
+                    min = Math.min(min, sum >> YuvTables.SHIFT);
+                    max = Math.max(max, sum >> YuvTables.SHIFT);
+                }
+                for (int v = 0; v < 256; v++) {
+                    int sum = (l + YuvTables.GU[c] + YuvTables.GV[v]) >> YuvTables.SHIFT;
+                    min = Math.min(min, sum);
+                    max = Math.max(max, sum);
+                }
+            }
+        }
+        assertTrue("min " + min, min + YuvTables.CLAMP_OFFSET >= 0);
+        assertTrue("max " + max, max + YuvTables.CLAMP_OFFSET < YuvTables.CLAMP.length);
+    }
+
+    @Test
+    public void clampSaturates() {
+        assertEquals(0, YuvTables.CLAMP[0]);
+        assertEquals(0, YuvTables.CLAMP[YuvTables.CLAMP_OFFSET - 1]);
+        assertEquals(0, YuvTables.CLAMP[YuvTables.CLAMP_OFFSET]);
+        assertEquals(128, YuvTables.CLAMP[YuvTables.CLAMP_OFFSET + 128]);
+        assertEquals(255, YuvTables.CLAMP[YuvTables.CLAMP_OFFSET + 255]);
+        assertEquals(255, YuvTables.CLAMP[YuvTables.CLAMP.length - 1]);
+    }
+
+    @Test
+    public void videoRangeMapsToFullRange() {
+        assertEquals(0, YuvTables.LUMA[16] & 0xff);
+        assertEquals(255, YuvTables.LUMA[235] & 0xff);
+        assertEquals(0, YuvTables.LUMA[0] & 0xff);
+        assertEquals(255, YuvTables.LUMA[255] & 0xff);
+        assertEquals(0xff000000, YuvTables.argb(YuvTables.CLAMP, YuvTables.Y[16], YuvTables.Y[16], YuvTables.Y[16]));
+        assertEquals(0xffffffff, YuvTables.argb(YuvTables.CLAMP, YuvTables.Y[235], YuvTables.Y[235],
+                YuvTables.Y[235]));
+    }
+
+    @Test
+    public void neutralChromaIsGray() {
+        assertEquals(0, YuvTables.RV[128]);
+        assertEquals(0, YuvTables.GU[128]);
+        assertEquals(0, YuvTables.GV[128]);
+        assertEquals(0, YuvTables.BU[128]);
+        for (int y = 0; y < 256; y++) {
+            int l = YuvTables.Y[y];
+            int gray = YuvTables.LUMA[y] & 0xff;
+            assertEquals(0xff000000 | gray << 16 | gray << 8 | gray, YuvTables.argb(YuvTables.CLAMP, l, l, l));
+        }
+    }
+
+    @Test
+    public void rgb565KeepsTopBits() {
+        int l = YuvTables.Y[235];
+        assertEquals((short) 0xffff, YuvTables.rgb565(YuvTables.CLAMP, l, l, l));
+        int r = YuvTables.Y[81] + YuvTables.RV[240];
+        int g = YuvTables.Y[81] + YuvTables.GU[90] + YuvTables.GV[240];
+        int b = YuvTables.Y[81] + YuvTables.BU[90];
+        assertEquals(TestFrames.toRgb565(YuvTables.argb(YuvTables.CLAMP, r, g, b)),
+                YuvTables.rgb565(YuvTables.CLAMP, r, g, b));
+    }
+}